@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tallison.lucene.corpus.stats.IDFIndexCalc;
+import org.tallison.lucene.search.concordance.charoffsets.TargetTokenNotFoundException;
+import org.tallison.lucene.search.concordance.classic.impl.IndexIdDocIdBuilder;
+import org.tallison.lucene.search.concordance.util.EmptyTokenBlackList;
+import org.tallison.lucene.search.concordance.windowvisitor.ArrayWindowVisitor;
+import org.tallison.lucene.search.concordance.windowvisitor.ConcordanceArrayWindowSearcher;
+import org.tallison.lucene.search.concordance.windowvisitor.CooccurVisitor;
+import org.tallison.lucene.search.concordance.windowvisitor.TargetVisitor;
+import org.tallison.lucene.search.concordance.windowvisitor.WGrammer;
+
+/**
+ * {@link ConcordanceArrayWindowSearcher} with either a {@link CooccurVisitor}
+ * or a {@link TargetVisitor}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConcordanceArrayWindowSearcherBenchmark {
+
+  @Param({"1000"})
+  public int numDocs;
+
+  @Param({"100", "1000", "10000"})
+  public int docLength;
+
+  @Param({"0.001", "0.01"})
+  public double hitDensity;
+
+  @Param({"1", "8"})
+  public int numSegments;
+
+  @Param({"cooccur", "target"})
+  public String visitorType;
+
+  private SyntheticIndex index;
+  private IndexSearcher indexSearcher;
+  private IDFIndexCalc idfCalc;
+  private SpanQuery query;
+
+  @Setup
+  public void setup() throws IOException {
+    index = SyntheticIndex.build(numDocs, docLength, hitDensity, numSegments, 42L);
+    indexSearcher = index.getSearcher();
+    idfCalc = new IDFIndexCalc(index.getReader());
+    query = new SpanTermQuery(new Term(SyntheticIndex.FIELD, SyntheticIndex.TARGET));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    index.close();
+  }
+
+  @Benchmark
+  public Object search() throws IOException, TargetTokenNotFoundException {
+    ArrayWindowVisitor<?> visitor;
+    if ("cooccur".equals(visitorType)) {
+      visitor = new CooccurVisitor(SyntheticIndex.FIELD, 10, 10,
+          new WGrammer(1, 1, SyntheticIndex.FIELD, new EmptyTokenBlackList(), false),
+          idfCalc, Integer.MAX_VALUE, true);
+    } else {
+      visitor = new TargetVisitor(SyntheticIndex.FIELD, 100, true, Integer.MAX_VALUE);
+    }
+    ConcordanceArrayWindowSearcher searcher = new ConcordanceArrayWindowSearcher();
+    searcher.search(indexSearcher, SyntheticIndex.FIELD, query, null,
+        index.getAnalyzer(), visitor, new IndexIdDocIdBuilder());
+    return visitor.getResults();
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tallison.lucene.search.concordance.charoffsets.RandomAccessCharOffsetContainer;
+import org.tallison.lucene.search.concordance.charoffsets.ReanalyzingTokenCharOffsetsReader;
+import org.tallison.lucene.search.concordance.charoffsets.TokenCharOffsetRequests;
+
+/**
+ * Recovering the character offsets for a single window by reanalysis.
+ * hitPosition is the target's relative position in the document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReanalyzingTokenCharOffsetsReaderBenchmark {
+
+  @Param({"100", "1000", "100000"})
+  public int docLength;
+
+  @Param({"0.01", "0.5", "0.99"})
+  public double hitPosition;
+
+  @Param({"true", "false"})
+  public boolean consumeAllTokens;
+
+  @Param({"10"})
+  public int tokensBeforeAfter;
+
+  private Analyzer analyzer;
+  private ReanalyzingTokenCharOffsetsReader reader;
+  private Document document;
+  private final TokenCharOffsetRequests requests = new TokenCharOffsetRequests();
+  private final RandomAccessCharOffsetContainer results = new RandomAccessCharOffsetContainer();
+
+  @Setup
+  public void setup() {
+    analyzer = new WhitespaceAnalyzer();
+    reader = new ReanalyzingTokenCharOffsetsReader(analyzer, consumeAllTokens);
+    document = new Document();
+    document.add(new TextField(SyntheticIndex.FIELD,
+        SyntheticIndex.buildDocument(new Random(42L), docLength, 0.0), Field.Store.YES));
+    int target = (int) (hitPosition * (docLength - 1));
+    requests.add(Math.max(0, target - tokensBeforeAfter),
+        Math.min(docLength - 1, target + tokensBeforeAfter));
+  }
+
+  @TearDown
+  public void tearDown() {
+    analyzer.close();
+  }
+
+  @Benchmark
+  public int getTokenCharOffsetResults() throws IOException {
+    results.clear();
+    reader.getTokenCharOffsetResults(document, SyntheticIndex.FIELD, requests, results);
+    return results.getLast();
+  }
+}
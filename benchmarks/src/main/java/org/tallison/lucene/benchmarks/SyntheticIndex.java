@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Random;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+
+/**
+ * In-memory index of random documents for benchmarking.  Each token
+ * is the {@link #TARGET} with probability hitDensity, otherwise
+ * a word drawn from a fixed vocabulary.
+ */
+public class SyntheticIndex implements Closeable {
+
+  public static final String FIELD = "content";
+  public static final String TARGET = "needle";
+  private static final int VOCAB_SIZE = 5000;
+
+  private final Directory directory;
+  private final IndexReader reader;
+  private final Analyzer analyzer;
+
+  private SyntheticIndex(Directory directory, IndexReader reader, Analyzer analyzer) {
+    this.directory = directory;
+    this.reader = reader;
+    this.analyzer = analyzer;
+  }
+
+  /**
+   * @param numDocs number of documents
+   * @param docLength number of tokens per document
+   * @param hitDensity probability that any given token is the target
+   * @param numSegments number of segments; merging is disabled
+   * @param seed random seed
+   * @return the index
+   * @throws IOException on an IOException from the writer
+   */
+  public static SyntheticIndex build(int numDocs, int docLength, double hitDensity,
+                                     int numSegments, long seed) throws IOException {
+    Random random = new Random(seed);
+    Analyzer analyzer = new WhitespaceAnalyzer();
+    Directory directory = new ByteBuffersDirectory();
+    IndexWriterConfig config = new IndexWriterConfig(analyzer)
+        .setMergePolicy(NoMergePolicy.INSTANCE);
+    int docsPerSegment = Math.max(1, (numDocs + numSegments - 1) / numSegments);
+    try (IndexWriter writer = new IndexWriter(directory, config)) {
+      for (int i = 0; i < numDocs; i++) {
+        Document d = new Document();
+        d.add(new TextField(FIELD, buildDocument(random, docLength, hitDensity), Field.Store.YES));
+        writer.addDocument(d);
+        if ((i + 1) % docsPerSegment == 0) {
+          writer.commit();
+        }
+      }
+    }
+    return new SyntheticIndex(directory, DirectoryReader.open(directory), analyzer);
+  }
+
+  /**
+   * @param random random
+   * @param docLength number of tokens
+   * @param hitDensity probability that any given token is the target
+   * @return space-delimited document text
+   */
+  public static String buildDocument(Random random, int docLength, double hitDensity) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < docLength; i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      if (random.nextDouble() < hitDensity) {
+        sb.append(TARGET);
+      } else {
+        sb.append('w').append(random.nextInt(VOCAB_SIZE));
+      }
+    }
+    return sb.toString();
+  }
+
+  public IndexReader getReader() {
+    return reader;
+  }
+
+  public IndexSearcher getSearcher() {
+    return new IndexSearcher(reader);
+  }
+
+  public Analyzer getAnalyzer() {
+    return analyzer;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+    directory.close();
+    analyzer.close();
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.benchmarks;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tallison.lucene.search.concordance.charoffsets.RandomAccessCharOffsetContainer;
+import org.tallison.lucene.search.concordance.charoffsets.ReanalyzingTokenCharOffsetsReader;
+import org.tallison.lucene.search.concordance.charoffsets.TargetTokenNotFoundException;
+import org.tallison.lucene.search.concordance.charoffsets.TokenCharOffsetRequests;
+import org.tallison.lucene.search.concordance.classic.ConcordanceWindow;
+import org.tallison.lucene.search.concordance.classic.WindowBuilder;
+
+/**
+ * Building a single window from offsets that have already been
+ * recovered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WindowBuilderBenchmark {
+
+  @Param({"1000"})
+  public int docLength;
+
+  @Param({"2", "10", "50"})
+  public int tokensBeforeAfter;
+
+  private Analyzer analyzer;
+  private WindowBuilder windowBuilder;
+  private String[] fieldValues;
+  private int target;
+  private final RandomAccessCharOffsetContainer offsets = new RandomAccessCharOffsetContainer();
+  private final Map<String, String> metadata = Collections.emptyMap();
+
+  @Setup
+  public void setup() throws IOException {
+    analyzer = new WhitespaceAnalyzer();
+    windowBuilder = new WindowBuilder(tokensBeforeAfter, tokensBeforeAfter,
+        analyzer.getOffsetGap(SyntheticIndex.FIELD));
+    String text = SyntheticIndex.buildDocument(new Random(42L), docLength, 0.0);
+    fieldValues = new String[]{text};
+    Document document = new Document();
+    document.add(new TextField(SyntheticIndex.FIELD, text, Field.Store.YES));
+    target = docLength / 2;
+    TokenCharOffsetRequests requests = new TokenCharOffsetRequests();
+    requests.add(Math.max(0, target - tokensBeforeAfter),
+        Math.min(docLength - 1, target + tokensBeforeAfter));
+    new ReanalyzingTokenCharOffsetsReader(analyzer)
+        .getTokenCharOffsetResults(document, SyntheticIndex.FIELD, requests, offsets);
+  }
+
+  @TearDown
+  public void tearDown() {
+    analyzer.close();
+  }
+
+  @Benchmark
+  public ConcordanceWindow buildConcordanceWindow() throws TargetTokenNotFoundException {
+    return windowBuilder.buildConcordanceWindow("0", target, target,
+        fieldValues, offsets, metadata);
+  }
+}
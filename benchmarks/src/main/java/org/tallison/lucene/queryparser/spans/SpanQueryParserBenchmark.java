@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.queryparser.spans;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lexing and parsing of long, machine-generated span queries.
+ * <p>
+ * This lives in the parser's package because {@link SpanQueryLexer} is
+ * package private.  To compare lexer implementations, run this against
+ * each revision of lucene-5205.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SpanQueryParserBenchmark {
+
+  private static final String FIELD = "content";
+
+  private static final String[] WORDS = new String[]{
+      "quick", "brown", "fox", "jumped", "over", "the", "lazy", "dog",
+      "apache", "lucene", "solr", "tika"
+  };
+
+  @Param({"10", "1000", "5000"})
+  public int numClauses;
+
+  private String queryString;
+  private Analyzer analyzer;
+  private Analyzer multiTermAnalyzer;
+
+  @Setup
+  public void setup() {
+    queryString = buildQuery(new Random(42L), numClauses);
+    analyzer = new WhitespaceAnalyzer();
+    multiTermAnalyzer = new KeywordAnalyzer();
+  }
+
+  @TearDown
+  public void tearDown() {
+    analyzer.close();
+    multiTermAnalyzer.close();
+  }
+
+  @Benchmark
+  public List<?> lex() throws ParseException {
+    return new SpanQueryLexer().getTokens(queryString);
+  }
+
+  @Benchmark
+  public Query parse() throws ParseException {
+    return new SpanQueryParser(FIELD, analyzer, multiTermAnalyzer).parse(queryString);
+  }
+
+  /**
+   * Mix of terms, fuzzy terms, near clauses, phrases, fielded or clauses
+   * with boosts and position ranges, joined by the default operator and
+   * the occasional AND.
+   */
+  static String buildQuery(Random random, int numClauses) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < numClauses; i++) {
+      if (i > 0) {
+        sb.append(i % 7 == 0 ? " AND " : " ");
+      }
+      switch (random.nextInt(6)) {
+        case 0:
+          sb.append('[').append(word(random)).append(' ')
+              .append(word(random)).append("*]~").append(random.nextInt(5));
+          break;
+        case 1:
+          sb.append(word(random)).append("~2");
+          break;
+        case 2:
+          sb.append("f").append(random.nextInt(3)).append(":(")
+              .append(word(random)).append(' ').append(word(random)).append(")^2.5");
+          break;
+        case 3:
+          sb.append('"').append(word(random)).append(' ').append(word(random)).append('"');
+          break;
+        case 4:
+          sb.append(word(random)).append("@2..10");
+          break;
+        default:
+          sb.append(word(random));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String word(Random random) {
+    return WORDS[random.nextInt(WORDS.length)];
+  }
+}
@@ -16,7 +16,9 @@
  */
 package org.tallison.lucene.queryparser.spans;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -51,7 +53,10 @@ abstract class AbstractSpanQueryParser extends SpanQueryParserBase {
   abstract public Query parse(String s) throws ParseException;
 
   /**
-   * Recursively called to parse a span query
+   * Parses a span query clause and its nested clauses.
+   * <p>
+   * Nested clauses are handled with an explicit stack rather than
+   * by recursion so that deeply nested queries can't overflow the call stack.
    * <p>
    * This assumes that there are no FIELD tokens, no BOOLEAN operators,
    * no MatchAllDocsQueries and that {@link #getAnalyzer(String)}
@@ -66,45 +71,72 @@ abstract class AbstractSpanQueryParser extends SpanQueryParserBase {
                                            String field, SQPClause parentClause)
       throws ParseException {
 
-    int start = parentClause.getTokenOffsetStart();
-    int end = parentClause.getTokenOffsetEnd();
+    Deque<SpanClauseFrame> frames = new ArrayDeque<>();
+    SpanQuery ret = openPureSpanClause(tokens, field, parentClause, frames);
+    while (! frames.isEmpty()) {
+      SpanClauseFrame frame = frames.peek();
+      if (frame.i >= frame.clause.getTokenOffsetEnd()) {
+        frames.pop();
+        SpanQuery q = buildSpanQueryClause(frame.queries, frame.clause);
+        q = addBoostOrPositionRangeIfExists(q, frame.clause);
+        if (frames.isEmpty()) {
+          ret = q;
+        } else {
+          frames.peek().queries.add(q);
+        }
+        continue;
+      }
+      SQPToken t = tokens.get(frame.i);
+      SpanQuery q = null;
+      if (t instanceof SQPClause) {
+        SQPClause c = (SQPClause)t;
+        frame.i = c.getTokenOffsetEnd();
+        int depth = frames.size();
+        q = openPureSpanClause(tokens, field, c, frames);
+        if (frames.size() > depth) {
+          //the child's query is added when its frame is closed
+          continue;
+        }
+      } else if (t instanceof SQPTerminal) {
+        q = buildSpanTerminal(field, (SQPTerminal)t);
+        frame.i++;
+      } else {
+        throw new ParseException("Can't process field, boolean operators or a match all docs query in a pure span.");
+      }
+      frame.queries.add(q);
+    }
+    return ret;
+  }
+
+  /**
+   * Either builds the query for a near clause with a single component
+   * or pushes a new frame for the clause.
+   *
+   * @return the query if no frame was pushed
+   */
+  private SpanQuery openPureSpanClause(final List<SQPToken> tokens, String field,
+                                       SQPClause clause, Deque<SpanClauseFrame> frames)
+      throws ParseException {
+    int start = clause.getTokenOffsetStart();
+    int end = clause.getTokenOffsetEnd();
 
     //test if special handling needed for spannear with one component?
     if (end-start == 1) {
 
-      if (parentClause instanceof SQPNearClause) {
-        SQPNearClause nc = (SQPNearClause)parentClause;
+      if (clause instanceof SQPNearClause) {
+        SQPNearClause nc = (SQPNearClause)clause;
         SQPToken t = tokens.get(start);
         if (t instanceof SQPTerm) {
           SpanQuery ret = trySpecialHandlingForSpanNearWithOneComponent(field, (SQPTerm)t, nc);
           if (ret != null) {
-            ret = addBoostOrPositionRangeIfExists(ret, parentClause);
+            ret = addBoostOrPositionRangeIfExists(ret, clause);
             return ret;
           }
         }
       }
     }
-
-    List<SpanQuery> queries = new ArrayList<>();
-    int i = start;
-    while (i < end) {
-      SQPToken t = tokens.get(i);
-      SpanQuery q = null;
-      if (t instanceof SQPClause) {
-        SQPClause c = (SQPClause)t;
-        q = _parsePureSpanClause(tokens, field, c);
-        i = c.getTokenOffsetEnd();
-      } else if (t instanceof SQPTerminal) {
-        q = buildSpanTerminal(field, (SQPTerminal)t);
-        i++;
-      } else {
-        throw new ParseException("Can't process field, boolean operators or a match all docs query in a pure span.");
-      }
-      queries.add(q);
-    }
-    SpanQuery ret = buildSpanQueryClause(queries, parentClause);
-    ret = addBoostOrPositionRangeIfExists(ret, parentClause);
-    return ret;
+    frames.push(new SpanClauseFrame(clause));
+    return null;
   }
 
   private SpanQuery trySpecialHandlingForSpanNearWithOneComponent(String field,
@@ -178,5 +210,19 @@ abstract class AbstractSpanQueryParser extends SpanQueryParserBase {
   public String getField() {
     return defaultField;
   }
-}
 
+  /**
+   * Clause whose children are still being parsed
+   */
+  private static class SpanClauseFrame {
+    private final SQPClause clause;
+    private final List<SpanQuery> queries = new ArrayList<>();
+    //offset of the next token to parse
+    private int i;
+
+    SpanClauseFrame(SQPClause clause) {
+      this.clause = clause;
+      this.i = clause.getTokenOffsetStart();
+    }
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.queryparser.spans;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.TermStates;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostAttribute;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Rewrites a MultiTermQuery into a SpanOrQuery over the top <code>size</code>
+ * terms, enumerating each segment's term dictionary as its own task on
+ * an ExecutorService.
+ * <p>
+ * Terms are ranked either by their docFreq summed across segments or by
+ * the boost that the query's TermsEnum assigns (e.g. edit distance for
+ * fuzzy queries).  Ties are broken by term order.
+ * <p>
+ * When ranking by boost, each segment only keeps its own top terms.
+ * When ranking by docFreq, every matching term has to be kept until
+ * the segments are merged because a term's docFreq is only known after
+ * summing across segments.
+ * <p>
+ * Set this via {@link SpanQueryParserBase#setMultiTermRewriteMethod(MultiTermQuery.RewriteMethod)};
+ * the parser hands it to the {@link SpanMultiTermQueryWrapper} it builds.
+ * If there is only one segment, or no ExecutorService, the rewrite runs
+ * on the calling thread.
+ */
+public class ParallelTopTermsSpanRewrite extends SpanMultiTermQueryWrapper.SpanRewriteMethod {
+
+  public enum Order {
+    /**
+     * Rank by docFreq summed across segments.  Every matching term in every
+     * segment is kept, with a copy of its bytes and its TermState, until the
+     * segments are merged, so memory grows with the number of matching terms.
+     * That is unbounded for broad queries such as a leading wildcard; use
+     * {@link #BOOST} for those.
+     */
+    DOC_FREQ,
+    /**
+     * Rank by the TermsEnum's boost.  Each segment keeps at most
+     * <code>size</code> terms.
+     */
+    BOOST
+  }
+
+  private final int size;
+  private final Order order;
+  private final ExecutorService executorService;
+
+  /**
+   * @param size maximum number of terms to expand to; this is capped at
+   *             {@link BooleanQuery#getMaxClauseCount()}
+   * @param order how to rank the matching terms
+   * @param executorService executor on which to enumerate the segments, can be null
+   */
+  public ParallelTopTermsSpanRewrite(int size, Order order, ExecutorService executorService) {
+    if (size < 1) {
+      throw new IllegalArgumentException("size must be > 0");
+    }
+    this.size = size;
+    this.order = Objects.requireNonNull(order);
+    this.executorService = executorService;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public Order getOrder() {
+    return order;
+  }
+
+  @Override
+  public SpanQuery rewrite(IndexReader reader, MultiTermQuery query) throws IOException {
+    final int maxSize = Math.min(size, BooleanQuery.getMaxClauseCount());
+    final Comparator<ScoreTerm> comparator = getComparator();
+    List<List<ScoreTerm>> leafTerms = collect(reader, query, maxSize, comparator);
+
+    //merge on the calling thread; TermStates is not thread safe
+    Map<BytesRef, MergedTerm> merged = new HashMap<>();
+    List<MergedTerm> mergedTerms = new ArrayList<>();
+    for (int i = 0; i < leafTerms.size(); i++) {
+      for (ScoreTerm st : leafTerms.get(i)) {
+        MergedTerm mt = merged.get(st.bytes);
+        if (mt == null) {
+          mt = new MergedTerm(st.bytes, st.boost, new TermStates(reader.getContext()));
+          merged.put(st.bytes, mt);
+          mergedTerms.add(mt);
+        }
+        mt.docFreq += st.docFreq;
+        mt.termStates.register(st.termState, i, st.docFreq, st.totalTermFreq);
+      }
+    }
+
+    Collections.sort(mergedTerms, comparator);
+    List<MergedTerm> top = mergedTerms.subList(0, Math.min(maxSize, mergedTerms.size()));
+    //build the clauses in term order, as Lucene's TopTermsRewrite does
+    List<MergedTerm> sorted = new ArrayList<>(top);
+    Collections.sort(sorted, new Comparator<ScoreTerm>() {
+      @Override
+      public int compare(ScoreTerm a, ScoreTerm b) {
+        return a.bytes.compareTo(b.bytes);
+      }
+    });
+    SpanQuery[] clauses = new SpanQuery[sorted.size()];
+    for (int i = 0; i < sorted.size(); i++) {
+      MergedTerm mt = sorted.get(i);
+      clauses[i] = new SpanTermQuery(new Term(query.getField(), mt.bytes), mt.termStates);
+    }
+    return new SpanOrQuery(clauses);
+  }
+
+  private List<List<ScoreTerm>> collect(IndexReader reader, final MultiTermQuery query,
+                                        final int maxSize, final Comparator<ScoreTerm> comparator)
+      throws IOException {
+    List<LeafReaderContext> leaves = reader.leaves();
+    List<List<ScoreTerm>> leafTerms = new ArrayList<>(leaves.size());
+    if (executorService == null || leaves.size() < 2) {
+      for (LeafReaderContext ctx : leaves) {
+        leafTerms.add(collectLeaf(ctx, query, maxSize, comparator));
+      }
+      return leafTerms;
+    }
+
+    List<Future<List<ScoreTerm>>> futures = new ArrayList<>(leaves.size());
+    for (final LeafReaderContext ctx : leaves) {
+      futures.add(executorService.submit(new Callable<List<ScoreTerm>>() {
+        @Override
+        public List<ScoreTerm> call() throws Exception {
+          return collectLeaf(ctx, query, maxSize, comparator);
+        }
+      }));
+    }
+    for (Future<List<ScoreTerm>> future : futures) {
+      try {
+        leafTerms.add(future.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted while rewriting " + query, e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+      }
+    }
+    return leafTerms;
+  }
+
+  private List<ScoreTerm> collectLeaf(LeafReaderContext ctx, MultiTermQuery query,
+                                      int maxSize, Comparator<ScoreTerm> comparator) throws IOException {
+    Terms terms = ctx.reader().terms(query.getField());
+    if (terms == null) {
+      return Collections.emptyList();
+    }
+    //each leaf gets its own attributes so that nothing is shared across threads
+    TermsEnum termsEnum = getTermsEnum(query, terms, new AttributeSource());
+    BoostAttribute boostAtt = termsEnum.attributes().addAttribute(BoostAttribute.class);
+
+    if (order == Order.DOC_FREQ) {
+      List<ScoreTerm> scoreTerms = new ArrayList<>();
+      BytesRef bytes = termsEnum.next();
+      while (bytes != null) {
+        scoreTerms.add(newScoreTerm(bytes, boostAtt, termsEnum));
+        bytes = termsEnum.next();
+      }
+      return scoreTerms;
+    }
+
+    //least competitive term at the head
+    PriorityQueue<ScoreTerm> queue = new PriorityQueue<>(maxSize, Collections.reverseOrder(comparator));
+    BytesRef bytes = termsEnum.next();
+    while (bytes != null) {
+      float boost = boostAtt.getBoost();
+      if (queue.size() < maxSize) {
+        queue.add(newScoreTerm(bytes, boostAtt, termsEnum));
+      } else {
+        ScoreTerm least = queue.peek();
+        if (boost > least.boost || (boost == least.boost && bytes.compareTo(least.bytes) < 0)) {
+          queue.poll();
+          queue.add(newScoreTerm(bytes, boostAtt, termsEnum));
+        }
+      }
+      bytes = termsEnum.next();
+    }
+    return new ArrayList<>(queue);
+  }
+
+  private static ScoreTerm newScoreTerm(BytesRef bytes, BoostAttribute boostAtt,
+                                        TermsEnum termsEnum) throws IOException {
+    return new ScoreTerm(BytesRef.deepCopyOf(bytes), boostAtt.getBoost(),
+        termsEnum.docFreq(), termsEnum.totalTermFreq(), termsEnum.termState());
+  }
+
+  /**
+   * @return comparator that puts the most competitive term first
+   */
+  private Comparator<ScoreTerm> getComparator() {
+    if (order == Order.DOC_FREQ) {
+      return new Comparator<ScoreTerm>() {
+        @Override
+        public int compare(ScoreTerm a, ScoreTerm b) {
+          int cmp = Integer.compare(b.docFreq, a.docFreq);
+          return (cmp != 0) ? cmp : a.bytes.compareTo(b.bytes);
+        }
+      };
+    }
+    return new Comparator<ScoreTerm>() {
+      @Override
+      public int compare(ScoreTerm a, ScoreTerm b) {
+        int cmp = Float.compare(b.boost, a.boost);
+        return (cmp != 0) ? cmp : a.bytes.compareTo(b.bytes);
+      }
+    };
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    ParallelTopTermsSpanRewrite that = (ParallelTopTermsSpanRewrite) o;
+    return size == that.size && order == that.order;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(size, order);
+  }
+
+  @Override
+  public String toString() {
+    return "ParallelTopTermsSpanRewrite{" +
+        "size=" + size +
+        ", order=" + order +
+        '}';
+  }
+
+  private static class ScoreTerm {
+    final BytesRef bytes;
+    final float boost;
+    int docFreq;
+    final long totalTermFreq;
+    final TermState termState;
+
+    ScoreTerm(BytesRef bytes, float boost, int docFreq, long totalTermFreq, TermState termState) {
+      this.bytes = bytes;
+      this.boost = boost;
+      this.docFreq = docFreq;
+      this.totalTermFreq = totalTermFreq;
+      this.termState = termState;
+    }
+  }
+
+  private static class MergedTerm extends ScoreTerm {
+    final TermStates termStates;
+
+    MergedTerm(BytesRef bytes, float boost, TermStates termStates) {
+      super(bytes, boost, 0, 0, null);
+      this.termStates = termStates;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.queryparser.spans;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.lucene.search.Query;
+
+/**
+ * Thread safe least recently used cache of parsed queries that can be
+ * shared by any number of {@link SpanQueryParser}s.
+ * <p>
+ * Entries are keyed by the query string, the default field and the parser
+ * settings that affect the output of parsing (see
+ * {@link SpanQueryParserBase#getParseSettings(String)}).  Analyzers are
+ * compared by identity.
+ * <p>
+ * Queries are returned as is from the cache; callers must not modify them
+ * (e.g. with the deprecated setters on MultiTermQuery).
+ */
+public class ParsedQueryCache {
+
+  private final int maxEntries;
+  //access order
+  private final LinkedHashMap<Key, Query> map = new LinkedHashMap<>(16, 0.75f, true);
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * @param maxEntries maximum number of parsed queries to hold
+   */
+  public ParsedQueryCache(int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be > 0: " + maxEntries);
+    }
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * @param key key
+   * @return the cached query or null if there is none
+   */
+  public synchronized Query get(Key key) {
+    Query q = map.get(key);
+    if (q == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return q;
+  }
+
+  public synchronized void put(Key key, Query query) {
+    map.put(key, query);
+    Iterator<Query> it = map.values().iterator();
+    while (map.size() > maxEntries && it.hasNext()) {
+      it.next();
+      it.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Removes all entries
+   */
+  public synchronized void clear() {
+    map.clear();
+  }
+
+  /**
+   * @return number of cached queries
+   */
+  public synchronized int size() {
+    return map.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Key for a parsed query
+   */
+  public static final class Key {
+    private final String queryString;
+    private final String field;
+    private final List<Object> settings;
+    private final int hash;
+
+    /**
+     * @param queryString query string as passed to the parser
+     * @param field default field
+     * @param settings parser settings that affect the parsed query
+     */
+    public Key(String queryString, String field, List<Object> settings) {
+      this.queryString = queryString;
+      this.field = field;
+      this.settings = settings;
+      this.hash = Objects.hash(queryString, field, settings);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key) o;
+      return Objects.equals(queryString, key.queryString) &&
+          Objects.equals(field, key.field) &&
+          Objects.equals(settings, key.settings);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -16,14 +16,10 @@ package org.tallison.lucene.queryparser.spans;
  * limitations under the License.
  */
 
-import java.io.IOException;
-import java.io.PushbackReader;
-import java.io.Reader;
-import java.io.StringReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.EmptyStackException;
+import java.util.Deque;
 import java.util.List;
-import java.util.Stack;
 import org.apache.lucene.queryparser.classic.ParseException;
 
 class SpanQueryLexer {
@@ -85,10 +81,12 @@ class SpanQueryLexer {
   TOKEN_TYPE type = TOKEN_TYPE.UNSPECIFIED;
 
   int nearDepth = 0;
-  PushbackReader reader;
+  //the query string and the offset of the next char to read
+  char[] chars;
+  int pos;
   StringBuilder tokenBuffer = new StringBuilder();
   List<SQPToken> tokens = new ArrayList<>();
-  Stack<SQPOpenClause> stack = new Stack<>();
+  Deque<SQPOpenClause> stack = new ArrayDeque<>();
 
   public List<SQPToken> getTokens(String s) throws ParseException {
     if (s.trim().length() == 0) {
@@ -100,13 +98,10 @@ class SpanQueryLexer {
     resetTokenBuffer();
     nearDepth = 0;
     inDQuote = false;
-    reader = new PushbackReader(new StringReader(s), 11);//need to be able to push back string representation of integer
-    try {
-      while (nextToken()) {
-        //do nothing;
-      }
-    } catch (IOException e) {
-      throw new ParseException(e.getMessage());
+    chars = s.toCharArray();
+    pos = 0;
+    while (nextToken()) {
+      //do nothing;
     }
     if (! stack.isEmpty()) {
       throw new ParseException("Couldn't find matching end to: "+stack.pop().getType());
@@ -114,11 +109,11 @@ class SpanQueryLexer {
     return tokens;
   }
 
-  boolean nextToken() throws IOException, ParseException {
-    int c = reader.read();
+  boolean nextToken() throws ParseException {
+    int c = read();
     //slurp leading whitespace
     while (Character.isWhitespace(c)) {
-      c = reader.read();
+      c = read();
     }
 
     while (true) {
@@ -144,7 +139,7 @@ class SpanQueryLexer {
         case TILDE :
           if (tokenBuffer.length() > 0) {
             handleFuzzyTerm();
-            c = reader.read();
+            c = read();
             continue;
           }
           break;
@@ -181,7 +176,7 @@ class SpanQueryLexer {
           return readToMatchingEndToken(FORWARD_SLASH);
 
         case BACK_SLASH:
-          int next = reader.read();
+          int next = read();
           if (next == -1) {
             throw new ParseException("Can't end string with \\");
           } else if (next == U) {
@@ -191,7 +186,7 @@ class SpanQueryLexer {
             tokenBuffer.appendCodePoint(BACK_SLASH);
             tokenBuffer.appendCodePoint(next);
           }
-          c = reader.read();
+          c = read();
           continue;
 
         case COLON:
@@ -263,7 +258,7 @@ class SpanQueryLexer {
 
         case AMPERSAND :
           if (tokenBuffer.length() == 0 && nearDepth == 0) {
-            int n = reader.read();
+            int n = read();
             if (n == AMPERSAND && isNextBreak()) {
               flushBuffer();
               SQPBooleanOpToken andToken = new SQPBooleanOpToken(SpanQueryParserBase.CONJ_AND);
@@ -278,7 +273,7 @@ class SpanQueryLexer {
 
         case PIPE :
           if (tokenBuffer.length() == 0) {
-            int n = reader.read();
+            int n = read();
             if (n == PIPE && isNextBreak()) {
               flushBuffer();
               SQPBooleanOpToken orToken = new SQPBooleanOpToken(SpanQueryParserBase.CONJ_OR);
@@ -291,19 +286,19 @@ class SpanQueryLexer {
           }
         break;
       }
-      tokenBuffer.appendCodePoint(c);
+      tokenBuffer.append((char) c);
 
-      c = reader.read();
+      c = read();
     }
   }
 
-  private void handleFuzzyTerm() throws ParseException, IOException {
+  private void handleFuzzyTerm() throws ParseException {
     SQPFuzzyTerm term = new SQPFuzzyTerm(stripEscapes(tokenBuffer.toString()));
 
     if (wildcardChars > 0) {
       throw new ParseException("Need to escape wildcards in fuzzy terms.");
     }
-    int c = reader.read();
+    int c = read();
     if (c == GREATER_THAN) {
       term.setTranspositions(false);
     } else {
@@ -318,7 +313,7 @@ class SpanQueryLexer {
       }
       term.setMaxEdits(maxEditsInt);
     }
-    c = reader.read();
+    c = read();
     if (c == COMMA) {
       Integer prefixLen = tryToReadInteger();
       if (prefixLen == null) {
@@ -334,7 +329,7 @@ class SpanQueryLexer {
     resetTokenBuffer();
   }
 
-  private void handleDQuote() throws IOException, ParseException {
+  private void handleDQuote() throws ParseException {
     if (inDQuote) {
       inDQuote = false;
       handleCloseClause(SQPClause.TYPE.QUOTE);
@@ -344,20 +339,18 @@ class SpanQueryLexer {
     }
   }
 
-  private void handleCloseClause(SQPClause.TYPE closeType) throws IOException, ParseException {
+  private void handleCloseClause(SQPClause.TYPE closeType) throws ParseException {
     //flush the token buffer
     flushBuffer();
-    SQPOpenClause open = null;
-    try {
-      open = stack.pop();
-    } catch (EmptyStackException e) {
+    if (stack.isEmpty()) {
       throw new ParseException("Unable to find starting clause marker for this end: " + closeType.name());
     }
+    SQPOpenClause open = stack.pop();
     testMatchingOpenClose(open, closeType);
     SQPClause newClause = null;
 
     if (closeType == SQPClause.TYPE.PAREN) {
-      int next = reader.read();
+      int next = read();
       Integer minMatch = -1;
       if (next == TILDE) {
         if (nearDepth > 0) {
@@ -377,14 +370,14 @@ class SpanQueryLexer {
     } else {  //has to be a span near or span not
       nearDepth--;
       //next0
-      int n0 = reader.read();
+      int n0 = read();
       if (n0 == EXCLAMATION) { //span not
-        int n1 = reader.read();
+        int n1 = read();
         if (n1 == TILDE) {
           Integer notPost = null;
           Integer notPre = tryToReadInteger();
 
-          int n2 = reader.read();
+          int n2 = read();
           if (n2 == COMMA) {
             notPost = tryToReadInteger();
           } else {
@@ -399,7 +392,7 @@ class SpanQueryLexer {
         }
       } else if (n0 == TILDE) { //span with slop
         Boolean inOrder = false;
-        int n1 = reader.read();
+        int n1 = read();
         if (n1 == GREATER_THAN) {
           inOrder = true;
         } else {
@@ -445,20 +438,20 @@ class SpanQueryLexer {
     tokens.set(open.getTokenOffsetStart(), newClause);
   }
 
-  private boolean isNextWhitespaceOrEnd() throws IOException {
-    int n1 = reader.read();
+  private boolean isNextWhitespaceOrEnd() {
+    int n1 = read();
     if (n1 == -1) {
       return true;
     }
-    reader.unread(n1);
+    tryToUnread(n1);
 
     return Character.isWhitespace(n1);
   }
 
-  private boolean isNextBreak() throws IOException {
-    int n1 = reader.read();
+  private boolean isNextBreak() {
+    int n1 = read();
     if (Character.isWhitespace(n1)){
-      reader.unread(n1);
+      tryToUnread(n1);
       return true;
     }
     boolean response = false;
@@ -494,7 +487,7 @@ class SpanQueryLexer {
 
   private SQPBoostableOrPositionRangeToken tryToReadBoostOrPositionRange(
       SQPBoostableOrPositionRangeToken term)
-      throws ParseException, IOException {
+      throws ParseException {
     BoostPositionRange bpr = tryToReadBoostOrPositionRange(true);
     if (bpr == null) {
       return term;
@@ -508,7 +501,7 @@ class SpanQueryLexer {
 
 
   private BoostPositionRange tryToReadBoostOrPositionRange(boolean throwExceptionOnPartialRead)
-      throws ParseException, IOException {
+      throws ParseException {
 
     //^1.2@10..20  or @..10^1.2
     //try to read boost, then position range
@@ -533,14 +526,14 @@ class SpanQueryLexer {
 
   //tries to read a boost if it is there
   //returns null if no parseable boost
-  private Float tryToReadBoost() throws ParseException, IOException {
-    int c = reader.read();
+  private Float tryToReadBoost() throws ParseException {
+    int c = read();
     if (c == CARET) {
       Float boost = tryToReadUnsignedFloat();
       if (boost == null) {
         return boost;
       }
-      int next = reader.read();
+      int next = read();
       if (next == CARET) {
         throw new ParseException("Can't end boost with caret");
       }
@@ -558,18 +551,20 @@ class SpanQueryLexer {
    * returns null if no position range was found
    */
   private BoostPositionRange tryToReadPositionRange(boolean throwExceptionOnPartialRead)
-      throws ParseException, IOException {
-    int chr = reader.read();
+      throws ParseException {
+    int chr = read();
     if (chr != AT) {
       tryToUnread(chr);
       return null;
     }
     //we have @, look for period or integer
-    chr = reader.read();
+    chr = read();
     Integer start = null;
     Integer end = null;
+    int startOffset = pos;
     if (chr != PERIOD) { //maybe it's an integer @20.. ?
       tryToUnread(chr);
+      startOffset = pos;
       start = tryToReadInteger();
       if (start != null) {
         end = tryToReadEndPositionRange(start);
@@ -584,7 +579,7 @@ class SpanQueryLexer {
     if (end != null && end == -1) {
 
       if (start != null) {
-        tryToUnread(Integer.toString(start));
+        pos = startOffset;
       }
       return handlePartialRangeRead(throwExceptionOnPartialRead);
     }
@@ -615,13 +610,13 @@ class SpanQueryLexer {
 
   //returns -1 if there wasn't a ".." or if start was null and there was no end
   //returns null if there was a "..\b" with no value
-  private Integer tryToReadEndPositionRange(Integer start) throws IOException, ParseException {
-    int chr = reader.read();
+  private Integer tryToReadEndPositionRange(Integer start) throws ParseException {
+    int chr = read();
     if (chr != PERIOD) {
       tryToUnread(chr);
       return -1;
     }
-    int chr2 = reader.read();
+    int chr2 = read();
     if (chr2 != PERIOD) {
         //@.x -- not a range
       tryToUnread(chr2);
@@ -784,30 +779,30 @@ class SpanQueryLexer {
   //this reads everything to a matching end token, e.g. ' or /.
   //the targChar token is escaped by being doubled.
   //This unescapes the targChar
-  private boolean readToMatchingEndToken(int targChar) throws ParseException, IOException {
-    int c = reader.read();
+  private boolean readToMatchingEndToken(int targChar) throws ParseException {
+    int c = read();
     boolean hitEndOfString = false;
     while (true) {
       if (c == -1) {
         //won't work with bmp targChar!
         throw new ParseException("Didn't find matching: " + (char) targChar);
       } else if (c == targChar) {
-        int next = reader.read();
+        int next = read();
         if (next == -1) {
           hitEndOfString = true;
           break;
         } else if (next == targChar) {
           tokenBuffer.appendCodePoint(targChar);
-          c = reader.read();
+          c = read();
           continue;
         } else {
-          reader.unread(next);
+          tryToUnread(next);
           break;
         }
       }
 
       tokenBuffer.appendCodePoint(c);
-      c = reader.read();
+      c = read();
     }
     if (tokenBuffer.length() == 0) {
       throw new ParseException("must have some content between " + (char) targChar + "s");
@@ -827,11 +822,11 @@ class SpanQueryLexer {
     return !hitEndOfString;
   }
 
-  void flushBuffer() throws ParseException, IOException {
+  void flushBuffer() throws ParseException {
     flushBuffer(null);
   }
 
-  void flushBuffer(BoostPositionRange bpr) throws ParseException, IOException {
+  void flushBuffer(BoostPositionRange bpr) throws ParseException {
 
     if (tokenBuffer.length() == 0) {
       return;
@@ -884,7 +879,7 @@ class SpanQueryLexer {
     }
     //now trim escapes if there are no wildcard characters
     if (wildcardQuestionMarks == 0) {
-      term = stripEscapes(tokenBuffer.toString());
+      term = stripEscapes(term);
     }
 
     SQPToken token = null;
@@ -916,19 +911,22 @@ class SpanQueryLexer {
     resetTokenBuffer();
   }
 
-  private String stripEscapes(String term) throws IOException {
-    Reader r = new StringReader(term);
-    StringBuilder sb = new StringBuilder();
-    int c = r.read();
-    while (c != -1) {
+  private static String stripEscapes(String term) {
+    int i = term.indexOf(BACK_SLASH);
+    if (i < 0) {
+      return term;
+    }
+    StringBuilder sb = new StringBuilder(term.length());
+    sb.append(term, 0, i);
+    while (i < term.length()) {
+      char c = term.charAt(i++);
       if (c == BACK_SLASH) {
-        c = r.read();
-        if (c == -1) {
+        if (i == term.length()) {
           break;
         }
+        c = term.charAt(i++);
       }
-      sb.appendCodePoint(c);
-      c = r.read();
+      sb.append(c);
     }
     return sb.toString();
   }
@@ -952,7 +950,7 @@ class SpanQueryLexer {
     type = TOKEN_TYPE.UNSPECIFIED;
   }
 
-  private void tryToAddField(String term) throws ParseException, IOException {
+  private void tryToAddField(String term) throws ParseException {
 
     if (term.length() == 0) {
       throw new ParseException("Field name must have length > 0");
@@ -1002,48 +1000,42 @@ class SpanQueryLexer {
     }
   }
 
-  void tryToUnread(String s) throws IOException {
-    final int length = s.length();
-    List<Integer> ints = new ArrayList<>();
-    for (int offset = 0; offset < length; ) {
-      final int codepoint = s.codePointAt(offset);
-      ints.add(codepoint);
-      offset += Character.charCount(codepoint);
-    }
-    for (int i = ints.size()-1; i > -1; i--) {
-      tryToUnread(ints.get(i));
+  int read() {
+    if (pos < chars.length) {
+      return chars[pos++];
     }
+    return -1;
   }
 
-  void tryToUnread(int c) throws IOException {
+  void tryToUnread(int c) {
     if (c != -1) {
-      reader.unread(c);
+      pos--;
     }
   }
 
   //returns null if reading an integer fails
-  Integer tryToReadInteger() throws IOException {
-    StringBuilder sb = new StringBuilder();
-    while (true) {
-      int c = reader.read();
-      int val = c-48;
-      if (val >= 0 && val <= 9) {
-        sb.append(val);
-      } else {
-        tryToUnread(c);
-        break;
+  Integer tryToReadInteger() {
+    int start = pos;
+    int value = 0;
+    while (pos < chars.length && chars[pos] >= '0' && chars[pos] <= '9') {
+      int digit = chars[pos++] - '0';
+      if (value > (Integer.MAX_VALUE - digit) / 10) {
+        //overflow, let parseInt throw as it always has
+        while (pos < chars.length && chars[pos] >= '0' && chars[pos] <= '9') {
+          pos++;
+        }
+        return Integer.parseInt(new String(chars, start, pos - start));
       }
+      value = value * 10 + digit;
     }
-    if (sb.length() == 0) {
+    if (pos == start) {
       return null;
     }
-    return Integer.parseInt(sb.toString());
+    return value;
   }
 
-  Float tryToReadUnsignedFloat() throws ParseException, IOException {
-    StringBuilder sb = new StringBuilder();
-    boolean seenDecimalPoint = false;
-    int c = reader.read();
+  Float tryToReadUnsignedFloat() throws ParseException {
+    int c = read();
     if (c == MINUS) {
       throw new ParseException("Negative values not allowed.");
     } else if (c == PLUS) {
@@ -1051,40 +1043,36 @@ class SpanQueryLexer {
     } else {
       tryToUnread(c);
     }
-    while (true) {
-      c = reader.read();
-      int val = c-48;
-      if (c == DECIMAL_POINT) {
+    int start = pos;
+    boolean seenDecimalPoint = false;
+    while (pos < chars.length) {
+      char ch = chars[pos];
+      if (ch == DECIMAL_POINT) {
         if (seenDecimalPoint) {
-          tryToUnread(c);
           break;
-        } else {
-          seenDecimalPoint = true;
-          sb.appendCodePoint(DECIMAL_POINT);
         }
-      } else if (val >= 0 && val <= 9) {
-        sb.append(val);
-      } else {
-        tryToUnread(c);
+        seenDecimalPoint = true;
+      } else if (ch < '0' || ch > '9') {
         break;
       }
+      pos++;
     }
-    String tmpFloatString = sb.toString();
-    if (tmpFloatString.length() == 0) {
+    int len = pos - start;
+    if (len == 0) {
       return null;
-    } else if (tmpFloatString.equals(".")) {
+    } else if (len == 1 && chars[start] == DECIMAL_POINT) {
       //or do we want to unread and move on?
       //tryToUnread(DECIMAL);
       //return null;
       throw new ParseException("Single \".\" appears where there should be a float!");
     }
-    return Float.parseFloat(tmpFloatString);
+    return Float.parseFloat(new String(chars, start, len));
   }
 
-  void tryToReadEscapedUnicode() throws ParseException, IOException {
+  void tryToReadEscapedUnicode() throws ParseException {
     StringBuilder sb = new StringBuilder();
     for (int i = 0; i < 4; i++) {
-      int c = reader.read();
+      int c = read();
       if (c == -1) {
         throw new ParseException("Invalid escaped unicode character. >"+sb.toString()+"< and the end of the query string");
       }
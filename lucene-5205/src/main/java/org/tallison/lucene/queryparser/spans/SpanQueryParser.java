@@ -18,7 +18,9 @@ package org.tallison.lucene.queryparser.spans;
 
 
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.queryparser.classic.ParseException;
@@ -210,6 +212,8 @@ public class SpanQueryParser extends AbstractSpanQueryParser implements QueryPar
 
   private String topLevelQueryString;
 
+  private ParsedQueryCache cache = null;
+
 
   public SpanQueryParser(String f, Analyzer a, Analyzer multitermAnalyzer) {
     super(f, a, multitermAnalyzer);
@@ -218,11 +222,36 @@ public class SpanQueryParser extends AbstractSpanQueryParser implements QueryPar
   @Override
   public Query parse(String s) throws ParseException {
     topLevelQueryString = s;
+    ParsedQueryCache.Key key = null;
+    if (cache != null) {
+      key = new ParsedQueryCache.Key(s, getField(), getParseSettings(getField()));
+      Query cached = cache.get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
     Query q = _parse(s);
     q = rewriteAllNegative(q);
+    if (cache != null) {
+      cache.put(key, q);
+    }
     return q;
   }
 
+  /**
+   * Set a cache for parsed queries.  The cache may be shared across
+   * parsers and threads.
+   *
+   * @param cache cache to use, or null (the default) for no caching
+   */
+  public void setParsedQueryCache(ParsedQueryCache cache) {
+    this.cache = cache;
+  }
+
+  public ParsedQueryCache getParsedQueryCache() {
+    return cache;
+  }
+
   private Query _parse(String queryString) throws ParseException {
     if (queryString == null || queryString.equals("")) {
       return getEmptySpanQuery();
@@ -230,92 +259,112 @@ public class SpanQueryParser extends AbstractSpanQueryParser implements QueryPar
     SpanQueryLexer lexer = new SpanQueryLexer();
     List<SQPToken> tokens = lexer.getTokens(queryString);
     SQPClause overallClause = new SQPOrClause(0, tokens.size());
-    return parseRecursively(tokens, getField(), overallClause);
+    return parseClause(tokens, getField(), overallClause);
   }
 
-  private Query parseRecursively(final List<SQPToken> tokens,
-      String field, SQPClause clause)
+  /**
+   * Parses a clause and its nested clauses.  Nested clauses are handled with
+   * an explicit stack rather than by recursion so that deeply nested
+   * queries can't overflow the call stack.
+   */
+  private Query parseClause(final List<SQPToken> tokens,
+      String field, SQPClause topClause)
           throws ParseException {
-    int start = clause.getTokenOffsetStart();
-    int end = clause.getTokenOffsetEnd();
-    testStartEnd(tokens, start, end);
-
-    //if this is a positionRange query, it needs to be handled
-    //by the span parser
-    if (clause.getStartPosition() != null || clause.getEndPosition() != null) {
-      return _parsePureSpanClause(tokens, field, clause);
-    }
+    Deque<BooleanClauseFrame> frames = new ArrayDeque<>();
+    Query ret = openClause(tokens, field, topClause, frames);
+    while (! frames.isEmpty()) {
+      BooleanClauseFrame frame = frames.peek();
+      if (frame.i >= frame.clause.getTokenOffsetEnd()) {
+        frames.pop();
+        Query q = closeClause(frame);
+        if (frames.isEmpty()) {
+          ret = q;
+        } else {
+          frames.peek().add(applyOrBoost(q, (SQPOrClause)frame.clause));
+        }
+        continue;
+      }
 
-    List<BooleanClause> clauses = new ArrayList<>();
-    int conj = CONJ_NONE;
-    int mods = MOD_NONE;
-    String currField = field;
-    int i = start;
-    while (i < end) {
       Query q = null;
-      SQPToken token = tokens.get(i);
+      SQPToken token = tokens.get(frame.i);
 
       //if boolean defaultOperator or field, update local buffers and continue
       if (token instanceof SQPBooleanOpToken) {
         SQPBooleanOpToken t = (SQPBooleanOpToken)token;
         if (t.isConj()) {
-          conj = t.getType();
-          mods = MOD_NONE;
+          frame.conj = t.getType();
+          frame.mods = MOD_NONE;
         } else {
-          mods = t.getType();
+          frame.mods = t.getType();
         }
-        i++;
+        frame.i++;
         continue;
       } else if (token instanceof SQPField) {
-        currField = ((SQPField)token).getField();
-        i++;
+        frame.currField = ((SQPField)token).getField();
+        frame.i++;
         continue;
       }
-      //if or clause, recurse through tokens
+      //if or clause, push a frame for it
       if (token instanceof SQPOrClause) {
-        //recurse!
         SQPOrClause tmpOr = (SQPOrClause)token;
-        q = parseRecursively(tokens, currField, tmpOr);
-        //if it isn't already boosted, apply the boost from the token
-        if (!(q instanceof BoostQuery) && !(q instanceof SpanBoostQuery) &&
-            tmpOr.getBoost() != null) {
-          if (q instanceof SpanQuery) {
-            q = new SpanBoostQuery((SpanQuery)q, tmpOr.getBoost());
-          } else {
-            q = new BoostQuery(q, tmpOr.getBoost());
-          }
+        frame.i = tmpOr.getTokenOffsetEnd();
+        int depth = frames.size();
+        q = openClause(tokens, frame.currField, tmpOr, frames);
+        if (frames.size() > depth) {
+          //the child's query is added when its frame is closed
+          continue;
         }
-        i = tmpOr.getTokenOffsetEnd();
+        q = applyOrBoost(q, tmpOr);
       } else if (token instanceof SQPNearClause) {
         SQPNearClause tmpNear = (SQPNearClause)token;
-        q = _parsePureSpanClause(tokens, currField, tmpNear);
-        i = tmpNear.getTokenOffsetEnd();
+        q = _parsePureSpanClause(tokens, frame.currField, tmpNear);
+        frame.i = tmpNear.getTokenOffsetEnd();
       } else if (token instanceof SQPNotNearClause) {
         SQPNotNearClause tmpNotNear = (SQPNotNearClause)token;
-        q = _parsePureSpanClause(tokens, currField, tmpNotNear);
-        i = tmpNotNear.getTokenOffsetEnd();
+        q = _parsePureSpanClause(tokens, frame.currField, tmpNotNear);
+        frame.i = tmpNotNear.getTokenOffsetEnd();
       } else if (token instanceof SQPTerminal) {
         SQPTerminal tmpTerm = (SQPTerminal)token;
         if (tmpTerm.getStartPosition() != null || tmpTerm.getEndPosition() != null) {
-          q = buildSpanTerminal(currField, tmpTerm);
+          q = buildSpanTerminal(frame.currField, tmpTerm);
         } else {
-          q = buildTerminal(currField, tmpTerm);
+          q = buildTerminal(frame.currField, tmpTerm);
         }
-        i++;
+        frame.i++;
       } else {
         //throw exception because this could lead to an infinite loop
         //if a new token type is added but not properly accounted for.
         throw new IllegalArgumentException("Don't know how to process token of this type: " + token.getClass());
       }
-      if (!isEmptyQuery(q)) {
-        addClause(clauses, conj, mods, q);
-      }
-      //reset mods and conj and field
-      mods = MOD_NONE;
-      conj = CONJ_NONE;
-      currField = field;
+      frame.add(q);
     }
+    return ret;
+  }
 
+  /**
+   * Either parses a clause with a position range as a pure span clause
+   * or pushes a new frame for the clause.
+   *
+   * @return the query if no frame was pushed
+   */
+  private Query openClause(final List<SQPToken> tokens, String field,
+                           SQPClause clause, Deque<BooleanClauseFrame> frames)
+      throws ParseException {
+    int start = clause.getTokenOffsetStart();
+    int end = clause.getTokenOffsetEnd();
+    testStartEnd(tokens, start, end);
+
+    //if this is a positionRange query, it needs to be handled
+    //by the span parser
+    if (clause.getStartPosition() != null || clause.getEndPosition() != null) {
+      return _parsePureSpanClause(tokens, field, clause);
+    }
+    frames.push(new BooleanClauseFrame(clause, field));
+    return null;
+  }
+
+  private Query closeClause(BooleanClauseFrame frame) throws ParseException {
+    List<BooleanClause> clauses = frame.clauses;
     if (clauses.size() == 0) {
       return getEmptySpanQuery();
     }
@@ -333,8 +382,8 @@ public class SpanQueryParser extends AbstractSpanQueryParser implements QueryPar
       throw new ParseException(e.getMessage());
     }
 
-    if (clause instanceof SQPOrClause) {
-      SQPOrClause orClause = (SQPOrClause)clause;
+    if (frame.clause instanceof SQPOrClause) {
+      SQPOrClause orClause = (SQPOrClause)frame.clause;
       if (orClause.getMinimumNumberShouldMatch() != null) {
         bq.setMinimumNumberShouldMatch(orClause.getMinimumNumberShouldMatch());
       }
@@ -343,6 +392,18 @@ public class SpanQueryParser extends AbstractSpanQueryParser implements QueryPar
     return bq.build();
   }
 
+  //if it isn't already boosted, apply the boost from the token
+  private Query applyOrBoost(Query q, SQPOrClause tmpOr) {
+    if (!(q instanceof BoostQuery) && !(q instanceof SpanBoostQuery) &&
+        tmpOr.getBoost() != null) {
+      if (q instanceof SpanQuery) {
+        q = new SpanBoostQuery((SpanQuery)q, tmpOr.getBoost());
+      } else {
+        q = new BoostQuery(q, tmpOr.getBoost());
+      }
+    }
+    return q;
+  }
 
   private Query testAllDocs(String tmpField, SQPTerminal tmpTerm) {
     if (tmpField.equals("*") && 
@@ -470,4 +531,35 @@ public class SpanQueryParser extends AbstractSpanQueryParser implements QueryPar
   }
 
 
+
+  /**
+   * Boolean clause whose children are still being parsed
+   */
+  private class BooleanClauseFrame {
+    private final SQPClause clause;
+    private final String field;
+    private final List<BooleanClause> clauses = new ArrayList<>();
+    //offset of the next token to parse
+    private int i;
+    private int conj = CONJ_NONE;
+    private int mods = MOD_NONE;
+    private String currField;
+
+    BooleanClauseFrame(SQPClause clause, String field) {
+      this.clause = clause;
+      this.field = field;
+      this.i = clause.getTokenOffsetStart();
+      this.currField = field;
+    }
+
+    void add(Query q) {
+      if (!isEmptyQuery(q)) {
+        addClause(clauses, conj, mods, q);
+      }
+      //reset mods and conj and field
+      mods = MOD_NONE;
+      conj = CONJ_NONE;
+      currField = field;
+    }
+  }
 }
@@ -199,7 +199,7 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
     } else {
       Query q = buildTerminal(fieldName, terminal);
       if (q instanceof MultiTermQuery) {
-        spanQuery = new SpanMultiTermQueryWrapper<>((MultiTermQuery) q);
+        spanQuery = newSpanMultiTermQueryWrapper((MultiTermQuery) q);
       } else if (q instanceof TermQuery) {
         //this happens when fuzzy query has a fuzzy = 0, and a TermQuery is generated
         //straight from the analyzed str
@@ -212,6 +212,22 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
     return spanQuery;
   }
 
+  /**
+   * Wraps a MultiTermQuery as a SpanQuery.  If the query's rewrite method
+   * is itself a {@link SpanMultiTermQueryWrapper.SpanRewriteMethod}, e.g.
+   * {@link ParallelTopTermsSpanRewrite}, the wrapper uses it instead of its default.
+   *
+   * @param mtq multiterm query
+   * @return wrapped query
+   */
+  private SpanQuery newSpanMultiTermQueryWrapper(MultiTermQuery mtq) {
+    SpanMultiTermQueryWrapper<MultiTermQuery> wrapper = new SpanMultiTermQueryWrapper<>(mtq);
+    if (mtq.getRewriteMethod() instanceof SpanMultiTermQueryWrapper.SpanRewriteMethod) {
+      wrapper.setRewriteMethod((SpanMultiTermQueryWrapper.SpanRewriteMethod) mtq.getRewriteMethod());
+    }
+    return wrapper;
+  }
+
   SpanQuery addBoostOrPositionRangeIfExists(SpanQuery spanQuery, SQPBoostableOrPositionRangeToken token) {
     if (spanQuery == null) {
       return spanQuery;
@@ -604,6 +620,28 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
     return false;
   }
 
+  /**
+   * Settings that change the output of parsing.  These are part of the key
+   * for a {@link ParsedQueryCache}.  Analyzers are compared by identity.
+   * <p>
+   * Subclasses that add settings, or that override per-field hooks such as
+   * {@link #getAnalyzer(String)} or {@link #getMultiTermRewriteMethod(String)}
+   * based on their own state, should add that state here.
+   *
+   * @param field default field
+   * @return list of settings
+   */
+  protected List<Object> getParseSettings(String field) {
+    return Arrays.asList(
+        getAnalyzer(field), getMultiTermAnalyzer(field),
+        getMultiTermRewriteMethod(field), defaultOperator,
+        defaultPhraseSlop, spanNearMaxDistance, spanNotNearMaxDistance,
+        maxExpansions, fuzzyMaxEdits, fuzzyPrefixLength, fuzzyIsTranspositions,
+        allowLeadingWildcard, autoGeneratePhraseQueries, analyzeRangeTerms,
+        getEnablePositionIncrements(), getEnableGraphQueries(),
+        getAutoGenerateMultiTermSynonymsPhraseQuery());
+  }
+
   /**
    *
    * @return maximum distance allowed for a SpanNear query.  Can return negative values.
@@ -32,6 +32,9 @@ import org.apache.lucene.util.StringHelper;
 import org.apache.lucene.util.UnicodeUtil;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * <p>This is a copy paste from Lucene 6.x branch with some
@@ -141,9 +144,26 @@ public final class SlowFuzzyTermsEnum extends TermsEnum {
         return actualEnum.next();
     }
 
+    @Override
+    public AttributeSource attributes() {
+        //the boost is set on the actual enum's attributes
+        return actualEnum.attributes();
+    }
+
 
     /**
      * Implement fuzzy enumeration with linear brute force.
+     * <p>
+     * Every term with the prefix is still visited, but each one is
+     * rejected as cheaply as possible: first on its length, before it is
+     * converted to UTF-32, and then with an edit distance computation that
+     * gives up as soon as the distance is known to exceed maxEdits.  If the
+     * text after the prefix is at most 64 code points, the distance is computed
+     * with Myers' bit-parallel algorithm (as extended by Hyyr&ouml; to
+     * Levenshtein distance), which handles a whole column of the
+     * dynamic programming matrix per candidate character.  Otherwise only
+     * the diagonal band of width 2 * maxEdits + 1 of the matrix is
+     * computed (Ukkonen).
      */
     private class LinearFuzzyTermsEnum extends FilteredTermsEnum {
         /* Allows us save time required to create a new array
@@ -155,6 +175,13 @@ public final class SlowFuzzyTermsEnum extends TermsEnum {
         // this is the text, minus the prefix
         private final int[] text;
 
+        // bit-parallel match masks of the text, if it fits in a long:
+        // bit i is set if text[i] is the code point
+        private final boolean bitParallel;
+        private final long[] asciiMasks;
+        private final int[] codePoints;
+        private final long[] codePointMasks;
+
         private final BoostAttribute boostAtt =
                 attributes().addAttribute(BoostAttribute.class);
 
@@ -178,6 +205,27 @@ public final class SlowFuzzyTermsEnum extends TermsEnum {
             this.d = new int[this.text.length + 1];
             this.p = new int[this.text.length + 1];
 
+            this.bitParallel = text.length > 0 && text.length <= Long.SIZE;
+            this.asciiMasks = new long[128];
+            final Map<Integer, Long> masks = new TreeMap<>();
+            if (bitParallel) {
+                for (int i = 0; i < text.length; i++) {
+                    if (text[i] < asciiMasks.length) {
+                        asciiMasks[text[i]] |= 1L << i;
+                    } else {
+                        Long mask = masks.get(text[i]);
+                        masks.put(text[i], (mask == null ? 0L : mask) | 1L << i);
+                    }
+                }
+            }
+            this.codePoints = new int[masks.size()];
+            this.codePointMasks = new long[masks.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Long> e : masks.entrySet()) {
+                codePoints[i] = e.getKey();
+                codePointMasks[i++] = e.getValue();
+            }
+
             setInitialSeekTerm(prefixBytesRef);
         }
 
@@ -201,6 +249,12 @@ public final class SlowFuzzyTermsEnum extends TermsEnum {
         @Override
         protected final AcceptStatus accept(BytesRef term) {
             if (StringHelper.startsWith(term, prefixBytesRef)) {
+                final int codePointCount = UnicodeUtil.codePointCount(term);
+                //just adding or deleting the characters that make up the
+                //difference in length takes too many edits
+                if (Math.abs(codePointCount - termLength) > maxEdits) {
+                    return AcceptStatus.NO;
+                }
                 utf32.copyUTF8Bytes(term);
                 final int distance = calcDistance(utf32.ints(), realPrefixLength, utf32.length() - realPrefixLength);
 
@@ -213,7 +267,6 @@ public final class SlowFuzzyTermsEnum extends TermsEnum {
                     return AcceptStatus.NO;
                 }
 
-                final int codePointCount = UnicodeUtil.codePointCount(term);
                 float similarity = 1.0f - (float) distance / (float) Math.min(codePointCount, termLength);
                 boostAtt.setBoost(similarity);
                 return AcceptStatus.YES;
@@ -257,8 +310,6 @@ public final class SlowFuzzyTermsEnum extends TermsEnum {
                 return n;
             }
 
-
-
             if (maxEdits < Math.abs(m-n)) {
                 //just adding the characters of m to n or vice-versa results in
                 //too many edits
@@ -269,33 +320,89 @@ public final class SlowFuzzyTermsEnum extends TermsEnum {
                 //without looking at it.
                 return Integer.MIN_VALUE;
             }
+            if (bitParallel) {
+                return calcBitParallelDistance(target, offset, m);
+            }
+            return calcBandedDistance(target, offset, m);
+        }
+
+        /**
+         * Myers/Hyyr&ouml; bit-parallel Levenshtein distance.  Bit i of the
+         * vertical deltas is the difference between rows i + 1 and i of the current
+         * column of the matrix, and the last row of each column is tracked in score.
+         */
+        private int calcBitParallelDistance(final int[] target, int offset, int m) {
+            final int n = text.length;
+            final long last = 1L << (n - 1);
+            long pv = -1L;
+            long mv = 0L;
+            int score = n;
+            for (int j = 0; j < m; j++) {
+                final long eq = getMask(target[offset + j]);
+                final long xv = eq | mv;
+                final long xh = (((eq & pv) + pv) ^ pv) | eq;
+                long ph = mv | ~(xh | pv);
+                long mh = pv & xh;
+                if ((ph & last) != 0) {
+                    score++;
+                } else if ((mh & last) != 0) {
+                    score--;
+                }
+                //the top row goes up by one for each target character
+                ph = (ph << 1) | 1L;
+                mh = mh << 1;
+                pv = mh | ~(xv | ph);
+                mv = ph & xv;
+                //each remaining target character can lower the score by at most one
+                if (score - (m - j - 1) > maxEdits) {
+                    return Integer.MIN_VALUE;
+                }
+            }
+            return score;
+        }
+
+        private long getMask(int codePoint) {
+            if (codePoint < asciiMasks.length) {
+                return asciiMasks[codePoint];
+            }
+            int i = Arrays.binarySearch(codePoints, codePoint);
+            return (i < 0) ? 0L : codePointMasks[i];
+        }
+
+        /**
+         * Dynamic programming over only the cells within maxEdits of the
+         * diagonal; cells outside the band can't be on a path with maxEdits
+         * or fewer edits.  Values are capped at maxEdits + 1.
+         */
+        private int calcBandedDistance(final int[] target, int offset, int m) {
+            final int n = text.length;
+            final int k = maxEdits;
+            final int tooFar = k + 1;
 
             // init matrix d
-            for (int i = 0; i <=n; ++i) {
-                p[i] = i;
+            for (int i = 0; i <= n; ++i) {
+                p[i] = Math.min(i, tooFar);
             }
 
             // start computing edit distance
-            for (int j = 1; j<=m; ++j) { // iterates through target
-                int bestPossibleEditDistance = m;
-                final int t_j = target[offset+j-1]; // jth character of t
-                d[0] = j;
-
-                for (int i=1; i<=n; ++i) { // iterates through text
-                    // minimum of cell to the left+1, to the top+1, diagonally left and up +(0|1)
-                    if (t_j != text[i-1]) {
-                        d[i] = Math.min(Math.min(d[i-1], p[i]),  p[i-1]) + 1;
-                    } else {
-                        d[i] = Math.min(Math.min(d[i-1]+1, p[i]+1),  p[i-1]);
-                    }
-                    bestPossibleEditDistance = Math.min(bestPossibleEditDistance, d[i]);
+            for (int j = 1; j <= m; ++j) { // iterates through target
+                final int t_j = target[offset + j - 1]; // jth character of t
+                final int lo = Math.max(1, j - k);
+                final int hi = Math.min(n, j + k);
+                d[lo - 1] = (lo == 1) ? Math.min(j, tooFar) : tooFar;
+                //the best that the final cell can be, given this row: a cell's value
+                //plus the difference in what remains of the two strings (Ukkonen)
+                int bestPossibleEditDistance = (lo == 1) ? d[0] + Math.abs(n - (m - j)) : tooFar;
+
+                for (int i = lo; i <= hi; ++i) { // iterates through text
+                    final int above = (i <= j - 1 + k) ? p[i] : tooFar;
+                    final int diagonal = (t_j == text[i - 1]) ? p[i - 1] : p[i - 1] + 1;
+                    d[i] = Math.min(Math.min(Math.min(d[i - 1], above) + 1, diagonal), tooFar);
+                    bestPossibleEditDistance = Math.min(bestPossibleEditDistance,
+                            d[i] + Math.abs((n - i) - (m - j)));
                 }
 
-                //After calculating row i, the best possible edit distance
-                //can be found by found by finding the smallest value in a given column.
-                //If the bestPossibleEditDistance is greater than the max distance, abort.
-
-                if (j > maxEdits && bestPossibleEditDistance > maxEdits) {  //equal is okay, but not greater
+                if (bestPossibleEditDistance > k) {
                     //the closest the target can be to the text is just too far away.
                     //this target is leaving the party early.
                     return Integer.MIN_VALUE;
@@ -20,29 +20,39 @@ package org.tallison.lucene.queryparser.spans;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.MockAnalyzer;
 import org.apache.lucene.analysis.MockTokenFilter;
 import org.apache.lucene.analysis.MockTokenizer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.NoMergePolicy;
 import org.apache.lucene.index.RandomIndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.FuzzyQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiTermQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.NamedThreadFactory;
 import org.apache.lucene.util.TestUtil;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -235,6 +245,142 @@ public class TestOverallSpanQueryParser extends LuceneTestCase {
     compareHits("(whan AND aprile) (shoures NOT perced)", 3, 4);
   }
 
+  public void testDeeplyNested() throws Exception {
+    //deep enough to overflow the stack if clauses were parsed recursively
+    int depth = 20000;
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      sb.append("(quick ");
+    }
+    sb.append("dog");
+    for (int i = 0; i < depth; i++) {
+      sb.append(")");
+    }
+    Query q = PARSER.parse(sb.toString());
+    int levels = 0;
+    while (q instanceof BooleanQuery) {
+      List<BooleanClause> clauses = ((BooleanQuery) q).clauses();
+      assertEquals(2, clauses.size());
+      assertEquals(new TermQuery(new Term(FIELD1, "quick")), clauses.get(0).getQuery());
+      q = clauses.get(1).getQuery();
+      levels++;
+    }
+    assertEquals(depth, levels);
+    assertEquals(new TermQuery(new Term(FIELD1, "dog")), q);
+  }
+
+  public void testParallelTopTermsRewrite() throws Exception {
+    ExecutorService executorService = Executors.newFixedThreadPool(2,
+        new NamedThreadFactory("TestOverallSpanQueryParser"));
+    try {
+      SpanQueryParser p = new SpanQueryParser(FIELD1, ANALYZER, MULTITERM_ANALYZER);
+      p.setMultiTermRewriteMethod(new ParallelTopTermsSpanRewrite(50,
+          ParallelTopTermsSpanRewrite.Order.BOOST, executorService));
+      compareHits(p, "quick AND [bruwn~1 AND (f?x do?)]", 0, 1);
+      compareHits(p, "[(bi* d*) fever]", 10, 11, 12);
+      compareHits(p, "shoures AND p*ced", 3, 4, 5);
+
+      //all wildcard terms have the same boost, so the tie goes to "bieber"
+      p.setMultiTermRewriteMethod(new ParallelTopTermsSpanRewrite(1,
+          ParallelTopTermsSpanRewrite.Order.BOOST, executorService));
+      compareHits(p, "b*", 11);
+
+      //"blah" has the highest docFreq of the b* terms
+      p.setMultiTermRewriteMethod(new ParallelTopTermsSpanRewrite(1,
+          ParallelTopTermsSpanRewrite.Order.DOC_FREQ, executorService));
+      compareHits(p, "b*", 10, 11, 12, 13);
+    } finally {
+      executorService.shutdown();
+      executorService.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  public void testParallelTopTermsRewriteMultipleSegments() throws Exception {
+    //the shared index is usually a single segment, which runs on the calling thread
+    Directory directory = newDirectory();
+    IndexWriter writer = new IndexWriter(directory, newIndexWriterConfig(ANALYZER)
+        .setMaxBufferedDocs(2)
+        .setMergePolicy(NoMergePolicy.INSTANCE));
+    int numDocs = atLeast(50);
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder sb = new StringBuilder();
+      int numWords = TestUtil.nextInt(random(), 1, 10);
+      for (int j = 0; j < numWords; j++) {
+        //skewed so that docFreqs differ within and across segments
+        sb.append(" b").append(random().nextInt(1 + random().nextInt(100)));
+      }
+      Document d = new Document();
+      d.add(newTextField(FIELD1, sb.toString(), Field.Store.NO));
+      writer.addDocument(d);
+    }
+    writer.close();
+
+    IndexReader reader = DirectoryReader.open(directory);
+    assertTrue(reader.leaves().size() > 1);
+    //the rewritten terms' states are tied to this reader, so don't wrap it
+    IndexSearcher searcher = new IndexSearcher(reader);
+    ExecutorService executorService = Executors.newFixedThreadPool(3,
+        new NamedThreadFactory("TestOverallSpanQueryParser"));
+    try {
+      MultiTermQuery[] queries = new MultiTermQuery[]{
+          new WildcardQuery(new Term(FIELD1, "b*")),
+          new WildcardQuery(new Term(FIELD1, "b1*")),
+          new FuzzyQuery(new Term(FIELD1, "b10"), 1),
+          new FuzzyQuery(new Term(FIELD1, "b55"), 2)
+      };
+      for (ParallelTopTermsSpanRewrite.Order order : ParallelTopTermsSpanRewrite.Order.values()) {
+        for (int size : new int[]{1, 5, 1000}) {
+          ParallelTopTermsSpanRewrite sequential = new ParallelTopTermsSpanRewrite(size, order, null);
+          ParallelTopTermsSpanRewrite parallel =
+              new ParallelTopTermsSpanRewrite(size, order, executorService);
+          for (MultiTermQuery q : queries) {
+            SpanQuery expected = sequential.rewrite(reader, q);
+            SpanQuery actual = parallel.rewrite(reader, q);
+            assertEquals(order + " " + size + " " + q, expected, actual);
+            assertEquals(searcher.count(expected), searcher.count(actual));
+          }
+        }
+      }
+    } finally {
+      executorService.shutdown();
+      executorService.awaitTermination(10, TimeUnit.SECONDS);
+      reader.close();
+      directory.close();
+    }
+  }
+
+  public void testParsedQueryCache() throws Exception {
+    ParsedQueryCache cache = new ParsedQueryCache(2);
+    SpanQueryParser p = new SpanQueryParser(FIELD1, ANALYZER, MULTITERM_ANALYZER);
+    p.setParsedQueryCache(cache);
+
+    String s = "+f1:[fever (bieber [jo*n travlota~1] disc*)]!~2,5 +f2:(ten eleven twelve thirteen)";
+    Query q = p.parse(s);
+    assertEquals(0, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertSame(q, p.parse(s));
+    assertEquals(1, cache.getHits());
+    compareHits(p, s, 12);
+
+    //another parser with the same settings shares entries
+    SpanQueryParser p2 = new SpanQueryParser(FIELD1, ANALYZER, MULTITERM_ANALYZER);
+    p2.setParsedQueryCache(cache);
+    assertSame(q, p2.parse(s));
+
+    //settings that change the output are part of the key
+    p2.setDefaultOperator(QueryParser.Operator.AND);
+    Query and = p2.parse("quick dog");
+    assertNotSame(and, p.parse("quick dog"));
+    compareHits(p2, "quick dog", 1, 2);
+    compareHits(p, "quick dog", 0, 1, 2);
+
+    SpanQueryParser p3 = new SpanQueryParser(FIELD2, ANALYZER, MULTITERM_ANALYZER);
+    p3.setParsedQueryCache(cache);
+    assertNotSame(q, p3.parse(s));
+    assertEquals(2, cache.size());
+    assertTrue(cache.getEvictions() > 0);
+  }
+
   private void testForClause(List<BooleanClause> clauses, String term, Occur occur) {
     assertTrue(clauses.contains(
         new BooleanClause(
@@ -39,9 +39,11 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.spans.SpanNearQuery;
 import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.search.spans.SpanWeight;
@@ -231,6 +233,31 @@ public class TestSpanOnlyQueryParser extends SQPTestBase {
     countSpansDocs(p, "[jumped lazy dog]~2", 0, 0);
   }
 
+  public void testDeeplyNested() throws Exception {
+    //deep enough to overflow the stack if clauses were parsed recursively
+    int depth = 20000;
+    SpanOnlyParser p = new SpanOnlyParser(FIELD, noStopAnalyzer, lcMultiTermAnalyzer);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      sb.append("[brown ");
+    }
+    sb.append("dog");
+    for (int i = 0; i < depth; i++) {
+      sb.append("]~3");
+    }
+    Query q = p.parse(sb.toString());
+    int levels = 0;
+    while (q instanceof SpanNearQuery) {
+      SpanQuery[] clauses = ((SpanNearQuery) q).getClauses();
+      assertEquals(2, clauses.length);
+      assertEquals(new SpanTermQuery(new Term(FIELD, "brown")), clauses[0]);
+      q = clauses[1];
+      levels++;
+    }
+    assertEquals(depth, levels);
+    assertEquals(new SpanTermQuery(new Term(FIELD, "dog")), q);
+  }
+
   public void testNotNear() throws Exception {
     SpanOnlyParser p = new SpanOnlyParser(FIELD, noStopAnalyzer, lcMultiTermAnalyzer);
 
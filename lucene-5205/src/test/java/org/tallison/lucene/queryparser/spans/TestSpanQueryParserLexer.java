@@ -1136,6 +1136,10 @@ public class TestSpanQueryParserLexer extends LuceneTestCase {
     expected = new SQPTerm("y@10.hoo", false);
     executeSingleTokenTest("y@10.hoo", 0, expected);
 
+    //leading zeros are kept when this turns out not to be a range
+    expected = new SQPTerm("y@007.hoo", false);
+    executeSingleTokenTest("y@007.hoo", 0, expected);
+
     //try single quotes
     expected = new SQPTerm("yahoo@2..10", true);
     executeSingleTokenTest("'yahoo@2..10'", 0, expected);
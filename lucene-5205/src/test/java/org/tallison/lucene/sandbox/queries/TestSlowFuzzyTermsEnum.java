@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.sandbox.queries;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BoostAttribute;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.junit.Test;
+
+public class TestSlowFuzzyTermsEnum extends LuceneTestCase {
+
+  private static final String FIELD = "f";
+
+  @Test
+  public void testAgainstBruteForce() throws Exception {
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory);
+    List<String> words = new ArrayList<>();
+    int numWords = atLeast(200);
+    for (int i = 0; i < numWords; i++) {
+      //long words exercise the banded path, short ones the bit-parallel path
+      int len = (random().nextInt(5) == 0) ? TestUtil.nextInt(random(), 60, 90) :
+          TestUtil.nextInt(random(), 1, 12);
+      String word = randomWord(len);
+      words.add(word);
+      Document d = new Document();
+      d.add(newStringField(FIELD, word, Field.Store.NO));
+      writer.addDocument(d);
+    }
+    IndexReader reader = writer.getReader();
+    writer.close();
+    Terms terms = MultiTerms.getTerms(reader, FIELD);
+
+    int iters = atLeast(50);
+    for (int iter = 0; iter < iters; iter++) {
+      String query = mutate(words.get(random().nextInt(words.size())));
+      int maxEdits = TestUtil.nextInt(random(), 3, 6);
+      int prefixLength = random().nextInt(3);
+
+      Map<String, Float> expected = new HashMap<>();
+      int[] q = toCodePoints(query);
+      for (String w : words) {
+        int[] t = toCodePoints(w);
+        int prefix = Math.min(prefixLength, q.length);
+        if (!w.startsWith(new String(q, 0, prefix))) {
+          continue;
+        }
+        int distance = distance(q, prefix, t, prefix);
+        if (distance <= maxEdits) {
+          expected.put(w, 1.0f - (float) distance / (float) Math.min(t.length, q.length));
+        }
+      }
+
+      AttributeSource atts = new AttributeSource();
+      TermsEnum termsEnum = new SlowFuzzyTermsEnum(terms, atts,
+          new Term(FIELD, query), maxEdits, prefixLength);
+      BoostAttribute boostAtt = termsEnum.attributes().addAttribute(BoostAttribute.class);
+      Map<String, Float> actual = new HashMap<>();
+      BytesRef term;
+      while ((term = termsEnum.next()) != null) {
+        actual.put(term.utf8ToString(), boostAtt.getBoost());
+      }
+      assertEquals("query=" + query + " maxEdits=" + maxEdits + " prefix=" + prefixLength,
+          expected, actual);
+    }
+    reader.close();
+    directory.close();
+  }
+
+  private static String randomWord(int len) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < len; i++) {
+      //a small alphabet with a few supplementary and non-ascii code points
+      int r = random().nextInt(20);
+      if (r == 0) {
+        sb.appendCodePoint(0x1F600 + random().nextInt(3));
+      } else if (r == 1) {
+        sb.append((char) ('\u00e0' + random().nextInt(3)));
+      } else {
+        sb.append((char) ('a' + random().nextInt(5)));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String mutate(String word) {
+    int[] cps = toCodePoints(word);
+    List<Integer> list = new ArrayList<>();
+    for (int cp : cps) {
+      list.add(cp);
+    }
+    int edits = random().nextInt(6);
+    for (int i = 0; i < edits; i++) {
+      int pos = (list.size() == 0) ? 0 : random().nextInt(list.size());
+      switch (random().nextInt(3)) {
+        case 0:
+          list.add(pos, (int) 'a' + random().nextInt(5));
+          break;
+        case 1:
+          if (list.size() > 1) {
+            list.remove(pos);
+          }
+          break;
+        default:
+          if (list.size() > 0) {
+            list.set(pos, (int) 'a' + random().nextInt(5));
+          }
+      }
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int cp : list) {
+      sb.appendCodePoint(cp);
+    }
+    return sb.toString();
+  }
+
+  private static int[] toCodePoints(String s) {
+    return s.codePoints().toArray();
+  }
+
+  private static int distance(int[] a, int aOffset, int[] b, int bOffset) {
+    int n = a.length - aOffset;
+    int m = b.length - bOffset;
+    int[][] d = new int[n + 1][m + 1];
+    for (int i = 0; i <= n; i++) {
+      d[i][0] = i;
+    }
+    for (int j = 0; j <= m; j++) {
+      d[0][j] = j;
+    }
+    for (int i = 1; i <= n; i++) {
+      for (int j = 1; j <= m; j++) {
+        int cost = (a[aOffset + i - 1] == b[bOffset + j - 1]) ? 0 : 1;
+        d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+      }
+    }
+    return d[n][m];
+  }
+}
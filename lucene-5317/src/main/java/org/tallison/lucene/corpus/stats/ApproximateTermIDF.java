@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.corpus.stats;
+
+/**
+ * TermIDF whose term frequency is an estimate that can overcount
+ * the true term frequency by up to {@link #getTermFreqError()}.
+ */
+public class ApproximateTermIDF extends TermIDF {
+
+  private final long termFreqError;
+
+  public ApproximateTermIDF(String term, int docFreq, int termFreq, double idf,
+                            long termFreqError) {
+    super(term, docFreq, termFreq, idf);
+    this.termFreqError = termFreqError;
+  }
+
+  /**
+   * @return maximum overestimate of the term frequency; the true term
+   * frequency is between <code>getTermFreq()-getTermFreqError()</code>
+   * and <code>getTermFreq()</code>
+   */
+  public long getTermFreqError() {
+    return termFreqError;
+  }
+}
@@ -18,22 +18,103 @@ package org.tallison.lucene.corpus.stats;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
 
 /**
  * Lucene-agnostic IDF calculator
+ * <p>
+ * Document frequencies are cached for the life of this object.  The
+ * reader is a point-in-time view of the index, so the cache is only
+ * valid for that generation of the index; build a new calculator
+ * when the reader is reopened.
  */
 
 public class IDFIndexCalc extends IDFCalc {
 
   private final IndexReader reader;
+  private final Map<Term, Integer> docFreqCache = new ConcurrentHashMap<>();
 
   public IDFIndexCalc(IndexReader reader) {
     super(reader.numDocs());
     this.reader = reader;
   }
 
+  /**
+   * @param t term
+   * @return document frequency of the term, from the cache if it has
+   * already been looked up
+   * @throws java.io.IOException if encountered by underlying reader
+   */
+  public int docFreq(Term t) throws IOException {
+    Integer df = docFreqCache.get(t);
+    if (df == null) {
+      df = reader.docFreq(t);
+      docFreqCache.put(t, df);
+    }
+    return df;
+  }
+
+  /**
+   * Looks up the document frequencies of all of the whitespace delimited
+   * subtokens in strings and caches them.  The terms that aren't
+   * already cached are sorted and resolved with one pass through each
+   * segment's terms, which is far cheaper than a call to
+   * {@link IndexReader#docFreq(Term)} per term.
+   *
+   * @param field field
+   * @param strings strings to split on whitespace
+   * @throws java.io.IOException if encountered by underlying reader
+   */
+  public void cacheDocFreqs(String field, Collection<String> strings) throws IOException {
+    Set<String> uniq = new HashSet<>();
+    for (String s : strings) {
+      for (String termString : split(s)) {
+        uniq.add(termString);
+      }
+    }
+    List<BytesRef> toLookup = new ArrayList<>();
+    for (String termString : uniq) {
+      if (! docFreqCache.containsKey(new Term(field, termString))) {
+        toLookup.add(new BytesRef(termString));
+      }
+    }
+    if (toLookup.size() == 0) {
+      return;
+    }
+    //seekExact is cheapest when the terms are visited in order
+    Collections.sort(toLookup);
+    int[] dfs = new int[toLookup.size()];
+    for (LeafReaderContext ctx : reader.leaves()) {
+      Terms terms = ctx.reader().terms(field);
+      if (terms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = terms.iterator();
+      for (int i = 0; i < dfs.length; i++) {
+        if (termsEnum.seekExact(toLookup.get(i))) {
+          dfs[i] += termsEnum.docFreq();
+        }
+      }
+    }
+    for (int i = 0; i < dfs.length; i++) {
+      docFreqCache.put(new Term(field, toLookup.get(i)), dfs[i]);
+    }
+  }
+
 
   /**
    * @param t term
@@ -65,9 +146,9 @@ public class IDFIndexCalc extends IDFCalc {
   public double multiTermIDFSum(String s, Term t) throws IOException {
 
     double sum = 0.0;
-    for (String termString : s.trim().split(" +")) {
+    for (String termString : split(s)) {
       Term tmp = new Term(t.field(), termString);
-      sum += getIDF(reader.docFreq(tmp));
+      sum += getIDF(docFreq(tmp));
     }
     return sum;
   }
@@ -82,9 +163,9 @@ public class IDFIndexCalc extends IDFCalc {
   public double[] multiTermIDF(String s, Term t) throws IOException {
     // be careful: must pre-analyze and divide subterms by whitespace!!!
     double[] stats = new double[]{0.0, Double.MAX_VALUE}; // sum, min df, ...
-    for (String termString : s.trim().split(" +")) {
+    for (String termString : split(s)) {
       Term tmp = new Term(t.field(), termString);
-      int df = reader.docFreq(tmp);
+      int df = docFreq(tmp);
       double idf = getIDF(df);
       stats[0] += idf;
 
@@ -97,4 +178,25 @@ public class IDFIndexCalc extends IDFCalc {
   public double[] multiTermStats(String s, String field) throws IOException {
     return multiTermIDF(s, new Term(field, ""));
   }
+
+  /**
+   * Same as s.trim().split(" +") without the regex.
+   */
+  private static List<String> split(String s) {
+    s = s.trim();
+    List<String> ret = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) == ' ') {
+        if (i > start) {
+          ret.add(s.substring(start, i));
+        }
+        start = i + 1;
+      }
+    }
+    if (start < s.length() || ret.size() == 0) {
+      ret.add(s.substring(start));
+    }
+    return ret;
+  }
 }
@@ -17,10 +17,17 @@
 package org.tallison.lucene.search.concordance.charoffsets;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttributeImpl;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
 
 
 /**
@@ -32,7 +39,10 @@ public class DocTokenOffsets {
   private int atomicDocId = -1;
   private long uniqueId = -1;
   private Document document = null;
+  private LeafReader leafReader = null;
   private List<OffsetAttribute> offsets = new ArrayList<>();
+  private SelectiveStoredFieldVisitor storedFieldVisitor = null;
+  private final Map<Object, Object> leafState = new HashMap<>();
 
   public void addOffset(int start, int end) {
     OffsetAttributeImpl offset = new OffsetAttributeImpl();
@@ -41,6 +51,14 @@ public class DocTokenOffsets {
   }
 
   public void reset(int base, int atomicDocId, Document d) {
+    reset(null, base, atomicDocId, d);
+  }
+
+  public void reset(LeafReader leafReader, int base, int atomicDocId, Document d) {
+    if (leafReader != this.leafReader) {
+      leafState.clear();
+    }
+    this.leafReader = leafReader;
     this.atomicDocId = atomicDocId;
     this.uniqueId = base + atomicDocId;
     setDocument(d);
@@ -51,6 +69,13 @@ public class DocTokenOffsets {
     return offsets;
   }
 
+  /**
+   * When this is filled by {@link SpansCrawler}, the document is reused for
+   * the next hit, so copy whatever is needed from it before returning from
+   * {@link DocTokenOffsetsVisitor#visit(DocTokenOffsets)}.
+   *
+   * @return document with the visitor's fields
+   */
   public Document getDocument() {
     return document;
   }
@@ -59,10 +84,17 @@ public class DocTokenOffsets {
     this.document = d;
   }
 
-  /*
-   * required by DocTokenOffsetsIterator
+  /**
+   * @return leaf reader that the document came from; can be null
+   */
+  public LeafReader getLeafReader() {
+    return leafReader;
+  }
+
+  /**
+   * @return doc id within {@link #getLeafReader()}
    */
-  protected int getAtomicDocId() {
+  public int getAtomicDocId() {
     return atomicDocId;
   }
 
@@ -70,11 +102,57 @@ public class DocTokenOffsets {
     return uniqueId;
   }
 
+  /**
+   * State that a component keeps for the current leaf, such as doc values
+   * iterators that are advanced from hit to hit.  It is dropped when
+   * the leaf changes, so it never outlives the crawl that owns this object.
+   *
+   * @param key key, typically the component itself
+   * @return state for the current leaf or null if none has been set
+   */
+  public Object getLeafState(Object key) {
+    return leafState.get(key);
+  }
+
+  /**
+   * @param key   key, typically the component itself
+   * @param state state for the current leaf
+   */
+  public void setLeafState(Object key, Object state) {
+    leafState.put(key, state);
+  }
+
+  /**
+   * @param fields fields to load
+   * @return stored field visitor that is reused for as long as the fields don't change
+   */
+  SelectiveStoredFieldVisitor getStoredFieldVisitor(Set<String> fields) {
+    if (storedFieldVisitor == null ||
+        !Objects.equals(fields, storedFieldVisitor.getFields())) {
+      storedFieldVisitor = new SelectiveStoredFieldVisitor(fields);
+    }
+    return storedFieldVisitor;
+  }
+
+  /**
+   * The document is copied too, because the original and its string
+   * fields may be reused for the next hit.
+   *
+   * @return copy
+   */
   public DocTokenOffsets deepishCopy() {
     DocTokenOffsets copy = new DocTokenOffsets();
+    copy.leafReader = leafReader;
     copy.atomicDocId = atomicDocId;
     copy.uniqueId = uniqueId;
-    copy.document = document;
+    if (document != null) {
+      //only the string fields are reused
+      copy.document = new Document();
+      for (IndexableField f : document) {
+        copy.document.add((f.stringValue() == null) ? f :
+            new StoredField(f.name(), f.stringValue()));
+      }
+    }
     List<OffsetAttribute> copyOffsets = new ArrayList<OffsetAttribute>();
     copyOffsets.addAll(offsets);
     copy.offsets = copyOffsets;
@@ -21,7 +21,7 @@ import java.util.Comparator;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 
 /**
- * sort on offset start
+ * sort on offset start, then offset end
  */
 public class OffsetStartComparator implements Comparator<OffsetAttribute>,
     Serializable {
@@ -35,7 +35,7 @@ public class OffsetStartComparator implements Comparator<OffsetAttribute>,
     } else if (offsetA.startOffset() > offsetB.startOffset()) {
       return 1;
     }
-    return 0;
+    return Integer.compare(offsetA.endOffset(), offsetB.endOffset());
   }
 
 }
@@ -16,9 +16,8 @@
  */
 package org.tallison.lucene.search.concordance.charoffsets;
 
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Class to record results for looking up normalized terms (String) and
@@ -28,6 +27,11 @@ import java.util.Map;
  * Has utility methods for safely getting the closest found token. This is
  * useful for when a concordance window ends in a stop word (no term/offset
  * info).
+ * <p>
+ * This is cleared and refilled for every document, so the offsets are
+ * stored in an open-addressing table of primitive arrays keyed by token
+ * offset, and the term text is appended to a single shared char buffer.
+ * The storage is reused after {@link #clear()}.
  */
 
 public class RandomAccessCharOffsetContainer {
@@ -35,11 +39,38 @@ public class RandomAccessCharOffsetContainer {
   public final static String NULL_TERM = "";
   public final static int NULL_OFFSET = -1;
 
+  private final static int EMPTY = Integer.MIN_VALUE;
+  private final static int INITIAL_CAPACITY = 64;
+
   private BitSet set = new BitSet();
   private int last = -1;
-  private Map<Integer, String> terms = new HashMap<Integer, String>();
-  private Map<Integer, Integer> starts = new HashMap<>();
-  private Map<Integer, Integer> ends = new HashMap<>();
+
+  //open addressing table with linear probing; keys are token offsets
+  private int[] keys;
+  private int[] starts;
+  private int[] ends;
+  //offset into termBuffer, length of term or -1 if the term was null
+  private int[] termStarts;
+  private int[] termLengths;
+  private int mask;
+  private int size = 0;
+
+  private char[] termBuffer = new char[256];
+  private int termBufferLength = 0;
+
+  public RandomAccessCharOffsetContainer() {
+    allocate(INITIAL_CAPACITY);
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    starts = new int[capacity];
+    ends = new int[capacity];
+    termStarts = new int[capacity];
+    termLengths = new int[capacity];
+    mask = capacity - 1;
+  }
 
   /**
    * @param tokenOffset     token of interest
@@ -49,27 +80,110 @@ public class RandomAccessCharOffsetContainer {
    */
   public void add(int tokenOffset, int startCharOffset,
                   int endCharOffset, String term) {
-    addStart(tokenOffset, startCharOffset);
-    addEnd(tokenOffset, endCharOffset);
-    addTerm(tokenOffset, term);
-    set.set(tokenOffset);
+    int slot = addOffsets(tokenOffset, startCharOffset, endCharOffset);
+    if (term == null) {
+      termLengths[slot] = -1;
+    } else {
+      int len = term.length();
+      int termStart = reserveTermChars(len);
+      term.getChars(0, len, termBuffer, termStart);
+      termStarts[slot] = termStart;
+      termLengths[slot] = len;
+    }
   }
 
-  private void addTerm(int tokenOffset, String term) {
-    if (term != null) {
-      terms.put(tokenOffset, term);
+  /**
+   * Like {@link #add(int, int, int, String)}, but copies the term
+   * from a char array, e.g. a CharTermAttribute's buffer, without
+   * creating a String.
+   *
+   * @param tokenOffset     token of interest
+   * @param startCharOffset start character offset within the string stored in StoredField[fieldIndex]
+   * @param endCharOffset   end character offset within the string stored in StoredField[fieldIndex]
+   * @param termChars       buffer holding the term at that position
+   * @param termOffset      offset of the term within termChars
+   * @param termLength      length of the term
+   */
+  public void add(int tokenOffset, int startCharOffset,
+                  int endCharOffset, char[] termChars, int termOffset, int termLength) {
+    int slot = addOffsets(tokenOffset, startCharOffset, endCharOffset);
+    int termStart = reserveTermChars(termLength);
+    System.arraycopy(termChars, termOffset, termBuffer, termStart, termLength);
+    termStarts[slot] = termStart;
+    termLengths[slot] = termLength;
+  }
+
+  private int addOffsets(int tokenOffset, int startCharOffset, int endCharOffset) {
+    int slot = findSlot(tokenOffset);
+    if (keys[slot] == EMPTY) {
+      if ((size + 1) * 2 > keys.length) {
+        rehash(keys.length * 2);
+        slot = findSlot(tokenOffset);
+      }
+      keys[slot] = tokenOffset;
+      size++;
     }
+    starts[slot] = startCharOffset;
+    ends[slot] = endCharOffset;
+    set.set(tokenOffset);
     last = (tokenOffset > last) ? tokenOffset : last;
+    return slot;
   }
 
-  private void addStart(int tokenOffset, int charOffset) {
-    starts.put(tokenOffset, charOffset);
-    last = (tokenOffset > last) ? tokenOffset : last;
+  private int reserveTermChars(int len) {
+    if (termBufferLength + len > termBuffer.length) {
+      termBuffer = Arrays.copyOf(termBuffer,
+          Math.max(termBuffer.length * 2, termBufferLength + len));
+    }
+    int termStart = termBufferLength;
+    termBufferLength += len;
+    return termStart;
   }
 
-  private void addEnd(int tokenOffset, int charOffset) {
-    ends.put(tokenOffset, charOffset);
-    last = (tokenOffset > last) ? tokenOffset : last;
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * @return slot that holds the key or the empty slot where it would go
+   */
+  private int findSlot(int key) {
+    int slot = hash(key) & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * @return slot that holds the key or -1 if it isn't in the table
+   */
+  private int getSlot(int key) {
+    if (key == EMPTY) {
+      return -1;
+    }
+    int slot = findSlot(key);
+    return (keys[slot] == EMPTY) ? -1 : slot;
+  }
+
+  private void rehash(int newCapacity) {
+    int[] oldKeys = keys;
+    int[] oldStarts = starts;
+    int[] oldEnds = ends;
+    int[] oldTermStarts = termStarts;
+    int[] oldTermLengths = termLengths;
+    allocate(newCapacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = findSlot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        starts[slot] = oldStarts[i];
+        ends[slot] = oldEnds[i];
+        termStarts[slot] = oldTermStarts[i];
+        termLengths[slot] = oldTermLengths[i];
+      }
+    }
   }
 
   /**
@@ -78,11 +192,11 @@ public class RandomAccessCharOffsetContainer {
    * returns {@link #NULL_OFFSET} if tokenOffset wasn't found
    */
   public int getCharacterOffsetStart(int tokenOffset) {
-    Integer start = starts.get(tokenOffset);
-    if (start == null) {
+    int slot = getSlot(tokenOffset);
+    if (slot < 0) {
       return NULL_OFFSET;
     }
-    return start.intValue();
+    return starts[slot];
   }
 
   /**
@@ -90,11 +204,11 @@ public class RandomAccessCharOffsetContainer {
    * @return the character offset for the final character of the tokenOffset.
    */
   public int getCharacterOffsetEnd(int tokenOffset) {
-    Integer end = ends.get(tokenOffset);
-    if (end == null) {
+    int slot = getSlot(tokenOffset);
+    if (slot < 0) {
       return NULL_OFFSET;
     }
-    return end.intValue();
+    return ends[slot];
   }
 
   /**
@@ -102,11 +216,11 @@ public class RandomAccessCharOffsetContainer {
    * @return term stored at this tokenOffset; can return {@link #NULL_TERM}
    */
   public String getTerm(int tokenOffset) {
-    String s = terms.get(tokenOffset);
-    if (s == null) {
+    int slot = getSlot(tokenOffset);
+    if (slot < 0 || termLengths[slot] < 0) {
       return NULL_TERM;
     }
-    return s;
+    return new String(termBuffer, termStarts[slot], termLengths[slot]);
   }
 
   /**
@@ -117,14 +231,16 @@ public class RandomAccessCharOffsetContainer {
   }
 
   /**
-   * reset state
+   * reset state; the underlying storage is kept for reuse
    */
   public void clear() {
-    terms.clear();
-    starts.clear();
-    ends.clear();
+    if (size > 0) {
+      Arrays.fill(keys, EMPTY);
+    }
+    size = 0;
+    termBufferLength = 0;
     last = -1;
-    set = new BitSet();
+    set.clear();
   }
 
   protected boolean isEmpty() {
@@ -137,12 +253,12 @@ public class RandomAccessCharOffsetContainer {
    *
    * @param startToken start token
    * @param stopToken end token
-   * @param map map to use
+   * @param useStarts whether to check the start or end offsets
    * @return closest non-null token offset to the startToken; can return
    * {@link #NULL_OFFSET} if no non-null offset was found
    */
   private int getClosestToken(int startToken, int stopToken,
-                              Map<Integer, Integer> map) {
+                              boolean useStarts) {
 
     if (startToken < 0 || stopToken < 0) {
       return NULL_OFFSET;
@@ -150,17 +266,18 @@ public class RandomAccessCharOffsetContainer {
     if (startToken == stopToken) {
       return startToken;
     }
+    int[] charOffsets = (useStarts) ? starts : ends;
     if (startToken < stopToken) {
       for (int i = startToken; i <= stopToken; i++) {
-        Integer charOffset = map.get(i);
-        if (charOffset != null && charOffset != NULL_OFFSET) {
+        int slot = getSlot(i);
+        if (slot > -1 && charOffsets[slot] != NULL_OFFSET) {
           return i;
         }
       }
     } else if (startToken > stopToken) {
       for (int i = startToken; i >= stopToken; i--) {
-        Integer charOffset = map.get(i);
-        if (charOffset != null && charOffset != NULL_OFFSET) {
+        int slot = getSlot(i);
+        if (slot > -1 && charOffsets[slot] != NULL_OFFSET) {
           return i;
         }
       }
@@ -169,45 +286,25 @@ public class RandomAccessCharOffsetContainer {
   }
 
   public int getClosestCharStart(int startToken, int stopToken) {
-
-    int i = getClosestToken(startToken, stopToken, starts);
-    Integer charStart = getCharacterOffsetStart(i);
-    if (charStart == null) {
-      return NULL_OFFSET;
-    }
-    return charStart.intValue();
+    int i = getClosestToken(startToken, stopToken, true);
+    return getCharacterOffsetStart(i);
   }
 
   public int getClosestCharEnd(int startToken, int stopToken) {
-    int i = getClosestToken(startToken, stopToken, ends);
-    Integer charEnd = getCharacterOffsetEnd(i);
-    if (charEnd == null) {
-      return NULL_OFFSET;
-    }
-    return charEnd.intValue();
+    int i = getClosestToken(startToken, stopToken, false);
+    return getCharacterOffsetEnd(i);
   }
 
   protected String getClosestTerm(int startToken, int stopToken) {
-    int i = getClosestToken(startToken, stopToken, starts);
+    int i = getClosestToken(startToken, stopToken, true);
     return getTerm(i);
   }
 
-  /*
-   * return: -1 if
-   
-  public int getFieldIndex(int tokenOffset) {
-    CharCoordinate p = starts.get(tokenOffset);
-    if (p == null) {
-      return NULL_OFFSET;
-    }
-    return p.getFieldIndex();
-  }
-*/
   protected String debugToString() {
     StringBuilder sb = new StringBuilder();
-    for (Integer i : terms.keySet()) {
-      sb.append(i + " : " + terms.get(i) + " : " + starts.get(i) + " : "
-          + ends.get(i) + "\n");
+    for (int i = set.nextSetBit(0); i > -1; i = set.nextSetBit(i + 1)) {
+      sb.append(i + " : " + getTerm(i) + " : " + getCharacterOffsetStart(i) + " : "
+          + getCharacterOffsetEnd(i) + "\n");
     }
     return sb.toString();
   }
@@ -218,11 +315,31 @@ public class RandomAccessCharOffsetContainer {
 
   public void remove(int token) {
     if (token == last) {
-      last = getClosestToken(last - 1, 0, starts);
+      last = getClosestToken(last - 1, 0, true);
     }
     set.clear(token);
-    terms.remove(token);
-    starts.remove(token);
-    ends.remove(token);
+    int slot = getSlot(token);
+    if (slot < 0) {
+      return;
+    }
+    //backward shift deletion so that probe chains stay intact;
+    //the term's chars are left in the buffer until clear()
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (keys[next] != EMPTY) {
+      int home = hash(keys[next]) & mask;
+      //move the entry back if its home slot is not in (hole, next]
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        starts[hole] = starts[next];
+        ends[hole] = ends[next];
+        termStarts[hole] = termStarts[next];
+        termLengths[hole] = termLengths[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[hole] = EMPTY;
+    size--;
   }
 }
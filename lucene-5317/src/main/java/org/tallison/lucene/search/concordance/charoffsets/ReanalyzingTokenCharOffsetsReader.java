@@ -27,12 +27,25 @@ import org.apache.lucene.document.Document;
 /**
  * TokenCharOffsetsReader that captures character offsets by reanalyzing a
  * field.
+ * <p>
+ * By default, the rest of the TokenStream is consumed after the last requested
+ * token has been found.  If consumeAllTokens is false, analysis stops as soon
+ * as the last requested token has been passed, which can save a great deal
+ * of work on long fields with hits near the beginning.  Some
+ * tokenizers (e.g. MockTokenizer) insist that all tokens be consumed before
+ * end() is called; don't turn this off for those.
+ * <p>
+ * If more than one token is stacked at a position, the one that starts
+ * earliest is recorded, and ties go to the lowest term in code point
+ * (UTF-8) order.  This is what {@link TermVectorTokenCharOffsetsReader}
+ * records, so the offsets are the same whether or not there are term vectors.
  */
 public class ReanalyzingTokenCharOffsetsReader implements
     TokenCharOffsetsReader {
 
   private final static int GOT_ALL_REQUESTS = -2;
   private Analyzer baseAnalyzer;
+  private final boolean consumeAllTokens;
 
   /**
    * Constructor
@@ -40,7 +53,17 @@ public class ReanalyzingTokenCharOffsetsReader implements
    * @param analyzer to use to get character offsets
    */
   public ReanalyzingTokenCharOffsetsReader(Analyzer analyzer) {
+    this(analyzer, true);
+  }
+
+  /**
+   * @param analyzer to use to get character offsets
+   * @param consumeAllTokens whether to consume the rest of the TokenStream
+   *                         after the last requested token has been found
+   */
+  public ReanalyzingTokenCharOffsetsReader(Analyzer analyzer, boolean consumeAllTokens) {
     this.baseAnalyzer = analyzer;
+    this.consumeAllTokens = consumeAllTokens;
   }
 
   @Override
@@ -91,31 +114,64 @@ public class ReanalyzingTokenCharOffsetsReader implements
     }
 
     while (stream.incrementToken()) {
-
-      //Do we need this?
-      if (incAtt != null && incAtt.getPositionIncrement() == 0) {
+      int inc = (incAtt != null) ? incAtt.getPositionIncrement() : defaultInc;
+      if (inc == 0) {
+        //stacked token
+        int start = offsetAtt.startOffset() + charBase;
+        if (requests.contains(currInd) && isPreferred(currInd, start, termAtt, results)) {
+          results.add(currInd, start, offsetAtt.endOffset() + charBase,
+              termAtt.buffer(), 0, termAtt.length());
+        }
         continue;
       }
-
-      currInd += (incAtt != null) ? incAtt.getPositionIncrement() : defaultInc;
-      if (requests.contains(currInd)) {
-        results.add(currInd, offsetAtt.startOffset() + charBase,
-            offsetAtt.endOffset() + charBase, termAtt.toString());
-      }
-      if (currInd > requests.getLast()) {
-        // TODO: Is there a way to avoid this? Or, is this
-        // an imaginary performance hit?
-        while (stream.incrementToken()) {
-          //NO-OP
+      //tokens stacked on the last request have all been seen
+      if (currInd >= requests.getLast()) {
+        if (consumeAllTokens) {
+          while (stream.incrementToken()) {
+            //NO-OP
+          }
         }
         stream.end();
         stream.close();
         return GOT_ALL_REQUESTS;
       }
+
+      currInd += inc;
+      if (requests.contains(currInd)) {
+        results.add(currInd, offsetAtt.startOffset() + charBase,
+            offsetAtt.endOffset() + charBase, termAtt.buffer(), 0, termAtt.length());
+      }
     }
     stream.end();
     stream.close();
-    return currInd;
+    return (currInd >= requests.getLast()) ? GOT_ALL_REQUESTS : currInd;
+  }
+
+  private static boolean isPreferred(int pos, int start, CharTermAttribute termAtt,
+                                     RandomAccessCharOffsetContainer results) {
+    int existingStart = results.getCharacterOffsetStart(pos);
+    if (existingStart == RandomAccessCharOffsetContainer.NULL_OFFSET) {
+      return true;
+    }
+    if (start != existingStart) {
+      return start < existingStart;
+    }
+    return compareCodePoints(termAtt.buffer(), termAtt.length(), results.getTerm(pos)) < 0;
+  }
+
+  private static int compareCodePoints(char[] a, int aLength, String b) {
+    int i = 0;
+    int j = 0;
+    while (i < aLength && j < b.length()) {
+      int cpA = Character.codePointAt(a, i, aLength);
+      int cpB = b.codePointAt(j);
+      if (cpA != cpB) {
+        return Integer.compare(cpA, cpB);
+      }
+      i += Character.charCount(cpA);
+      j += Character.charCount(cpB);
+    }
+    return Integer.compare(aLength - i, b.length() - j);
   }
 
 }
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance.charoffsets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+
+/**
+ * Loads only the selected stored fields into a document that is
+ * reused across hits.
+ * <p>
+ * String values are decoded into per-field buffers of fields that are
+ * reused from hit to hit, so loading a hit doesn't allocate a Document or
+ * a Field per value.  The fields' values change when the next hit is loaded,
+ * so callers have to copy what they need before then.
+ * <p>
+ * This never stops early: stored fields are kept in the order that they
+ * were added, so later values of a multivalued field can come after
+ * other fields, e.g. from a Solr copyField.
+ */
+final class SelectiveStoredFieldVisitor extends StoredFieldVisitor {
+
+  private final Set<String> fields;
+  private final Document document = new Document();
+  private final Map<String, FieldBuffer> buffers = new HashMap<>();
+
+  /**
+   * @param fields fields to load; null loads every field
+   */
+  SelectiveStoredFieldVisitor(Set<String> fields) {
+    this.fields = fields;
+  }
+
+  Set<String> getFields() {
+    return fields;
+  }
+
+  /**
+   * @return document with the current hit's fields
+   */
+  Document getDocument() {
+    return document;
+  }
+
+  /**
+   * Clears the document before the next hit is loaded.
+   */
+  void reset() {
+    document.clear();
+    for (FieldBuffer buffer : buffers.values()) {
+      buffer.size = 0;
+    }
+  }
+
+  @Override
+  public Status needsField(FieldInfo fieldInfo) throws IOException {
+    return (fields == null || fields.contains(fieldInfo.name)) ? Status.YES : Status.NO;
+  }
+
+  @Override
+  public void stringField(FieldInfo fieldInfo, String value) throws IOException {
+    FieldBuffer buffer = buffers.get(fieldInfo.name);
+    if (buffer == null) {
+      buffer = new FieldBuffer();
+      buffers.put(fieldInfo.name, buffer);
+    }
+    document.add(buffer.next(fieldInfo.name, value));
+  }
+
+  @Override
+  public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
+    document.add(new StoredField(fieldInfo.name, value));
+  }
+
+  @Override
+  public void intField(FieldInfo fieldInfo, int value) throws IOException {
+    document.add(new StoredField(fieldInfo.name, value));
+  }
+
+  @Override
+  public void longField(FieldInfo fieldInfo, long value) throws IOException {
+    document.add(new StoredField(fieldInfo.name, value));
+  }
+
+  @Override
+  public void floatField(FieldInfo fieldInfo, float value) throws IOException {
+    document.add(new StoredField(fieldInfo.name, value));
+  }
+
+  @Override
+  public void doubleField(FieldInfo fieldInfo, double value) throws IOException {
+    document.add(new StoredField(fieldInfo.name, value));
+  }
+
+  /**
+   * String fields for one field name; the first size are in use for this hit
+   */
+  private static class FieldBuffer {
+    private final List<StoredField> values = new ArrayList<>();
+    private int size = 0;
+
+    StoredField next(String name, String value) {
+      StoredField field;
+      if (size < values.size()) {
+        field = values.get(size);
+        field.setStringValue(value);
+      } else {
+        field = new StoredField(name, value);
+        values.add(field);
+      }
+      size++;
+      return field;
+    }
+  }
+}
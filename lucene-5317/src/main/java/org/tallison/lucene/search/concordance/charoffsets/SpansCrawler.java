@@ -17,7 +17,15 @@
 package org.tallison.lucene.search.concordance.charoffsets;
 
 import java.io.IOException;
-import org.apache.lucene.document.Document;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.spans.SpanQuery;
@@ -29,54 +37,197 @@ public class SpansCrawler {
 
   public static void crawl(SpanQuery query, Query filter, IndexSearcher searcher,
                            DocTokenOffsetsVisitor visitor) throws IOException, TargetTokenNotFoundException {
+    crawl(query, filter, searcher, 0, visitor);
+  }
+
+  /**
+   * Like {@link #crawl(SpanQuery, Query, IndexSearcher, DocTokenOffsetsVisitor)},
+   * but documents before minDoc are skipped without being visited,
+   * and so are leaves that end before minDoc.
+   *
+   * @param query query
+   * @param filter filter, can be null
+   * @param searcher searcher
+   * @param minDoc first Lucene doc id to visit
+   * @param visitor visitor
+   * @throws IOException if there is an IOException from the reader
+   * @throws TargetTokenNotFoundException if the visitor throws this
+   */
+  public static void crawl(SpanQuery query, Query filter, IndexSearcher searcher, int minDoc,
+                           DocTokenOffsetsVisitor visitor) throws IOException, TargetTokenNotFoundException {
 
     query = (SpanQuery) query.rewrite(searcher.getIndexReader());
 
     SpanWeight w = query.createWeight(searcher, ScoreMode.COMPLETE_NO_SCORES, 1.0f);
-    if (filter == null) {
-      for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+    Weight filterWeight = createFilterWeight(filter, searcher);
+    for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+      if (ctx.docBase + ctx.reader().maxDoc() <= minDoc) {
+        continue;
+      }
+      boolean cont = crawlLeaf(ctx, w, filterWeight, minDoc - ctx.docBase, visitor);
+      if (!cont) {
+        break;
+      }
+    }
+  }
 
-        Spans spans = w.getSpans(ctx, SpanWeight.Postings.POSITIONS);
-        if (spans == null) {
-          continue;
-        }
-        boolean cont = visitLeafReader(ctx, spans, visitor);
-        if (!cont) {
-          break;
-        }
+  /**
+   * Like {@link #crawl(SpanQuery, Query, IndexSearcher, DocTokenOffsetsVisitor)},
+   * but each leaf is crawled as a separate task on the executorService
+   * with its own visitor.
+   * <p>
+   * The visitors are returned in leaf order so that the caller can merge
+   * their state.  If a leaf's visitor returns false from
+   * {@link DocTokenOffsetsVisitor#visit(DocTokenOffsets)}, the leaves after it
+   * stop as soon as they check in, and their visitors are not returned.  The leaves
+   * before it are always crawled to completion so that merging the returned visitors
+   * in order yields the same hits as a sequential crawl.
+   *
+   * @param query query
+   * @param filter filter, can be null
+   * @param searcher searcher
+   * @param visitorSupplier called once per leaf, on the calling thread, to build that leaf's visitor
+   * @param executorService executor on which to run the per-leaf crawls
+   * @param <T> type of visitor
+   * @return visitors in leaf order, up to and including the first leaf whose visitor stopped early
+   * @throws IOException if there is an IOException from the reader
+   * @throws TargetTokenNotFoundException if a visitor throws this
+   */
+  public static <T extends DocTokenOffsetsVisitor> List<T> crawl(SpanQuery query, Query filter,
+                                                                 IndexSearcher searcher,
+                                                                 Supplier<T> visitorSupplier,
+                                                                 ExecutorService executorService)
+      throws IOException, TargetTokenNotFoundException {
+    return crawl(query, filter, searcher, 0, visitorSupplier, executorService);
+  }
+
+  /**
+   * Like {@link #crawl(SpanQuery, Query, IndexSearcher, Supplier, ExecutorService)},
+   * but documents before minDoc are skipped without being visited.  Leaves
+   * that end before minDoc get no visitor and no task.
+   *
+   * @param query query
+   * @param filter filter, can be null
+   * @param searcher searcher
+   * @param minDoc first Lucene doc id to visit
+   * @param visitorSupplier called once per leaf that is crawled, on the calling thread
+   * @param executorService executor on which to run the per-leaf crawls
+   * @param <T> type of visitor
+   * @return visitors in leaf order, up to and including the first leaf whose visitor stopped early
+   * @throws IOException if there is an IOException from the reader
+   * @throws TargetTokenNotFoundException if a visitor throws this
+   */
+  public static <T extends DocTokenOffsetsVisitor> List<T> crawl(SpanQuery query, Query filter,
+                                                                 IndexSearcher searcher,
+                                                                 int minDoc,
+                                                                 Supplier<T> visitorSupplier,
+                                                                 ExecutorService executorService)
+      throws IOException, TargetTokenNotFoundException {
+
+    query = (SpanQuery) query.rewrite(searcher.getIndexReader());
+
+    final SpanWeight w = query.createWeight(searcher, ScoreMode.COMPLETE_NO_SCORES, 1.0f);
+    final Weight filterWeight = createFilterWeight(filter, searcher);
+    final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+    //ord of the earliest leaf whose visitor asked to stop
+    final AtomicInteger stopAfter = new AtomicInteger(Integer.MAX_VALUE);
+
+    List<T> visitors = new ArrayList<>(leaves.size());
+    List<Future<Boolean>> futures = new ArrayList<>(leaves.size());
+    for (int i = 0; i < leaves.size(); i++) {
+      final LeafReaderContext ctx = leaves.get(i);
+      if (ctx.docBase + ctx.reader().maxDoc() <= minDoc) {
+        continue;
       }
-    } else {
-      filter = searcher.rewrite(filter);
-      Weight searcherWeight = searcher.createWeight(filter, ScoreMode.COMPLETE_NO_SCORES, 1.0f);
-      for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
-        Scorer leafReaderContextScorer = searcherWeight.scorer(ctx);
-        if (leafReaderContextScorer == null) {
-          continue;
+      final int leafOrd = visitors.size();
+      final int target = minDoc - ctx.docBase;
+      final T visitor = visitorSupplier.get();
+      visitors.add(visitor);
+      futures.add(executorService.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          boolean cont = crawlLeaf(ctx, w, filterWeight, target,
+              new StoppableVisitor(visitor, leafOrd, stopAfter));
+          if (!cont) {
+            stopAfter.accumulateAndGet(leafOrd, Math::min);
+          }
+          return cont;
         }
-        //Can we tell from the scorer that there were no hits?
-        //in <= 5.x we could stop here if the filter query had no hits.
+      }));
+    }
 
-        Spans spans = w.getSpans(ctx, SpanWeight.Postings.POSITIONS);
-        if (spans == null) {
-          continue;
+    for (Future<Boolean> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted while crawling leaves", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof TargetTokenNotFoundException) {
+          throw (TargetTokenNotFoundException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
         }
-        DocIdSetIterator filterItr = leafReaderContextScorer.iterator();
+        throw new RuntimeException(cause);
+      }
+    }
+    int stop = stopAfter.get();
+    if (stop < visitors.size()) {
+      return visitors.subList(0, stop + 1);
+    }
+    return visitors;
+  }
 
-        if (filterItr == null || filterItr.equals(DocIdSetIterator.empty())) {
-          continue;
-        }
-        boolean cont = visitLeafReader(ctx, spans, filterItr, visitor);
-        if (!cont) {
-          break;
-        }
+  private static Weight createFilterWeight(Query filter, IndexSearcher searcher) throws IOException {
+    if (filter == null) {
+      return null;
+    }
+    filter = searcher.rewrite(filter);
+    return searcher.createWeight(filter, ScoreMode.COMPLETE_NO_SCORES, 1.0f);
+  }
+
+  /**
+   * @param target first doc id within the leaf to visit; &lt;= 0 visits every doc
+   */
+  static boolean crawlLeaf(LeafReaderContext ctx, SpanWeight w, Weight filterWeight, int target,
+                           DocTokenOffsetsVisitor visitor) throws IOException, TargetTokenNotFoundException {
+    if (filterWeight == null) {
+      Spans spans = w.getSpans(ctx, SpanWeight.Postings.POSITIONS);
+      if (spans == null) {
+        return true;
       }
+      return visitLeafReader(ctx, spans, target, visitor);
+    }
+
+    Scorer leafReaderContextScorer = filterWeight.scorer(ctx);
+    if (leafReaderContextScorer == null) {
+      return true;
+    }
+    //Can we tell from the scorer that there were no hits?
+    //in <= 5.x we could stop here if the filter query had no hits.
+
+    Spans spans = w.getSpans(ctx, SpanWeight.Postings.POSITIONS);
+    if (spans == null) {
+      return true;
     }
+    DocIdSetIterator filterItr = leafReaderContextScorer.iterator();
+
+    if (filterItr == null || filterItr.equals(DocIdSetIterator.empty())) {
+      return true;
+    }
+    return visitLeafReader(ctx, spans, filterItr, target, visitor);
   }
 
   static boolean visitLeafReader(LeafReaderContext leafCtx,
-                                     Spans spans, DocIdSetIterator filterItr, DocTokenOffsetsVisitor visitor) throws IOException, TargetTokenNotFoundException {
+                                     Spans spans, DocIdSetIterator filterItr, int target,
+                                     DocTokenOffsetsVisitor visitor) throws IOException, TargetTokenNotFoundException {
     int filterDoc = -1;
-    int spansDoc = spans.nextDoc();
+    int spansDoc = firstDoc(spans, target);
     while (true) {
       if (spansDoc == DocIdSetIterator.NO_MORE_DOCS) {
         break;
@@ -114,26 +265,69 @@ public class SpansCrawler {
   }
 
   static boolean visitLeafReader(LeafReaderContext leafCtx,
-                                        Spans spans,
+                                        Spans spans, int target,
                                         DocTokenOffsetsVisitor visitor) throws IOException, TargetTokenNotFoundException {
-    while (spans.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+    int doc = firstDoc(spans, target);
+    while (doc != DocIdSetIterator.NO_MORE_DOCS) {
       boolean cont = visit(leafCtx, spans, visitor);
       if (! cont) {
         return false;
       }
+      doc = spans.nextDoc();
     }
     return true;
   }
 
+  private static int firstDoc(Spans spans, int target) throws IOException {
+    return (target > 0) ? spans.advance(target) : spans.nextDoc();
+  }
+
 
   static boolean visit(LeafReaderContext leafCtx, Spans spans, DocTokenOffsetsVisitor visitor) throws IOException, TargetTokenNotFoundException {
-    Document document = leafCtx.reader().document(spans.docID(), visitor.getFields());
     DocTokenOffsets offsets = visitor.getDocTokenOffsets();
-    offsets.reset(leafCtx.docBase, spans.docID(), document);
+    //load only the visitor's fields into a reused document
+    SelectiveStoredFieldVisitor storedFieldVisitor = offsets.getStoredFieldVisitor(visitor.getFields());
+    storedFieldVisitor.reset();
+    leafCtx.reader().document(spans.docID(), storedFieldVisitor);
+    offsets.reset(leafCtx.reader(), leafCtx.docBase, spans.docID(),
+        storedFieldVisitor.getDocument());
     while (spans.nextStartPosition() != Spans.NO_MORE_POSITIONS) {
       offsets.addOffset(spans.startPosition(), spans.endPosition());
     }
     return visitor.visit(offsets);
   }
 
+  /**
+   * Wraps a leaf's visitor so that it stops once an earlier leaf
+   * has asked to stop.
+   */
+  private static class StoppableVisitor implements DocTokenOffsetsVisitor {
+    private final DocTokenOffsetsVisitor visitor;
+    private final int leafOrd;
+    private final AtomicInteger stopAfter;
+
+    StoppableVisitor(DocTokenOffsetsVisitor visitor, int leafOrd, AtomicInteger stopAfter) {
+      this.visitor = visitor;
+      this.leafOrd = leafOrd;
+      this.stopAfter = stopAfter;
+    }
+
+    @Override
+    public DocTokenOffsets getDocTokenOffsets() {
+      return visitor.getDocTokenOffsets();
+    }
+
+    @Override
+    public Set<String> getFields() {
+      return visitor.getFields();
+    }
+
+    @Override
+    public boolean visit(DocTokenOffsets docTokenOffsets) throws IOException, TargetTokenNotFoundException {
+      if (leafOrd > stopAfter.get()) {
+        return false;
+      }
+      return visitor.visit(docTokenOffsets);
+    }
+  }
 }
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance.charoffsets;
+
+import java.io.IOException;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRefBuilder;
+
+/**
+ * TokenCharOffsetsReader that reads character offsets from the term vectors
+ * of a field that was indexed with positions and offsets.  This avoids
+ * reanalyzing the stored field.
+ * <p>
+ * If the document has no term vector for the field, or the term vector
+ * doesn't have positions and offsets, this falls back to
+ * {@link ReanalyzingTokenCharOffsetsReader}.
+ * <p>
+ * As with reanalysis, if more than one token is stacked at a position,
+ * only one of them is recorded: the one that starts earliest, with ties
+ * going to the lowest term, which is the first one in term order.
+ */
+public class TermVectorTokenCharOffsetsReader implements TokenCharOffsetsReader {
+
+  private final TokenCharOffsetsReader fallback;
+  private final CharsRefBuilder termChars = new CharsRefBuilder();
+
+  /**
+   * @param analyzer analyzer to use if offsets have to be recalculated
+   *                 by reanalysis
+   */
+  public TermVectorTokenCharOffsetsReader(Analyzer analyzer) {
+    this(new ReanalyzingTokenCharOffsetsReader(analyzer));
+  }
+
+  /**
+   * @param fallback reader to use when offsets can't be read from the term vectors
+   */
+  public TermVectorTokenCharOffsetsReader(TokenCharOffsetsReader fallback) {
+    this.fallback = fallback;
+  }
+
+  @Override
+  public void getTokenCharOffsetResults(final Document document,
+                                        final String fieldName, final TokenCharOffsetRequests requests,
+                                        final RandomAccessCharOffsetContainer results) throws IOException {
+    //no access to the index; nothing to do but reanalyze
+    fallback.getTokenCharOffsetResults(document, fieldName, requests, results);
+  }
+
+  @Override
+  public void getTokenCharOffsetResults(final LeafReader reader, final int docId,
+                                        final Document document,
+                                        final String fieldName, final TokenCharOffsetRequests requests,
+                                        final RandomAccessCharOffsetContainer results) throws IOException {
+    Terms terms = null;
+    if (reader != null && docId > -1) {
+      terms = reader.getTermVector(docId, fieldName);
+    }
+    if (terms == null || !terms.hasPositions() || !terms.hasOffsets()) {
+      fallback.getTokenCharOffsetResults(reader, docId, document, fieldName, requests, results);
+      return;
+    }
+    int last = requests.getLast();
+    TermsEnum termsEnum = terms.iterator();
+    PostingsEnum postingsEnum = null;
+    BytesRef bytesRef = termsEnum.next();
+    while (bytesRef != null) {
+      boolean converted = false;
+      postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.OFFSETS);
+      //a term vector has a single "doc"
+      postingsEnum.nextDoc();
+      int freq = postingsEnum.freq();
+      for (int i = 0; i < freq; i++) {
+        int pos = postingsEnum.nextPosition();
+        if (pos > last) {
+          //positions are in order within a term
+          break;
+        }
+        if (!requests.contains(pos)) {
+          continue;
+        }
+        int start = postingsEnum.startOffset();
+        int existingStart = results.getCharacterOffsetStart(pos);
+        if (existingStart != RandomAccessCharOffsetContainer.NULL_OFFSET
+            && existingStart <= start) {
+          continue;
+        }
+        if (!converted) {
+          termChars.copyUTF8Bytes(bytesRef);
+          converted = true;
+        }
+        results.add(pos, start, postingsEnum.endOffset(),
+            termChars.chars(), 0, termChars.length());
+      }
+      bytesRef = termsEnum.next();
+    }
+  }
+}
@@ -19,6 +19,7 @@ package org.tallison.lucene.search.concordance.charoffsets;
 
 import java.io.IOException;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.LeafReader;
 
 
 /**
@@ -31,4 +32,25 @@ public interface TokenCharOffsetsReader {
                                         final String fieldName, final TokenCharOffsetRequests requests,
                                         final RandomAccessCharOffsetContainer results) throws IOException;
 
+  /**
+   * Like {@link #getTokenCharOffsetResults(Document, String, TokenCharOffsetRequests, RandomAccessCharOffsetContainer)},
+   * but with access to the leaf that the document came from so that
+   * implementations can read offsets from the index.
+   * The default ignores the reader.
+   *
+   * @param reader leaf reader that contains the document, can be null
+   * @param docId leaf-level doc id of the document
+   * @param document stored document
+   * @param fieldName field name
+   * @param requests token offsets of interest
+   * @param results container to fill
+   * @throws IOException on an underlying IOException
+   */
+  default void getTokenCharOffsetResults(final LeafReader reader, final int docId,
+                                         final Document document,
+                                         final String fieldName, final TokenCharOffsetRequests requests,
+                                         final RandomAccessCharOffsetContainer results) throws IOException {
+    getTokenCharOffsetResults(document, fieldName, requests, results);
+  }
+
 }
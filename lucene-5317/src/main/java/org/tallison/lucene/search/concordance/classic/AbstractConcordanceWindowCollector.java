@@ -20,6 +20,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import org.tallison.lucene.search.concordance.classic.impl.ConcordanceWindowCollector;
 
 /**
  * Abstract class to handle basic information for a ConcordanceWindowSearcher
@@ -48,6 +49,19 @@ public abstract class AbstractConcordanceWindowCollector {
    */
   public abstract void collect(ConcordanceWindow w);
 
+  /**
+   * Called with a window's sort key before the window is built.
+   * Collectors that keep only some of the windows can return false
+   * so that windows which would be discarded are never built.
+   * The default accepts everything.
+   *
+   * @param sortKey sort key of the next window
+   * @return whether the window should be built and collected
+   */
+  public boolean isCompetitive(ConcordanceSortKey sortKey) {
+    return true;
+  }
+
   /**
    * @return number of windows collected
    */
@@ -58,6 +72,79 @@ public abstract class AbstractConcordanceWindowCollector {
    */
   public abstract List<ConcordanceWindow> getWindows();
 
+  /**
+   * Build an empty collector to hold the windows from a single leaf
+   * when the search runs in parallel.  The leaf collectors are
+   * merged back into this one in leaf order via
+   * {@link #merge(AbstractConcordanceWindowCollector)}.
+   * <p>
+   * The default stores up to {@link #getMaxWindows()} windows as they are
+   * visited.  Subclasses whose {@link #collect(ConcordanceWindow)} can accept
+   * more than maxWindows visits (e.g. deduping) should override this and
+   * {@link #merge(AbstractConcordanceWindowCollector)}.
+   *
+   * @return new collector for a single leaf
+   */
+  public AbstractConcordanceWindowCollector newLeafCollector() {
+    return new ConcordanceWindowCollector(getMaxWindows());
+  }
+
+  /**
+   * Merge the windows from a leaf collector built by {@link #newLeafCollector()}
+   * into this collector.  The default replays each window through
+   * {@link #collect(ConcordanceWindow)}.
+   *
+   * @param leafCollector collector from a single leaf
+   */
+  public void merge(AbstractConcordanceWindowCollector leafCollector) {
+    for (ConcordanceWindow w : leafCollector.getWindows()) {
+      if (getHitMax()) {
+        return;
+      }
+      collect(w);
+    }
+    if (leafCollector.getHitMax()) {
+      setHitMax(true);
+    }
+  }
+
+  /**
+   * Cursor after the last window in this collector, to pass to
+   * {@link ConcordanceSearcher#searchAfter(ConcordanceCursor, org.apache.lucene.search.IndexSearcher,
+   * String, org.apache.lucene.search.Query, org.apache.lucene.search.Query,
+   * org.apache.lucene.analysis.Analyzer, AbstractConcordanceWindowCollector)}
+   * for the next page.
+   * <p>
+   * The default is for collectors that keep the first windows in index order
+   * and that set {@link #getHitMax()} when there are more windows than they
+   * can hold.  Collectors that keep the first windows in sort order should
+   * override this.  A deduping collector only dedupes within a page.
+   *
+   * @return cursor or null if there are no more windows
+   */
+  public ConcordanceCursor getCursor() {
+    if (!getHitMax()) {
+      return null;
+    }
+    ConcordanceWindow last = null;
+    for (ConcordanceWindow w : getWindows()) {
+      if (last == null || isAfter(w, last)) {
+        last = w;
+      }
+    }
+    return (last == null) ? null : ConcordanceCursor.after(last, false);
+  }
+
+  private static boolean isAfter(ConcordanceWindow w, ConcordanceWindow other) {
+    if (w.getLuceneDocId() != other.getLuceneDocId()) {
+      return w.getLuceneDocId() > other.getLuceneDocId();
+    }
+    if (w.getTargetTokenStart() != other.getTargetTokenStart()) {
+      return w.getTargetTokenStart() > other.getTargetTokenStart();
+    }
+    return w.getTargetTokenEnd() > other.getTargetTokenEnd();
+  }
+
   /**
    * @param docId unique key for a document
    */
@@ -132,6 +219,13 @@ public abstract class AbstractConcordanceWindowCollector {
     return 0;
   }
 
+  /**
+   * @return unique keys of the documents in results
+   */
+  public Set<String> getDocIds() {
+    return Collections.unmodifiableSet(docIds);
+  }
+
   /**
    * @return number of documents in results
    */
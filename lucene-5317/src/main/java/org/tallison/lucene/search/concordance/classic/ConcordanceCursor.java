@@ -0,0 +1,281 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance.classic;
+
+import java.util.Objects;
+
+import org.tallison.lucene.search.concordance.classic.impl.DocumentOrderSortKey;
+
+/**
+ * Marks the end of a page of concordance results so that the next page
+ * can be requested with
+ * {@link ConcordanceSearcher#searchAfter(ConcordanceCursor, org.apache.lucene.search.IndexSearcher,
+ * String, org.apache.lucene.search.Query, org.apache.lucene.search.Query,
+ * org.apache.lucene.analysis.Analyzer, AbstractConcordanceWindowCollector)},
+ * cf. {@link org.apache.lucene.search.IndexSearcher#searchAfter}.
+ * <p>
+ * A window's position is its Lucene doc id and the positions of its
+ * first and last target tokens.  If a collector keeps the first windows
+ * in index order, the cursor holds only the position of the last window,
+ * and the next search skips straight to that document.  If a collector
+ * keeps the first windows in sort order, the cursor also holds the last
+ * window's sort key.  The next search still has to visit every hit, but
+ * windows that sort before the cursor are never built.
+ * <p>
+ * Doc ids are only stable for a given reader, so a cursor must be
+ * used with the same reader as the search that built it.
+ */
+public final class ConcordanceCursor {
+
+  private static final char INDEX_ORDER = 'i';
+  private static final char SORT_KEY = 's';
+  private static final char DOC_ORDER = 'd';
+  private static final char SEP = ':';
+
+  private final ConcordanceSortKey sortKey;
+  private final int doc;
+  private final int targetTokenStart;
+  private final int targetTokenEnd;
+
+  /**
+   * Cursor for windows in index order
+   *
+   * @param doc              Lucene doc id of the last window
+   * @param targetTokenStart position of the last window's first target token
+   * @param targetTokenEnd   position of the last window's last target token
+   */
+  public ConcordanceCursor(int doc, int targetTokenStart, int targetTokenEnd) {
+    this(null, doc, targetTokenStart, targetTokenEnd);
+  }
+
+  /**
+   * Cursor for windows in sort order
+   *
+   * @param sortKey          sort key of the last window; if null, this
+   *                         is a cursor for windows in index order
+   * @param doc              Lucene doc id of the last window
+   * @param targetTokenStart position of the last window's first target token
+   * @param targetTokenEnd   position of the last window's last target token
+   */
+  public ConcordanceCursor(ConcordanceSortKey sortKey, int doc,
+                           int targetTokenStart, int targetTokenEnd) {
+    if (doc < 0) {
+      throw new IllegalArgumentException("doc must be >= 0: " + doc);
+    }
+    this.sortKey = sortKey;
+    this.doc = doc;
+    this.targetTokenStart = targetTokenStart;
+    this.targetTokenEnd = targetTokenEnd;
+  }
+
+  /**
+   * @param w      last window of a page
+   * @param sorted whether the windows are in sort order or in index order
+   * @return cursor after the window
+   * @throws IllegalArgumentException if the window's position is unknown
+   */
+  public static ConcordanceCursor after(ConcordanceWindow w, boolean sorted) {
+    if (w.getLuceneDocId() < 0) {
+      throw new IllegalArgumentException("window's doc id is unknown");
+    }
+    return new ConcordanceCursor((sorted) ? w.getSortKey() : null, w.getLuceneDocId(),
+        w.getTargetTokenStart(), w.getTargetTokenEnd());
+  }
+
+  /**
+   * @return whether this is a cursor for windows in sort order
+   */
+  public boolean isSorted() {
+    return sortKey != null;
+  }
+
+  /**
+   * @return sort key of the last window or null if this is a cursor
+   * for windows in index order
+   */
+  public ConcordanceSortKey getSortKey() {
+    return sortKey;
+  }
+
+  /**
+   * @return Lucene doc id of the last window
+   */
+  public int getDoc() {
+    return doc;
+  }
+
+  public int getTargetTokenStart() {
+    return targetTokenStart;
+  }
+
+  public int getTargetTokenEnd() {
+    return targetTokenEnd;
+  }
+
+  /**
+   * @param doc              Lucene doc id of a window
+   * @param targetTokenStart position of the window's first target token
+   * @param targetTokenEnd   position of the window's last target token
+   * @return whether a window at this position comes after the cursor in index order
+   */
+  public boolean isBefore(int doc, int targetTokenStart, int targetTokenEnd) {
+    return comparePosition(doc, targetTokenStart, targetTokenEnd) < 0;
+  }
+
+  /**
+   * @param windowSortKey    sort key of a window
+   * @param doc              Lucene doc id of the window
+   * @param targetTokenStart position of the window's first target token
+   * @param targetTokenEnd   position of the window's last target token
+   * @return whether the window comes after the cursor; windows with equal
+   * sort keys are in index order
+   */
+  public boolean isBefore(ConcordanceSortKey windowSortKey, int doc,
+                          int targetTokenStart, int targetTokenEnd) {
+    if (sortKey != null) {
+      int cmp = sortKey.compareTo(windowSortKey);
+      if (cmp != 0) {
+        return cmp < 0;
+      }
+    }
+    return isBefore(doc, targetTokenStart, targetTokenEnd);
+  }
+
+  private int comparePosition(int otherDoc, int otherStart, int otherEnd) {
+    int cmp = Integer.compare(doc, otherDoc);
+    if (cmp != 0) {
+      return cmp;
+    }
+    cmp = Integer.compare(targetTokenStart, otherStart);
+    if (cmp != 0) {
+      return cmp;
+    }
+    return Integer.compare(targetTokenEnd, otherEnd);
+  }
+
+  /**
+   * Encodes the cursor as a string, e.g. for a request parameter.
+   * Only {@link ConcordanceSortKey} and {@link DocumentOrderSortKey}
+   * sort keys can be encoded.
+   *
+   * @return encoded cursor
+   * @throws IllegalArgumentException if the sort key can't be encoded
+   * @see #decode(String)
+   */
+  public String encode() {
+    StringBuilder sb = new StringBuilder();
+    if (sortKey == null) {
+      sb.append(INDEX_ORDER);
+    } else if (sortKey instanceof DocumentOrderSortKey) {
+      sb.append(DOC_ORDER);
+    } else if (sortKey.getClass() == ConcordanceSortKey.class) {
+      sb.append(SORT_KEY);
+    } else {
+      throw new IllegalArgumentException("can't encode sort key: " + sortKey.getClass());
+    }
+    sb.append(SEP).append(doc);
+    sb.append(SEP).append(targetTokenStart);
+    sb.append(SEP).append(targetTokenEnd);
+    if (sortKey instanceof DocumentOrderSortKey) {
+      sb.append(SEP).append(((DocumentOrderSortKey) sortKey).getTargetCharStart());
+    }
+    if (sortKey != null) {
+      sb.append(SEP).append(sortKey.toString());
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param s cursor encoded by {@link #encode()}
+   * @return cursor
+   * @throws IllegalArgumentException if s is not a valid cursor
+   */
+  public static ConcordanceCursor decode(String s) {
+    if (s == null || s.length() < 2 || s.charAt(1) != SEP) {
+      throw new IllegalArgumentException("invalid cursor: " + s);
+    }
+    char type = s.charAt(0);
+    int numInts;
+    switch (type) {
+      case INDEX_ORDER:
+        numInts = 3;
+        break;
+      case SORT_KEY:
+        numInts = 3;
+        break;
+      case DOC_ORDER:
+        numInts = 4;
+        break;
+      default:
+        throw new IllegalArgumentException("invalid cursor: " + s);
+    }
+    int[] ints = new int[numInts];
+    int start = 2;
+    try {
+      for (int i = 0; i < numInts; i++) {
+        int end = s.indexOf(SEP, start);
+        if (end < 0) {
+          if (i < numInts - 1 || type != INDEX_ORDER) {
+            throw new IllegalArgumentException("invalid cursor: " + s);
+          }
+          end = s.length();
+        }
+        ints[i] = Integer.parseInt(s.substring(start, end));
+        start = end + 1;
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("invalid cursor: " + s, e);
+    }
+    if (type == INDEX_ORDER) {
+      if (start <= s.length()) {
+        throw new IllegalArgumentException("invalid cursor: " + s);
+      }
+      return new ConcordanceCursor(ints[0], ints[1], ints[2]);
+    }
+    //the sort key is the rest of the string, separators and all
+    String key = s.substring(start);
+    ConcordanceSortKey sortKey = (type == DOC_ORDER) ?
+        new DocumentOrderSortKey(key, ints[3]) : new ConcordanceSortKey(key);
+    return new ConcordanceCursor(sortKey, ints[0], ints[1], ints[2]);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    ConcordanceCursor other = (ConcordanceCursor) obj;
+    return doc == other.doc &&
+        targetTokenStart == other.targetTokenStart &&
+        targetTokenEnd == other.targetTokenEnd &&
+        Objects.equals(sortKey, other.sortKey);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(sortKey, doc, targetTokenStart, targetTokenEnd);
+  }
+
+  @Override
+  public String toString() {
+    return "ConcordanceCursor{sortKey=" + sortKey + ", doc=" + doc +
+        ", targetTokenStart=" + targetTokenStart + ", targetTokenEnd=" + targetTokenEnd + "}";
+  }
+}
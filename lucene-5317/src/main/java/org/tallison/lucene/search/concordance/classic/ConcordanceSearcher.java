@@ -18,10 +18,15 @@
 package org.tallison.lucene.search.concordance.classic;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.document.Document;
@@ -33,13 +38,16 @@ import org.apache.lucene.search.Query;
 import org.tallison.lucene.search.concordance.charoffsets.DocTokenOffsets;
 import org.tallison.lucene.search.concordance.charoffsets.DocTokenOffsetsVisitor;
 import org.tallison.lucene.search.concordance.charoffsets.OffsetLengthStartComparator;
+import org.tallison.lucene.search.concordance.charoffsets.OffsetStartComparator;
 import org.tallison.lucene.search.concordance.charoffsets.OffsetUtil;
 import org.tallison.lucene.search.concordance.charoffsets.RandomAccessCharOffsetContainer;
 import org.tallison.lucene.search.concordance.charoffsets.ReanalyzingTokenCharOffsetsReader;
 import org.tallison.lucene.search.concordance.charoffsets.SpansCrawler;
 import org.tallison.lucene.search.concordance.charoffsets.TargetTokenNotFoundException;
+import org.tallison.lucene.search.concordance.charoffsets.TermVectorTokenCharOffsetsReader;
 import org.tallison.lucene.search.concordance.charoffsets.TokenCharOffsetRequests;
 import org.tallison.lucene.search.concordance.charoffsets.TokenCharOffsetsReader;
+import org.tallison.lucene.search.concordance.util.ConcordanceCache;
 import org.tallison.lucene.search.concordance.util.ConcordanceSearcherUtil;
 import org.tallison.lucene.search.spans.SimpleSpanQueryConverter;
 import org.apache.lucene.search.spans.SpanQuery;
@@ -55,10 +63,16 @@ public class ConcordanceSearcher {
    */
   private boolean allowTargetOverlaps = false;
 
+  private boolean consumeAllTokens = true;
+
   private WindowBuilder windowBuilder;
 
   private SimpleSpanQueryConverter spanQueryConverter;
 
+  private ExecutorService executorService = null;
+
+  private ConcordanceCache cache = null;
+
   /**
    * Constructor with default WindowBuilder and SimpleSpanQueryConverter
    */
@@ -106,12 +120,39 @@ public class ConcordanceSearcher {
                      Query filterQuery, Analyzer analyzer, AbstractConcordanceWindowCollector collector)
       throws TargetTokenNotFoundException, IllegalArgumentException,
       IOException {
+    searchAfter(null, searcher, fieldName, mainQuery, filterQuery, analyzer, collector);
+  }
+
+  /**
+   * Like
+   * {@link #search(IndexSearcher, String, Query, Query, Analyzer, AbstractConcordanceWindowCollector)}
+   * but this only collects the windows that come after the cursor, e.g. the
+   * next page of windows after a search with the same query and settings.
+   *
+   * @param after     cursor from {@link AbstractConcordanceWindowCollector#getCursor()}
+   *                  for the previous page, or null for the first page
+   * @param searcher   searcher to search
+   * @param fieldName field to build the windows on
+   * @param mainQuery     see {@link #search(IndexSearcher, String, Query, Query, Analyzer, AbstractConcordanceWindowCollector)}
+   * @param filterQuery    include a filterQuery mainQuery. Value can be null
+   * @param analyzer  analyzer to use for (re)calculating character offsets and for normalizing
+   *                  the sort keys
+   * @param collector collector to use for search
+   * @throws TargetTokenNotFoundException if target token is not found
+   * @throws IllegalArgumentException if the field can't be found in the main query
+   * @throws java.io.IOException if there is an underlying IOException in the reader
+   */
+  public void searchAfter(ConcordanceCursor after, IndexSearcher searcher, String fieldName,
+                          Query mainQuery, Query filterQuery, Analyzer analyzer,
+                          AbstractConcordanceWindowCollector collector)
+      throws TargetTokenNotFoundException, IllegalArgumentException,
+      IOException {
     if (mainQuery == null) {
       return;
     }
     if (mainQuery instanceof SpanQuery) {
       // pass through
-      searchSpan(searcher, (SpanQuery) mainQuery, filterQuery, analyzer, collector);
+      searchSpanAfter(after, searcher, (SpanQuery) mainQuery, filterQuery, analyzer, collector);
     } else {
       // convert regular mainQuery to a SpanQuery.
       SpanQuery spanQuery = spanQueryConverter.convert(fieldName, mainQuery);
@@ -123,7 +164,7 @@ public class ConcordanceSearcher {
           .add(mainQuery, BooleanClause.Occur.MUST)
           .add(filterQuery, BooleanClause.Occur.FILTER).build();
       }
-      searchSpan(searcher, spanQuery, updatedFilter, analyzer, collector);
+      searchSpanAfter(after, searcher, spanQuery, updatedFilter, analyzer, collector);
     }
   }
 
@@ -143,20 +184,124 @@ public class ConcordanceSearcher {
    */
   public void searchSpan(IndexSearcher searcher,
                          SpanQuery spanQuery,
-                         Query filter, Analyzer analyzer, AbstractConcordanceWindowCollector collector)
+                         Query filter, final Analyzer analyzer,
+                         final AbstractConcordanceWindowCollector collector)
+      throws TargetTokenNotFoundException, IllegalArgumentException,
+      IOException {
+    searchSpanAfter(null, searcher, spanQuery, filter, analyzer, collector);
+  }
+
+  /**
+   * Like
+   * {@link #searchAfter(ConcordanceCursor, IndexSearcher, String, Query, Query, Analyzer, AbstractConcordanceWindowCollector)}
+   * but this takes a SpanQuery.
+   * <p>
+   * If the cursor is for windows in index order, the crawl starts at the
+   * cursor's document.  If it is for windows in sort order, every hit is
+   * still visited, but windows that sort before the cursor are never built.
+   *
+   * @param after     cursor for the previous page or null
+   * @param searcher    searcher
+   * @param spanQuery query to use to identify the targets
+   * @param filter    filter for document retrieval
+   * @param analyzer  to re-analyze terms for window calculations and sort key building
+   * @param collector to process (and store) the results
+   * @throws TargetTokenNotFoundException if target token is not found
+   * @throws IllegalArgumentException if the field can't be found in the main query
+   * @throws java.io.IOException if there is an underlying IOException in the reader
+   */
+  public void searchSpanAfter(final ConcordanceCursor after, IndexSearcher searcher,
+                              SpanQuery spanQuery,
+                              Query filter, final Analyzer analyzer,
+                              final AbstractConcordanceWindowCollector collector)
       throws TargetTokenNotFoundException, IllegalArgumentException,
       IOException {
 
-    Set<String> fields = new HashSet<>(
+    final Set<String> fields = new HashSet<>(
         windowBuilder.getFieldSelector());
     fields.add(spanQuery.getField());
-    DocTokenOffsetsVisitor visitor = new ConcDTOffsetVisitor(spanQuery.getField(), analyzer,
-        fields, collector);
-    SpansCrawler.crawl(spanQuery, filter, searcher, visitor);
+    ConcordanceCache.Key key = null;
+    if (cache != null) {
+      key = ConcordanceCache.newKey(searcher, spanQuery, filter, spanQuery.getField(),
+          windowBuilder.getTokensBefore(), windowBuilder.getTokensAfter(),
+          //analyzers don't implement equals, so they are compared by identity
+          Arrays.asList(windowBuilder, allowTargetOverlaps,
+              collector.getClass(), collector.getMaxWindows(), after, analyzer));
+    }
+    if (key != null) {
+      @SuppressWarnings("unchecked")
+      List<AbstractConcordanceWindowCollector> leafCollectors =
+          (List<AbstractConcordanceWindowCollector>) cache.get(key);
+      if (leafCollectors == null) {
+        leafCollectors = collectLeaves(searcher, spanQuery, filter, analyzer, fields,
+            after, collector);
+        long numWindows = 0;
+        for (AbstractConcordanceWindowCollector leafCollector : leafCollectors) {
+          numWindows += leafCollector.size();
+        }
+        cache.put(key, leafCollectors, numWindows);
+      }
+      merge(collector, leafCollectors);
+    } else if (executorService == null) {
+      DocTokenOffsetsVisitor visitor = new ConcDTOffsetVisitor(spanQuery.getField(), analyzer,
+          fields, after, collector);
+      SpansCrawler.crawl(spanQuery, filter, searcher, getMinDoc(after), visitor);
+    } else {
+      merge(collector, collectLeaves(searcher, spanQuery, filter, analyzer, fields,
+          after, collector));
+    }
 
     collector.setTotalDocs(searcher.getIndexReader().numDocs());
   }
 
+  /**
+   * Collects the windows into leaf collectors built by the collector,
+   * one per leaf if the search is parallel, otherwise a single one.
+   */
+  private List<AbstractConcordanceWindowCollector> collectLeaves(IndexSearcher searcher,
+      SpanQuery spanQuery, Query filter, final Analyzer analyzer, final Set<String> fields,
+      final ConcordanceCursor after, final AbstractConcordanceWindowCollector collector)
+      throws TargetTokenNotFoundException, IOException {
+    final String fieldName = spanQuery.getField();
+    if (executorService == null) {
+      AbstractConcordanceWindowCollector leafCollector = collector.newLeafCollector();
+      SpansCrawler.crawl(spanQuery, filter, searcher, getMinDoc(after),
+          new ConcDTOffsetVisitor(fieldName, analyzer, fields, after, leafCollector));
+      return Collections.singletonList(leafCollector);
+    }
+    List<ConcDTOffsetVisitor> visitors = SpansCrawler.crawl(spanQuery, filter, searcher,
+        getMinDoc(after), new Supplier<ConcDTOffsetVisitor>() {
+          @Override
+          public ConcDTOffsetVisitor get() {
+            return new ConcDTOffsetVisitor(fieldName, analyzer, fields, after,
+                collector.newLeafCollector());
+          }
+        }, executorService);
+    List<AbstractConcordanceWindowCollector> leafCollectors = new ArrayList<>(visitors.size());
+    for (ConcDTOffsetVisitor visitor : visitors) {
+      leafCollectors.add(visitor.collector);
+    }
+    return leafCollectors;
+  }
+
+  /**
+   * @return first doc that can have windows after the cursor, if the
+   * windows are in index order
+   */
+  private static int getMinDoc(ConcordanceCursor after) {
+    return (after == null || after.isSorted()) ? 0 : after.getDoc();
+  }
+
+  private static void merge(AbstractConcordanceWindowCollector collector,
+                            List<AbstractConcordanceWindowCollector> leafCollectors) {
+    for (AbstractConcordanceWindowCollector leafCollector : leafCollectors) {
+      collector.merge(leafCollector);
+      if (collector.getHitMax()) {
+        break;
+      }
+    }
+  }
+
 
   /**
    * Spans can overlap: a search for ["ab cd" "ab"] would have
@@ -170,6 +315,49 @@ public class ConcordanceSearcher {
     this.allowTargetOverlaps = allowTargetOverlaps;
   }
 
+  /**
+   * When character offsets have to be recalculated by reanalysis,
+   * whether to consume the rest of each TokenStream after the last token
+   * needed for the windows has been found.  Default is true.
+   * Setting this to false can save a great deal of analysis on long
+   * fields, but some tokenizers (e.g. MockTokenizer) require
+   * that all tokens be consumed.
+   *
+   * @param consumeAllTokens whether to consume all tokens
+   */
+  public void setConsumeAllTokens(boolean consumeAllTokens) {
+    this.consumeAllTokens = consumeAllTokens;
+  }
+
+  /**
+   * If set, each leaf of the index is crawled as a separate task on
+   * this executor, and the per-leaf results are merged into the collector
+   * in leaf order.  The caller owns the executor and is responsible
+   * for shutting it down.
+   *
+   * @param executorService executor to use or null (default) to search
+   *                        the leaves sequentially on the calling thread
+   */
+  public void setExecutorService(ExecutorService executorService) {
+    this.executorService = executorService;
+  }
+
+  /**
+   * If set, the leaf collectors of each search are cached, and a search
+   * with the same query, filter, window settings, collector class,
+   * maxWindows and cursor on the same reader merges the cached leaf collectors into
+   * its collector instead of crawling the index.
+   * <p>
+   * The window builder is part of the cache key, so its sort key builder,
+   * metadata extractor and doc id builder should implement equals and
+   * hashCode, or the same instances should be reused across searches.
+   *
+   * @param cache cache to use or null (default) to not cache
+   */
+  public void setCache(ConcordanceCache cache) {
+    this.cache = cache;
+  }
+
   private void throwMissingField(Document document) throws IllegalArgumentException {
     StringBuilder sb = new StringBuilder();
     sb.append("Did you forget to load or specify the correct content field?!");
@@ -196,6 +384,7 @@ public class ConcordanceSearcher {
     final DocTokenOffsets docTokenOffsets = new DocTokenOffsets();
     final Analyzer analyzer;
     final String fieldName;
+    final ConcordanceCursor after;
     final AbstractConcordanceWindowCollector collector;
     TokenCharOffsetRequests requests = new TokenCharOffsetRequests();
 
@@ -204,15 +393,18 @@ public class ConcordanceSearcher {
 
     RandomAccessCharOffsetContainer offsetResults = new RandomAccessCharOffsetContainer();
     OffsetLengthStartComparator offsetLengthStartComparator = new OffsetLengthStartComparator();
+    OffsetStartComparator offsetStartComparator = new OffsetStartComparator();
 
 
     ConcDTOffsetVisitor(String fieldName, Analyzer analyzer, Set<String> fields,
-                        AbstractConcordanceWindowCollector collector) {
+                        ConcordanceCursor after, AbstractConcordanceWindowCollector collector) {
       this.fieldName = fieldName;
       this.analyzer = analyzer;
       this.fields = fields;
+      this.after = after;
       this.collector = collector;
-      tokenOffsetsRecordReader = new ReanalyzingTokenCharOffsetsReader(analyzer);
+      tokenOffsetsRecordReader = new TermVectorTokenCharOffsetsReader(
+          new ReanalyzingTokenCharOffsetsReader(analyzer, consumeAllTokens));
 
     }
     @Override
@@ -234,15 +426,20 @@ public class ConcordanceSearcher {
       if (fieldValues == null || fieldValues.length == 0) {
         throwMissingField(document);
       }
-      Map<String, String> metadata = windowBuilder.extractMetadata(document);
-      String docId = windowBuilder.getUniqueDocumentId(document, docTokenOffsets.getUniqueDocId());
+      Map<String, String> metadata = windowBuilder.extractMetadata(docTokenOffsets);
+      String docId = windowBuilder.getUniqueDocumentId(docTokenOffsets);
 
       List<OffsetAttribute> tokenOffsets = docTokenOffsets.getOffsets();
+      //windows are visited in reading order so that the order in which
+      //they are collected matches the order of their positions for paging
       if (!allowTargetOverlaps) {
         // remove overlapping hits!!!
         tokenOffsets = OffsetUtil.removeOverlapsAndSort(tokenOffsets,
-            offsetLengthStartComparator, null);
+            offsetLengthStartComparator, offsetStartComparator);
+      } else {
+        Collections.sort(tokenOffsets, offsetStartComparator);
       }
+      int doc = (int) docTokenOffsets.getUniqueDocId();
 
       //clear then get new requests
       requests.clear();
@@ -252,14 +449,31 @@ public class ConcordanceSearcher {
       offsetResults.clear();
 
       tokenOffsetsRecordReader.getTokenCharOffsetResults(
+          docTokenOffsets.getLeafReader(), docTokenOffsets.getAtomicDocId(),
           document, fieldName, requests, offsetResults);
 
       for (OffsetAttribute offset : tokenOffsets) {
+        int targetTokenStart = offset.startOffset();
+        int targetTokenEnd = offset.endOffset() - 1;
+        if (after != null && !after.isSorted() &&
+            !after.isBefore(doc, targetTokenStart, targetTokenEnd)) {
+          continue;
+        }
         try {
+          ConcordanceSortKey sortKey = windowBuilder.buildSortKey(docId,
+              targetTokenStart, targetTokenEnd, offsetResults, metadata);
+          if (after != null && after.isSorted() &&
+              !after.isBefore(sortKey, doc, targetTokenStart, targetTokenEnd)) {
+            continue;
+          }
+          if (!collector.isCompetitive(sortKey)) {
+            continue;
+          }
           ConcordanceWindow w = windowBuilder.buildConcordanceWindow(
-              docId, offset.startOffset(),
-              offset.endOffset() - 1, fieldValues,
-              offsetResults, metadata);
+              docId, targetTokenStart,
+              targetTokenEnd, fieldValues,
+              offsetResults, metadata, sortKey);
+          w.setPosition(doc, targetTokenStart, targetTokenEnd);
           collector.collect(w);
         } catch (TargetTokenNotFoundException e) {
           throw new IllegalArgumentException(e);
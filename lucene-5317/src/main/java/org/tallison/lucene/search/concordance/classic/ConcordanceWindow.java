@@ -43,6 +43,10 @@ public class ConcordanceWindow {
   //used by hide duplicates to count more than one occurrence of a window
   private int count = 1;
   private Map<String, String> metadata;
+  //position of the target, used for paging; -1 if unknown
+  private int luceneDocId = -1;
+  private int targetTokenStart = -1;
+  private int targetTokenEnd = -1;
 
   /**
    * @param uniqueDocID string representing what should be a unique document identifier
@@ -66,6 +70,19 @@ public class ConcordanceWindow {
     this.sortKey = sortKey;
   }
 
+  /**
+   * Copies the window, including its count, so that the copy's count can
+   * be changed without changing the original's.
+   *
+   * @param other window to copy
+   */
+  public ConcordanceWindow(ConcordanceWindow other) {
+    this(other.uniqueDocID, other.charStart, other.charEnd, other.pre, other.target,
+        other.post, other.sortKey, other.metadata);
+    this.count = other.count;
+    setPosition(other.luceneDocId, other.targetTokenStart, other.targetTokenEnd);
+  }
+
   public String getUniqueDocID() {
     return uniqueDocID;
   }
@@ -124,6 +141,34 @@ public class ConcordanceWindow {
     return sortKey;
   }
 
+  /**
+   * @return Lucene doc id of the window's document, or -1 if unknown.
+   * This is only valid for the reader that was searched.
+   */
+  public int getLuceneDocId() {
+    return luceneDocId;
+  }
+
+  /**
+   * @return position of the first target token, or -1 if unknown
+   */
+  public int getTargetTokenStart() {
+    return targetTokenStart;
+  }
+
+  /**
+   * @return position of the last target token, or -1 if unknown
+   */
+  public int getTargetTokenEnd() {
+    return targetTokenEnd;
+  }
+
+  void setPosition(int luceneDocId, int targetTokenStart, int targetTokenEnd) {
+    this.luceneDocId = luceneDocId;
+    this.targetTokenStart = targetTokenStart;
+    this.targetTokenEnd = targetTokenEnd;
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
@@ -17,8 +17,10 @@
 
 package org.tallison.lucene.search.concordance.classic;
 
+import java.io.IOException;
 import java.util.Set;
 import org.apache.lucene.document.Document;
+import org.tallison.lucene.search.concordance.charoffsets.DocTokenOffsets;
 
 
 /**
@@ -31,4 +33,20 @@ public interface DocIdBuilder {
 
   public Set<String> getFields();
   public String build(Document document, long docId);
+
+  /**
+   * Like {@link #build(Document, long)}, but with access to the leaf that
+   * the document came from so that implementations can read the id from
+   * doc values instead of stored fields.  Per-leaf state, such as doc values
+   * iterators, belongs in {@link DocTokenOffsets#getLeafState(Object)}.
+   * The default ignores the leaf.
+   *
+   * @param docTokenOffsets document, with its leaf reader (which can be null)
+   *                        and the fields from {@link #getFields()}
+   * @return unique string for the document
+   * @throws IOException on an underlying IOException
+   */
+  default String build(DocTokenOffsets docTokenOffsets) throws IOException {
+    return build(docTokenOffsets.getDocument(), docTokenOffsets.getUniqueDocId());
+  }
 }
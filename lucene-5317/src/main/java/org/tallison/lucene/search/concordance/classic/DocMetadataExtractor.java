@@ -16,9 +16,11 @@
  */
 package org.tallison.lucene.search.concordance.classic;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
 import org.apache.lucene.document.Document;
+import org.tallison.lucene.search.concordance.charoffsets.DocTokenOffsets;
 
 /**
  * Simple interface for a component that extracts metadata from
@@ -40,4 +42,20 @@ public interface DocMetadataExtractor {
    */
   public Map<String, String> extract(Document document);
 
+  /**
+   * Like {@link #extract(Document)}, but with access to the leaf that the
+   * document came from so that implementations can read metadata from doc
+   * values instead of stored fields.  Per-leaf state, such as doc values
+   * iterators, belongs in {@link DocTokenOffsets#getLeafState(Object)}.
+   * The default ignores the leaf.
+   *
+   * @param docTokenOffsets document, with its leaf reader (which can be null)
+   *                        and the fields from {@link #getFieldSelector()}
+   * @return document metadata to be stored with each window
+   * @throws IOException on an underlying IOException
+   */
+  default Map<String, String> extract(DocTokenOffsets docTokenOffsets) throws IOException {
+    return extract(docTokenOffsets.getDocument());
+  }
+
 }
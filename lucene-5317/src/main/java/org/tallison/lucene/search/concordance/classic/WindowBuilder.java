@@ -18,18 +18,20 @@
 package org.tallison.lucene.search.concordance.classic;
 
 
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttributeImpl;
 import org.apache.lucene.document.Document;
+import org.tallison.lucene.search.concordance.charoffsets.DocTokenOffsets;
 import org.tallison.lucene.search.concordance.charoffsets.RandomAccessCharOffsetContainer;
 import org.tallison.lucene.search.concordance.charoffsets.SimpleAnalyzerUtil;
 import org.tallison.lucene.search.concordance.charoffsets.TargetTokenNotFoundException;
 import org.tallison.lucene.search.concordance.classic.impl.DefaultSortKeyBuilder;
-import org.tallison.lucene.search.concordance.classic.impl.FieldBasedDocIdBuilder;
 import org.tallison.lucene.search.concordance.classic.impl.IndexIdDocIdBuilder;
 import org.tallison.lucene.search.concordance.classic.impl.SimpleDocMetadataExtractor;
 
@@ -114,6 +116,55 @@ public class WindowBuilder {
                                                   Map<String, String> metadata)
       throws TargetTokenNotFoundException,
       IllegalArgumentException {
+    return buildConcordanceWindow(uniqueDocID, targetTokenStart, targetTokenEnd,
+        fieldValues, offsets, metadata,
+        buildSortKey(uniqueDocID, targetTokenStart, targetTokenEnd, offsets, metadata));
+  }
+
+  /**
+   * Builds only the sort key for a window.  This is much cheaper than
+   * building the window, and it allows a collector to decide whether
+   * a window is worth building.
+   *
+   * @param uniqueDocID      ephemeral internal lucene unique document id
+   * @param targetTokenStart Target's start token
+   * @param targetTokenEnd   Target's end token
+   * @param offsets          TokenOffsetResults from
+   * @param metadata         Metadata to be stored with the window
+   * @return sort key
+   */
+  public ConcordanceSortKey buildSortKey(String uniqueDocID,
+                                         int targetTokenStart, int targetTokenEnd,
+                                         RandomAccessCharOffsetContainer offsets,
+                                         Map<String, String> metadata) {
+    return sortKeyBuilder.buildKey(uniqueDocID,
+        targetTokenStart, targetTokenEnd, offsets, tokensBefore, tokensAfter, metadata);
+  }
+
+  /**
+   * Like {@link #buildConcordanceWindow(String, int, int, String[], RandomAccessCharOffsetContainer, Map)},
+   * but with a sort key that was already built by
+   * {@link #buildSortKey(String, int, int, RandomAccessCharOffsetContainer, Map)}.
+   *
+   * @param uniqueDocID      ephemeral internal lucene unique document id
+   * @param targetTokenStart Target's start token
+   * @param targetTokenEnd   Target's end token
+   * @param fieldValues      field values
+   * @param offsets          TokenOffsetResults from
+   * @param metadata         Metadata to be stored with the window
+   * @param sortKey          sort key for the window
+   * @return ConcordanceWindow
+   * @throws TargetTokenNotFoundException if target token cannot be found
+   * @throws IllegalArgumentException if the start token comes after the end token
+   */
+  public ConcordanceWindow buildConcordanceWindow(String uniqueDocID,
+                                                  int targetTokenStart, int targetTokenEnd,
+                                                  String[] fieldValues,
+                                                  RandomAccessCharOffsetContainer offsets,
+                                                  Map<String, String> metadata,
+                                                  ConcordanceSortKey sortKey)
+      throws TargetTokenNotFoundException,
+      IllegalArgumentException {
 
     if (targetTokenStart < 0 || targetTokenEnd < 0) {
       throw new IllegalArgumentException(
@@ -152,8 +203,6 @@ public class WindowBuilder {
     String targString = SimpleAnalyzerUtil.substringFromMultiValuedFields(
         targetCharStart, targetCharEnd, fieldValues,
         offsetGap, INTER_MULTIVALUE_FIELD_PADDING);
-    ConcordanceSortKey sortKey = sortKeyBuilder.buildKey(uniqueDocID,
-        targetTokenStart, targetTokenEnd, offsets, tokensBefore, tokensAfter, metadata);
     int charStart = (preCharOffset == null) ? targetCharStart :
         preCharOffset.startOffset();
 
@@ -213,12 +262,14 @@ public class WindowBuilder {
   }
 
 
+  /**
+   * @return stored fields needed for metadata and document ids; fields
+   * that are read from doc values aren't included
+   */
   public Set<String> getFieldSelector() {
     Set<String> set = new HashSet<>();
     set.addAll(metadataExtractor.getFieldSelector());
-    if (docIdBuilder instanceof FieldBasedDocIdBuilder) {
-      set.addAll(((FieldBasedDocIdBuilder) docIdBuilder).getFields());
-    }
+    set.addAll(docIdBuilder.getFields());
     return set;
   }
 
@@ -232,10 +283,35 @@ public class WindowBuilder {
     return metadataExtractor.extract(document);
   }
 
+  /**
+   * Like {@link #extractMetadata(Document)}, but the extractor can read
+   * from the leaf's doc values.
+   *
+   * @param docTokenOffsets document from which to extract metadata
+   * @return map
+   * @throws IOException on an underlying IOException
+   */
+  public Map<String, String> extractMetadata(DocTokenOffsets docTokenOffsets)
+      throws IOException {
+    return metadataExtractor.extract(docTokenOffsets);
+  }
+
   public String getUniqueDocumentId(Document document, long docId) {
     return docIdBuilder.build(document, docId);
   }
 
+  /**
+   * Like {@link #getUniqueDocumentId(Document, long)}, but the id builder
+   * can read from the leaf's doc values.
+   *
+   * @param docTokenOffsets document
+   * @return unique id for the document
+   * @throws IOException on an underlying IOException
+   */
+  public String getUniqueDocumentId(DocTokenOffsets docTokenOffsets) throws IOException {
+    return docIdBuilder.build(docTokenOffsets);
+  }
+
   public int getTokensBefore() {
     return tokensBefore;
   }
@@ -243,4 +319,32 @@ public class WindowBuilder {
   public int getTokensAfter() {
     return tokensAfter;
   }
+
+  /**
+   * Window builders are equal if they build the same windows, which
+   * depends on the equality of their sort key builders, metadata extractors
+   * and doc id builders.  This is used in the key for cached searches.
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    WindowBuilder other = (WindowBuilder) obj;
+    return tokensBefore == other.tokensBefore &&
+        tokensAfter == other.tokensAfter &&
+        offsetGap == other.offsetGap &&
+        Objects.equals(sortKeyBuilder, other.sortKeyBuilder) &&
+        Objects.equals(metadataExtractor, other.metadataExtractor) &&
+        Objects.equals(docIdBuilder, other.docIdBuilder);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(tokensBefore, tokensAfter, offsetGap, sortKeyBuilder,
+        metadataExtractor, docIdBuilder);
+  }
 }
@@ -17,7 +17,7 @@
 package org.tallison.lucene.search.concordance.classic.impl;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import org.tallison.lucene.search.concordance.classic.AbstractConcordanceWindowCollector;
@@ -27,18 +27,53 @@ import org.tallison.lucene.search.concordance.classic.ConcordanceWindow;
  * Like ConcordanceWindowCollector, but this collector
  * doesn't store duplicate windows.  Windows are defined as duplicates by
  * {@link #buildEqualityKey(ConcordanceWindow, StringBuilder)}.
+ * <p>
+ * By default, the equality key itself is stored for each distinct window.
+ * With fingerprintKeys, only a 128-bit hash of the equality key is stored,
+ * which keeps the memory per distinct window constant no matter how
+ * large the windows are.  Unless {@link #buildEqualityKey(ConcordanceWindow, StringBuilder)}
+ * is overridden, the hash is computed straight from the window's pre, target
+ * and post, lowercased char by char, without building the key.
+ * <p>
+ * A hash collision would wrongly merge two different windows; with
+ * verifyFingerprints, windows whose fingerprints match are compared
+ * char by char, and true collisions are stored separately under their
+ * full equality keys.
  */
 public class DedupingConcordanceWindowCollector extends AbstractConcordanceWindowCollector {
 
-  Map<String, ConcordanceWindow> map = new HashMap<String, ConcordanceWindow>();
+  //insertion order so that merging leaf collectors keeps the first windows seen
+  //keys are Strings or Fingerprints
+  Map<Object, ConcordanceWindow> map = new LinkedHashMap<Object, ConcordanceWindow>();
   private StringBuilder sb = new StringBuilder();
+  private StringBuilder verifySb = new StringBuilder();
+  private final FingerprintBuilder fingerprintBuilder = new FingerprintBuilder();
+  private final boolean fingerprintKeys;
+  private final boolean verifyFingerprints;
+  //if a subclass changes the equality key, fingerprints have to be built from it
+  private final boolean customEqualityKey;
 
   /**
    * @param maxHits maximum number of windows to store.  This could potentially
    *                visit lots more windows than maxHits.
    */
   public DedupingConcordanceWindowCollector(int maxHits) {
+    this(maxHits, false, false);
+  }
+
+  /**
+   * @param maxHits maximum number of windows to store.  This could potentially
+   *                visit lots more windows than maxHits.
+   * @param fingerprintKeys store a 128-bit hash of the equality key instead
+   *                        of the key itself
+   * @param verifyFingerprints if fingerprints match, compare the full equality keys
+   */
+  public DedupingConcordanceWindowCollector(int maxHits, boolean fingerprintKeys,
+                                            boolean verifyFingerprints) {
     super(maxHits);
+    this.fingerprintKeys = fingerprintKeys;
+    this.verifyFingerprints = verifyFingerprints;
+    this.customEqualityKey = overridesEqualityKey(getClass());
   }
 
   @Override
@@ -46,27 +81,85 @@ public class DedupingConcordanceWindowCollector extends AbstractConcordanceWindo
     if (getHitMax() == true) {
       return;
     }
-    buildEqualityKey(w, sb);
-    String key = sb.toString();
+    if (add(w, 1, false)) {
+      addDocId(w.getUniqueDocID());
+    }
+  }
+
+  /**
+   * @param w window
+   * @param count number of occurrences to add if the window is a duplicate
+   * @param copy store a copy of the window if it is new, so that the counts
+   *             of windows from other collectors are never changed
+   * @return false if the window was new and there was no room for it
+   */
+  private boolean add(ConcordanceWindow w, int count, boolean copy) {
+    Object key;
+    if (!fingerprintKeys) {
+      buildEqualityKey(w, sb);
+      key = sb.toString();
+    } else if (customEqualityKey) {
+      buildEqualityKey(w, sb);
+      key = fingerprint(sb);
+    } else {
+      key = fingerprint(w);
+    }
     ConcordanceWindow oldWindow = map.get(key);
+    if (oldWindow != null && fingerprintKeys && verifyFingerprints
+        && !sameEqualityKey(w, oldWindow)) {
+      //genuine collision, fall back to the full key
+      buildEqualityKey(w, sb);
+      key = sb.toString();
+      oldWindow = map.get(key);
+    }
     if (oldWindow == null) {
       //we would have added a new window here
       if (getMaxWindows() != AbstractConcordanceWindowCollector.COLLECT_ALL &&
           map.size() >= getMaxWindows()) {
         setHitMax(true);
-        return;
+        return false;
       }
-      oldWindow = w;
+      map.put(key, (copy) ? new ConcordanceWindow(w) : w);
     } else {
       //if the old window existed (i.e. new window is a duplicate)
       //keep incrementing the count
-      oldWindow.incrementCount();
+      oldWindow.setCount(oldWindow.getCount() + count);
     }
+    return true;
+  }
 
-    map.put(key, oldWindow);
-    addDocId(w.getUniqueDocID());
+  /**
+   * If you override {@link #buildEqualityKey(ConcordanceWindow, StringBuilder)},
+   * override this to return an instance of your subclass.
+   *
+   * @return new deduping collector for a single leaf
+   */
+  @Override
+  public AbstractConcordanceWindowCollector newLeafCollector() {
+    return new DedupingConcordanceWindowCollector(getMaxWindows(), fingerprintKeys,
+        verifyFingerprints);
   }
 
+  @Override
+  public void merge(AbstractConcordanceWindowCollector leafCollector) {
+    for (ConcordanceWindow w : leafCollector.getWindows()) {
+      if (getHitMax() == true) {
+        return;
+      }
+      //leaf collectors can be cached and merged again
+      if (!add(w, w.getCount(), true)) {
+        return;
+      }
+      addDocId(w.getUniqueDocID());
+    }
+    //duplicates were collapsed within the leaf, so pick up their docs too
+    for (String docId : leafCollector.getDocIds()) {
+      addDocId(docId);
+    }
+    if (leafCollector.getHitMax()) {
+      setHitMax(true);
+    }
+  }
 
   /**
    * number of windows collected
@@ -90,16 +183,178 @@ public class DedupingConcordanceWindowCollector extends AbstractConcordanceWindo
    * some might want to strip non-alphanumerics, etc.
    * <p>
    * If you are overriding this, make sure to call sb.setLength(0)!
+   * <p>
+   * The default lowercases char by char with {@link Character#toLowerCase(char)},
+   * exactly as the fingerprints do, so that the result doesn't depend on the
+   * default locale and fingerprintKeys never changes which windows are duplicates.
    *
    * @param w  ConcordanceWindow
    * @param sb reuseable StringBuilder; sb.setLength(0) is called before use!
    */
   public void buildEqualityKey(ConcordanceWindow w, StringBuilder sb) {
     sb.setLength(0);
-    sb.append(w.getPre().toLowerCase());
+    appendLowerCase(w.getPre(), sb);
     sb.append(">>>");
-    sb.append(w.getTarget().toLowerCase());
+    appendLowerCase(w.getTarget(), sb);
     sb.append("<<<");
-    sb.append(w.getPost().toLowerCase());
+    appendLowerCase(w.getPost(), sb);
+  }
+
+  private static void appendLowerCase(String s, StringBuilder sb) {
+    for (int i = 0; i < s.length(); i++) {
+      sb.append(Character.toLowerCase(s.charAt(i)));
+    }
+  }
+
+  /**
+   * Fingerprint of the default equality key, hashed straight from the window.
+   * Package private so that tests can force collisions.
+   *
+   * @param w window
+   * @return fingerprint
+   */
+  Fingerprint fingerprint(ConcordanceWindow w) {
+    fingerprintBuilder.reset();
+    fingerprintBuilder.addLowerCase(w.getPre());
+    fingerprintBuilder.add(">>>");
+    fingerprintBuilder.addLowerCase(w.getTarget());
+    fingerprintBuilder.add("<<<");
+    fingerprintBuilder.addLowerCase(w.getPost());
+    return fingerprintBuilder.build();
+  }
+
+  /**
+   * Fingerprint of an equality key that has already been built.
+   * Package private so that tests can force collisions.
+   *
+   * @param equalityKey equality key
+   * @return fingerprint
+   */
+  Fingerprint fingerprint(CharSequence equalityKey) {
+    fingerprintBuilder.reset();
+    fingerprintBuilder.add(equalityKey);
+    return fingerprintBuilder.build();
+  }
+
+  private boolean sameEqualityKey(ConcordanceWindow a, ConcordanceWindow b) {
+    if (customEqualityKey) {
+      //sb still holds a's key
+      buildEqualityKey(b, verifySb);
+      return contentEquals(sb, verifySb);
+    }
+    return equalsLowerCase(a.getPre(), b.getPre()) &&
+        equalsLowerCase(a.getTarget(), b.getTarget()) &&
+        equalsLowerCase(a.getPost(), b.getPost());
+  }
+
+  private static boolean equalsLowerCase(String a, String b) {
+    if (a.length() != b.length()) {
+      return false;
+    }
+    for (int i = 0; i < a.length(); i++) {
+      if (Character.toLowerCase(a.charAt(i)) != Character.toLowerCase(b.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean overridesEqualityKey(Class<?> clazz) {
+    try {
+      return clazz.getMethod("buildEqualityKey", ConcordanceWindow.class, StringBuilder.class)
+          .getDeclaringClass() != DedupingConcordanceWindowCollector.class;
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static boolean contentEquals(StringBuilder a, StringBuilder b) {
+    if (a.length() != b.length()) {
+      return false;
+    }
+    for (int i = 0; i < a.length(); i++) {
+      if (a.charAt(i) != b.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * 128-bit fingerprint of an equality key, built from two
+   * independent 64-bit hashes over the key's chars.
+   */
+  static final class Fingerprint {
+    private final long h1;
+    private final long h2;
+
+    Fingerprint(long h1, long h2) {
+      this.h1 = h1;
+      this.h2 = h2;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (h1 ^ (h1 >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Fingerprint)) {
+        return false;
+      }
+      Fingerprint other = (Fingerprint) obj;
+      return h1 == other.h1 && h2 == other.h2;
+    }
+  }
+
+  /**
+   * Reusable incremental builder for {@link Fingerprint}s
+   */
+  private static final class FingerprintBuilder {
+    private long h1;
+    private long h2;
+    private long length;
+
+    void reset() {
+      //FNV-1a for h1, multiply-rotate for h2
+      h1 = 0xcbf29ce484222325L;
+      h2 = 0x9E3779B97F4A7C15L;
+      length = 0;
+    }
+
+    void add(CharSequence s) {
+      for (int i = 0; i < s.length(); i++) {
+        add(s.charAt(i));
+      }
+    }
+
+    void addLowerCase(CharSequence s) {
+      for (int i = 0; i < s.length(); i++) {
+        add(Character.toLowerCase(s.charAt(i)));
+      }
+    }
+
+    private void add(char c) {
+      h1 = (h1 ^ c) * 0x100000001b3L;
+      h2 = Long.rotateLeft(h2 + c * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+      length++;
+    }
+
+    Fingerprint build() {
+      return new Fingerprint(fmix64(h1 ^ length), fmix64(h2 ^ (length << 32)));
+    }
+
+    private static long fmix64(long k) {
+      k ^= k >>> 33;
+      k *= 0xff51afd7ed558ccdL;
+      k ^= k >>> 33;
+      k *= 0xc4ceb9fe1a85ec53L;
+      k ^= k >>> 33;
+      return k;
+    }
   }
 }
@@ -145,4 +145,19 @@ public class DefaultSortKeyBuilder implements SortKeyBuilder {
     return false;
   }
 
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    return sortOrder == ((DefaultSortKeyBuilder) obj).sortOrder;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * getClass().hashCode() + sortOrder.hashCode();
+  }
 }
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance.classic.impl;
+
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import org.apache.lucene.document.Document;
+import org.tallison.lucene.search.concordance.charoffsets.DocTokenOffsets;
+import org.tallison.lucene.search.concordance.classic.DocIdBuilder;
+
+/**
+ * Like {@link FieldBasedDocIdBuilder}, but this reads the document's unique
+ * key from SORTED, SORTED_SET or BINARY doc values, so the key field
+ * never has to be loaded from stored fields.
+ * <p>
+ * If the document has no value, or if there is no leaf reader,
+ * this returns a string representation of the ephemeral Lucene docId.
+ */
+public class DocValuesDocIdBuilder implements DocIdBuilder {
+
+  private final String fieldName;
+
+  /**
+   * @param fieldName name of the doc values field to be used as a document's unique key
+   */
+  public DocValuesDocIdBuilder(String fieldName) {
+    this.fieldName = fieldName;
+  }
+
+  /**
+   * @return empty set; the key is not read from stored fields
+   */
+  @Override
+  public Set<String> getFields() {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public String build(Document d, long docId) {
+    return Long.toString(docId);
+  }
+
+  @Override
+  public String build(DocTokenOffsets docTokenOffsets) throws IOException {
+    if (docTokenOffsets.getLeafReader() == null) {
+      return build(docTokenOffsets.getDocument(), docTokenOffsets.getUniqueDocId());
+    }
+    //builders are shared across the threads of a parallel search,
+    //so the iterator lives with the crawl's per-leaf state
+    DocValuesStringReader reader = (DocValuesStringReader) docTokenOffsets.getLeafState(this);
+    if (reader == null) {
+      reader = new DocValuesStringReader(fieldName);
+      docTokenOffsets.setLeafState(this, reader);
+    }
+    String id = reader.get(docTokenOffsets.getLeafReader(), docTokenOffsets.getAtomicDocId());
+    return (id == null) ? Long.toString(docTokenOffsets.getUniqueDocId()) : id;
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    return fieldName.equals(((DocValuesDocIdBuilder) obj).fieldName);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * getClass().hashCode() + fieldName.hashCode();
+  }
+}
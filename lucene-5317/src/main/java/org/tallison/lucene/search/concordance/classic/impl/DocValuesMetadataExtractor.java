@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance.classic.impl;
+
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.document.Document;
+import org.tallison.lucene.search.concordance.charoffsets.DocTokenOffsets;
+import org.tallison.lucene.search.concordance.classic.DocMetadataExtractor;
+
+/**
+ * Like {@link SimpleDocMetadataExtractor}, but this reads the metadata
+ * from SORTED, SORTED_SET or BINARY doc values, so looking up a document's
+ * metadata advances a doc values iterator rather than decompressing its
+ * stored fields.
+ * <p>
+ * For SORTED_SET fields, this takes only the first value.
+ */
+public class DocValuesMetadataExtractor implements DocMetadataExtractor {
+
+  private Set<String> fields = new HashSet<>();
+
+  public DocValuesMetadataExtractor(String... fields) {
+    for (String f : fields) {
+      this.fields.add(f);
+    }
+  }
+
+  public DocValuesMetadataExtractor(Set<String> fields) {
+    this.fields.addAll(fields);
+  }
+
+  /**
+   * @return doc values fields to extract
+   */
+  public Set<String> getFields() {
+    return Collections.unmodifiableSet(fields);
+  }
+
+  /**
+   * @return empty set; nothing is read from stored fields
+   */
+  @Override
+  public Set<String> getFieldSelector() {
+    return Collections.emptySet();
+  }
+
+  /**
+   * @return empty map; there is nothing to extract without a leaf reader
+   */
+  @Override
+  public Map<String, String> extract(Document document) {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public Map<String, String> extract(DocTokenOffsets docTokenOffsets) throws IOException {
+    if (docTokenOffsets.getLeafReader() == null) {
+      return extract(docTokenOffsets.getDocument());
+    }
+    //extractors are shared across the threads of a parallel search,
+    //so the iterators live with the crawl's per-leaf state
+    @SuppressWarnings("unchecked")
+    Map<String, DocValuesStringReader> readers =
+        (Map<String, DocValuesStringReader>) docTokenOffsets.getLeafState(this);
+    if (readers == null) {
+      readers = new HashMap<>();
+      for (String f : fields) {
+        readers.put(f, new DocValuesStringReader(f));
+      }
+      docTokenOffsets.setLeafState(this, readers);
+    }
+    Map<String, String> map = new HashMap<>();
+    for (Map.Entry<String, DocValuesStringReader> e : readers.entrySet()) {
+      String value = e.getValue().get(docTokenOffsets.getLeafReader(),
+          docTokenOffsets.getAtomicDocId());
+      if (value != null) {
+        map.put(e.getKey(), value);
+      }
+    }
+    return map;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    return fields.equals(((DocValuesMetadataExtractor) obj).fields);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * getClass().hashCode() + fields.hashCode();
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance.classic.impl;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.tallison.lucene.search.concordance.charoffsets.DocTokenOffsets;
+
+/**
+ * Reads a single string value per document from doc values.
+ * <p>
+ * Hits within a leaf arrive in doc order, so one iterator is kept for the
+ * current leaf and advanced from hit to hit; a new one is only pulled when
+ * the leaf changes or a lookup goes backwards.  This is not thread safe;
+ * callers that are shared across the threads of a parallel search keep
+ * theirs in the crawl's {@link DocTokenOffsets#getLeafState(Object)}, which
+ * also drops it, and its reader, when the crawl moves to the next leaf.
+ */
+class DocValuesStringReader {
+
+  private final String field;
+  private LeafReader reader = null;
+  private DocValuesType type = DocValuesType.NONE;
+  private SortedDocValues sorted = null;
+  private SortedSetDocValues sortedSet = null;
+  private BinaryDocValues binary = null;
+  private int lastDocId = -1;
+  private String lastValue = null;
+
+  /**
+   * @param field field with SORTED, SORTED_SET or BINARY doc values
+   */
+  DocValuesStringReader(String field) {
+    this.field = field;
+  }
+
+  /**
+   * @param reader    leaf reader
+   * @param leafDocId leaf-level doc id
+   * @return value, the first value for SORTED_SET, or null if the document
+   * has no value or the field has no string doc values
+   * @throws IOException on an underlying IOException
+   */
+  String get(LeafReader reader, int leafDocId) throws IOException {
+    if (reader != this.reader || leafDocId < lastDocId) {
+      reset(reader);
+    } else if (leafDocId == lastDocId) {
+      return lastValue;
+    }
+    lastDocId = leafDocId;
+    lastValue = read(leafDocId);
+    return lastValue;
+  }
+
+  private void reset(LeafReader reader) throws IOException {
+    this.reader = reader;
+    lastDocId = -1;
+    lastValue = null;
+    sorted = null;
+    sortedSet = null;
+    binary = null;
+    FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(field);
+    type = (fieldInfo == null) ? DocValuesType.NONE : fieldInfo.getDocValuesType();
+    switch (type) {
+      case SORTED:
+        sorted = reader.getSortedDocValues(field);
+        break;
+      case SORTED_SET:
+        sortedSet = reader.getSortedSetDocValues(field);
+        break;
+      case BINARY:
+        binary = reader.getBinaryDocValues(field);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private String read(int leafDocId) throws IOException {
+    switch (type) {
+      case SORTED:
+        if (sorted != null && sorted.advanceExact(leafDocId)) {
+          return sorted.lookupOrd(sorted.ordValue()).utf8ToString();
+        }
+        return null;
+      case SORTED_SET:
+        if (sortedSet != null && sortedSet.advanceExact(leafDocId)) {
+          return sortedSet.lookupOrd(sortedSet.nextOrd()).utf8ToString();
+        }
+        return null;
+      case BINARY:
+        if (binary != null && binary.advanceExact(leafDocId)) {
+          return binary.binaryValue().utf8ToString();
+        }
+        return null;
+      default:
+        return null;
+    }
+  }
+}
@@ -31,6 +31,13 @@ public class DocumentOrderSortKey extends ConcordanceSortKey {
     this.targetCharStart = targetCharStart;
   }
 
+  /**
+   * @return character offset of the start of the target
+   */
+  public int getTargetCharStart() {
+    return targetCharStart;
+  }
+
   @Override
   public int compareTo(ConcordanceSortKey o) {
     if (o instanceof DocumentOrderSortKey) {
@@ -68,4 +68,20 @@ public class FieldBasedDocIdBuilder implements DocIdBuilder {
     fields.add(fieldName);
     return fields;
   }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    return fieldName.equals(((FieldBasedDocIdBuilder) obj).fieldName);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * getClass().hashCode() + fieldName.hashCode();
+  }
 }
@@ -39,4 +39,13 @@ public class IndexIdDocIdBuilder implements DocIdBuilder {
     return Long.toString(docId);
   }
 
+  @Override
+  public boolean equals(Object obj) {
+    return obj != null && getClass() == obj.getClass();
+  }
+
+  @Override
+  public int hashCode() {
+    return getClass().hashCode();
+  }
 }
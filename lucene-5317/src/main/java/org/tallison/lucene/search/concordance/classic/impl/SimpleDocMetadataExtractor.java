@@ -69,4 +69,19 @@ public class SimpleDocMetadataExtractor implements DocMetadataExtractor {
     return map;
   }
 
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    return fields.equals(((SimpleDocMetadataExtractor) obj).fields);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * getClass().hashCode() + fields.hashCode();
+  }
 }
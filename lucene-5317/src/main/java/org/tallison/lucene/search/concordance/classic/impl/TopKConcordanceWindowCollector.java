@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance.classic.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import org.tallison.lucene.search.concordance.classic.AbstractConcordanceWindowCollector;
+import org.tallison.lucene.search.concordance.classic.ConcordanceCursor;
+import org.tallison.lucene.search.concordance.classic.ConcordanceSortKey;
+import org.tallison.lucene.search.concordance.classic.ConcordanceWindow;
+
+/**
+ * Collector that keeps only the top maxWindows windows by sort key
+ * in a bounded heap.  Unlike {@link ConcordanceWindowCollector}, this
+ * visits every hit and never stops early, but memory is bounded by maxWindows
+ * rather than the number of hits.
+ * <p>
+ * Windows whose sort keys can't make the cut are rejected by
+ * {@link #isCompetitive(ConcordanceSortKey)} before they are built.
+ * Ties are broken in favor of the window that was collected first, so the
+ * results are the same as collecting everything, sorting and then
+ * truncating.
+ */
+public class TopKConcordanceWindowCollector extends AbstractConcordanceWindowCollector {
+
+  private final PriorityQueue<Entry> queue;
+  private int collected = 0;
+
+  /**
+   * @param maxWindows number of windows to keep; must be &gt; 0
+   */
+  public TopKConcordanceWindowCollector(int maxWindows) {
+    super(maxWindows);
+    if (maxWindows < 1) {
+      throw new IllegalArgumentException("maxWindows must be > 0");
+    }
+    //head of the queue is the worst window
+    queue = new PriorityQueue<>(Math.min(maxWindows, 1024), new Comparator<Entry>() {
+      @Override
+      public int compare(Entry e1, Entry e2) {
+        return compareEntries(e2, e1);
+      }
+    });
+  }
+
+  @Override
+  public boolean isCompetitive(ConcordanceSortKey sortKey) {
+    if (queue.size() < getMaxWindows()) {
+      return true;
+    }
+    //ties go to the earlier window, which is already in the queue
+    return sortKey.compareTo(queue.peek().window.getSortKey()) < 0;
+  }
+
+  @Override
+  public void collect(ConcordanceWindow w) {
+    Entry entry = new Entry(w, collected++);
+    if (queue.size() < getMaxWindows()) {
+      queue.add(entry);
+    } else if (compareEntries(entry, queue.peek()) < 0) {
+      queue.poll();
+      queue.add(entry);
+    }
+  }
+
+  @Override
+  public int size() {
+    return queue.size();
+  }
+
+  /**
+   * @return windows in sort order
+   */
+  @Override
+  public List<ConcordanceWindow> getWindows() {
+    List<Entry> entries = new ArrayList<>(queue);
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry e1, Entry e2) {
+        return compareEntries(e1, e2);
+      }
+    });
+    List<ConcordanceWindow> windows = new ArrayList<>(entries.size());
+    for (Entry e : entries) {
+      windows.add(e.window);
+    }
+    return windows;
+  }
+
+  /**
+   * Windows with equal sort keys are collected in index order,
+   * so the last window in sort order is the last one on the page.
+   *
+   * @return cursor after the last window in sort order or null
+   * if there were fewer than maxWindows windows
+   */
+  @Override
+  public ConcordanceCursor getCursor() {
+    if (queue.size() < getMaxWindows()) {
+      return null;
+    }
+    List<ConcordanceWindow> windows = getWindows();
+    return ConcordanceCursor.after(windows.get(windows.size() - 1), true);
+  }
+
+  @Override
+  public AbstractConcordanceWindowCollector newLeafCollector() {
+    return new TopKConcordanceWindowCollector(getMaxWindows());
+  }
+
+  @Override
+  public Set<String> getDocIds() {
+    //only count documents that still have a window in the queue
+    Set<String> docIds = new HashSet<>();
+    for (Entry e : queue) {
+      docIds.add(e.window.getUniqueDocID());
+    }
+    return Collections.unmodifiableSet(docIds);
+  }
+
+  @Override
+  public int getNumDocs() {
+    return getDocIds().size();
+  }
+
+  private static int compareEntries(Entry e1, Entry e2) {
+    int cmp = e1.window.getSortKey().compareTo(e2.window.getSortKey());
+    if (cmp != 0) {
+      return cmp;
+    }
+    return Integer.compare(e1.ord, e2.ord);
+  }
+
+  private static class Entry {
+    private final ConcordanceWindow window;
+    private final int ord;
+
+    Entry(ConcordanceWindow window, int ord) {
+      this.window = window;
+      this.ord = ord;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance.util;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanQuery;
+
+/**
+ * Cache for the results of concordance searches, so that repeated
+ * searches (e.g. paging through or re-sorting the same windows) don't
+ * have to crawl the spans and reanalyze the documents again.
+ * <p>
+ * The cached values are the leaf collectors or leaf visitors of a search,
+ * which are merged into the caller's collector or visitor exactly as the
+ * leaves of a parallel search are.  Cached values are shared and must
+ * be treated as read-only.
+ * <p>
+ * Keys include the reader's cache key, so results from an old reader are
+ * never returned after the index is reopened.
+ */
+public abstract class ConcordanceCache {
+
+  /**
+   * @param key key
+   * @return cached value or null
+   */
+  public abstract Object get(Key key);
+
+  /**
+   * @param key        key
+   * @param value      value to cache
+   * @param numWindows number of windows that the value holds, a proxy for its size
+   */
+  public abstract void put(Key key, Object value, long numWindows);
+
+  /**
+   * @param searcher     searcher
+   * @param query        span query, which is rewritten for the key
+   * @param filter       filter, can be null
+   * @param field        field the windows are built on
+   * @param tokensBefore tokens before the target
+   * @param tokensAfter  tokens after the target
+   * @param settings     anything else that determines the cached value;
+   *                     must implement equals and hashCode
+   * @return key or null if the searcher's reader can't be cached
+   * @throws IOException if there is an IOException rewriting the query
+   */
+  public static Key newKey(IndexSearcher searcher, SpanQuery query, Query filter,
+                           String field, int tokensBefore, int tokensAfter,
+                           Object settings) throws IOException {
+    IndexReader.CacheHelper cacheHelper = searcher.getIndexReader().getReaderCacheHelper();
+    if (cacheHelper == null) {
+      return null;
+    }
+    return new Key(cacheHelper, searcher.rewrite(query), filter, field,
+        tokensBefore, tokensAfter, settings);
+  }
+
+  public static final class Key {
+    private final IndexReader.CacheHelper cacheHelper;
+    private final IndexReader.CacheKey readerKey;
+    private final Query query;
+    private final Query filter;
+    private final String field;
+    private final int tokensBefore;
+    private final int tokensAfter;
+    private final Object settings;
+    private final int hashCode;
+
+    private Key(IndexReader.CacheHelper cacheHelper, Query query, Query filter,
+                String field, int tokensBefore, int tokensAfter, Object settings) {
+      this.cacheHelper = cacheHelper;
+      this.readerKey = cacheHelper.getKey();
+      this.query = query;
+      this.filter = filter;
+      this.field = field;
+      this.tokensBefore = tokensBefore;
+      this.tokensAfter = tokensAfter;
+      this.settings = settings;
+      this.hashCode = Objects.hash(readerKey, query, filter, field,
+          tokensBefore, tokensAfter, settings);
+    }
+
+    /**
+     * @return cache helper of the reader that was searched
+     */
+    public IndexReader.CacheHelper getCacheHelper() {
+      return cacheHelper;
+    }
+
+    /**
+     * @return cache key of the reader that was searched
+     */
+    public IndexReader.CacheKey getReaderKey() {
+      return readerKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hashCode == other.hashCode &&
+          readerKey == other.readerKey &&
+          tokensBefore == other.tokensBefore &&
+          tokensAfter == other.tokensAfter &&
+          Objects.equals(query, other.query) &&
+          Objects.equals(filter, other.filter) &&
+          Objects.equals(field, other.field) &&
+          Objects.equals(settings, other.settings);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
@@ -23,4 +23,14 @@ public class EmptyTokenBlackList implements TokenBlackList {
     public boolean accept(Term term) {
         return true;
     }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj != null && getClass() == obj.getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance.util;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.AlreadyClosedException;
+
+/**
+ * Thread safe least recently used {@link ConcordanceCache} that is bounded
+ * by the number of entries and by the total number of windows held by
+ * the entries.
+ * <p>
+ * Entries for a reader are dropped as soon as that reader is closed.
+ */
+public class LRUConcordanceCache extends ConcordanceCache {
+
+  private final int maxEntries;
+  private final long maxWindows;
+  //access order
+  private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+  //readers whose close is being listened for
+  private final Set<IndexReader.CacheKey> readerKeys = new HashSet<>();
+  private long numWindows = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * @param maxEntries maximum number of cached searches
+   * @param maxWindows maximum number of windows across all cached searches;
+   *                   a search with more windows than this is not cached
+   */
+  public LRUConcordanceCache(int maxEntries, long maxWindows) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be > 0: " + maxEntries);
+    }
+    if (maxWindows < 1) {
+      throw new IllegalArgumentException("maxWindows must be > 0: " + maxWindows);
+    }
+    this.maxEntries = maxEntries;
+    this.maxWindows = maxWindows;
+  }
+
+  @Override
+  public synchronized Object get(Key key) {
+    Entry entry = map.get(key);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.value;
+  }
+
+  @Override
+  public void put(Key key, Object value, long numWindows) {
+    if (numWindows > maxWindows) {
+      return;
+    }
+    boolean newReader;
+    synchronized (this) {
+      Entry old = map.put(key, new Entry(value, numWindows));
+      if (old != null) {
+        this.numWindows -= old.numWindows;
+      }
+      this.numWindows += numWindows;
+      evict();
+      newReader = readerKeys.add(key.getReaderKey());
+    }
+    if (newReader) {
+      try {
+        key.getCacheHelper().addClosedListener(new IndexReader.ClosedListener() {
+          @Override
+          public void onClose(IndexReader.CacheKey readerKey) {
+            invalidate(readerKey);
+          }
+        });
+      } catch (AlreadyClosedException e) {
+        invalidate(key.getReaderKey());
+      }
+    }
+  }
+
+  /**
+   * Removes all entries for a reader
+   *
+   * @param readerKey cache key of the reader
+   */
+  public synchronized void invalidate(IndexReader.CacheKey readerKey) {
+    Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Key, Entry> e = it.next();
+      if (e.getKey().getReaderKey() == readerKey) {
+        numWindows -= e.getValue().numWindows;
+        it.remove();
+      }
+    }
+    readerKeys.remove(readerKey);
+  }
+
+  /**
+   * Removes all entries
+   */
+  public synchronized void clear() {
+    map.clear();
+    numWindows = 0;
+  }
+
+  /**
+   * @return number of cached searches
+   */
+  public synchronized int size() {
+    return map.size();
+  }
+
+  /**
+   * @return number of windows across all cached searches
+   */
+  public synchronized long getNumWindows() {
+    return numWindows;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  private void evict() {
+    Iterator<Entry> it = map.values().iterator();
+    while ((map.size() > maxEntries || numWindows > maxWindows) && it.hasNext()) {
+      numWindows -= it.next().numWindows;
+      it.remove();
+      evictions++;
+    }
+  }
+
+  private static class Entry {
+    private final Object value;
+    private final long numWindows;
+
+    Entry(Object value, long numWindows) {
+      this.value = value;
+      this.numWindows = numWindows;
+    }
+  }
+}
@@ -20,5 +20,10 @@ import org.apache.lucene.index.Term;
 
 public interface TokenBlackList {
 
+    /**
+     * @param term term to check; callers may reuse the term and its bytes,
+     *             so copy it if it has to be kept
+     * @return whether the term is allowed
+     */
     boolean accept(Term term);
 }
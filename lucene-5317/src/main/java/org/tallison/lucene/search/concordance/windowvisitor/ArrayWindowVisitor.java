@@ -99,6 +99,74 @@ public abstract class ArrayWindowVisitor<T> {
     return windowsVisited;
   }
 
+  /**
+   * @return whether this visitor implements {@link #newLeafVisitor()} and
+   * {@link #merge(ArrayWindowVisitor)}.  If not, the search visits the
+   * windows sequentially even if it has an executor.  The default is false.
+   */
+  public boolean supportsParallel() {
+    return false;
+  }
+
+  /**
+   * Build an empty visitor with the same settings to visit the windows
+   * of a single leaf when the search runs in parallel.  The leaf visitors
+   * are {@link #merge(ArrayWindowVisitor) merged} back into this one
+   * in leaf order.
+   * <p>
+   * The default throws an UnsupportedOperationException; override this,
+   * {@link #merge(ArrayWindowVisitor)} and {@link #supportsParallel()}
+   * to allow parallel search.
+   *
+   * @return new visitor for a single leaf
+   */
+  public ArrayWindowVisitor<T> newLeafVisitor() {
+    throw new UnsupportedOperationException(getClass().getSimpleName() +
+        " doesn't support parallel search");
+  }
+
+  /**
+   * Merge the state of a visitor built by {@link #newLeafVisitor()}
+   * into this visitor.  Subclasses should call super.merge to pick up
+   * the document and window counts.
+   *
+   * @param leafVisitor visitor from a single leaf
+   */
+  public void merge(ArrayWindowVisitor<T> leafVisitor) {
+    windowsVisited += leafVisitor.windowsVisited;
+    docsVisited.addAll(leafVisitor.docsVisited);
+    if (leafVisitor.hitMax) {
+      hitMax = true;
+    }
+  }
+
+  /**
+   * Settings that determine the state of a leaf visitor from
+   * {@link #newLeafVisitor()}, so that the leaf visitors of one search
+   * can be cached and merged into the visitor of another search with the
+   * same key.  The field, window sizes and the visitor's class should
+   * be included; anything that is only applied in {@link #getResults()}
+   * should not be.
+   * <p>
+   * The default returns null, which means that the visitor's searches
+   * are never cached.  The key is ignored unless {@link #supportsParallel()}
+   * is true, and {@link #merge(ArrayWindowVisitor)} must not modify
+   * the leaf visitor.
+   *
+   * @return key that implements equals and hashCode, or null
+   */
+  public Object getCacheKey() {
+    return null;
+  }
+
+  /**
+   * @return number of windows held by this visitor, used to bound the size
+   * of a cache of leaf visitors
+   */
+  public long getCacheWeight() {
+    return windowsVisited;
+  }
+
   /**
    * @return parameterized return value
    */
@@ -18,9 +18,14 @@ package org.tallison.lucene.search.concordance.windowvisitor;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.document.Document;
@@ -36,9 +41,11 @@ import org.tallison.lucene.search.concordance.charoffsets.RandomAccessCharOffset
 import org.tallison.lucene.search.concordance.charoffsets.ReanalyzingTokenCharOffsetsReader;
 import org.tallison.lucene.search.concordance.charoffsets.SpansCrawler;
 import org.tallison.lucene.search.concordance.charoffsets.TargetTokenNotFoundException;
+import org.tallison.lucene.search.concordance.charoffsets.TermVectorTokenCharOffsetsReader;
 import org.tallison.lucene.search.concordance.charoffsets.TokenCharOffsetRequests;
 import org.tallison.lucene.search.concordance.charoffsets.TokenCharOffsetsReader;
 import org.tallison.lucene.search.concordance.classic.DocIdBuilder;
+import org.tallison.lucene.search.concordance.util.ConcordanceCache;
 import org.tallison.lucene.search.concordance.util.ConcordanceSearcherUtil;
 import org.tallison.lucene.search.spans.SimpleSpanQueryConverter;
 import org.apache.lucene.search.spans.SpanQuery;
@@ -54,6 +61,12 @@ public class ConcordanceArrayWindowSearcher {
 
   private boolean allowTargetOverlaps = false;
 
+  private boolean consumeAllTokens = true;
+
+  private ExecutorService executorService = null;
+
+  private ConcordanceCache cache = null;
+
   /**
    * @param searcher     indexSearcher to search
    * @param fieldName    field to search
@@ -95,20 +108,85 @@ public class ConcordanceArrayWindowSearcher {
 
   public void searchSpan(IndexSearcher searcher,
                          SpanQuery query,
-                         Query filterQuery, Analyzer analyzer,
-                         ArrayWindowVisitor visitor, DocIdBuilder docIdBuilder) throws IllegalArgumentException,
+                         Query filterQuery, final Analyzer analyzer,
+                         ArrayWindowVisitor visitor, final DocIdBuilder docIdBuilder) throws IllegalArgumentException,
       TargetTokenNotFoundException, IOException {
     //if nothing is found for e.g. a prefix query, the returned query will
     //be an empty spanquery with a null field.  We need to cache the field
     //in case this is destroyed in the rewrite.
-    String field = query.getField();
-    CAWDocTokenOffsetsVisitor docTokenOffsetsVisitor =
-        new CAWDocTokenOffsetsVisitor(field, analyzer,
-            docIdBuilder, visitor);
+    final String field = query.getField();
+    //caching and parallel search both need leaf visitors
+    boolean parallel = visitor.supportsParallel();
+    Object visitorKey = (cache == null || !parallel) ? null : visitor.getCacheKey();
+    ConcordanceCache.Key key = null;
+    if (visitorKey != null) {
+      key = ConcordanceCache.newKey(searcher, query, filterQuery, field,
+          visitor.getTokensBefore(), visitor.getTokensAfter(),
+          //analyzers don't implement equals, so they are compared by identity
+          Arrays.asList(visitorKey, docIdBuilder, allowTargetOverlaps, analyzer));
+    }
+    if (key != null) {
+      @SuppressWarnings("unchecked")
+      List<ArrayWindowVisitor> leafVisitors = (List<ArrayWindowVisitor>) cache.get(key);
+      if (leafVisitors == null) {
+        leafVisitors = visitLeaves(searcher, query, filterQuery, analyzer, visitor, docIdBuilder);
+        long numWindows = 0;
+        for (ArrayWindowVisitor leafVisitor : leafVisitors) {
+          numWindows += leafVisitor.getCacheWeight();
+        }
+        cache.put(key, leafVisitors, numWindows);
+      }
+      merge(visitor, leafVisitors);
+      return;
+    }
+    if (executorService == null || !parallel) {
+      CAWDocTokenOffsetsVisitor docTokenOffsetsVisitor =
+          new CAWDocTokenOffsetsVisitor(field, analyzer,
+              docIdBuilder, visitor);
 
-    SpansCrawler.crawl(query, filterQuery, searcher, docTokenOffsetsVisitor);
+      SpansCrawler.crawl(query, filterQuery, searcher, docTokenOffsetsVisitor);
+      return;
+    }
+    merge(visitor, visitLeaves(searcher, query, filterQuery, analyzer, visitor, docIdBuilder));
+  }
 
+  /**
+   * Visits the windows with leaf visitors built by the visitor,
+   * one per leaf if the search is parallel, otherwise a single one.
+   */
+  private List<ArrayWindowVisitor> visitLeaves(IndexSearcher searcher, SpanQuery query,
+      Query filterQuery, final Analyzer analyzer, final ArrayWindowVisitor visitor,
+      final DocIdBuilder docIdBuilder) throws TargetTokenNotFoundException, IOException {
+    final String field = query.getField();
+    if (executorService == null) {
+      ArrayWindowVisitor leafVisitor = visitor.newLeafVisitor();
+      SpansCrawler.crawl(query, filterQuery, searcher,
+          new CAWDocTokenOffsetsVisitor(field, analyzer, docIdBuilder, leafVisitor));
+      return Collections.singletonList(leafVisitor);
+    }
+    List<CAWDocTokenOffsetsVisitor> leafVisitors = SpansCrawler.crawl(query, filterQuery, searcher,
+        new Supplier<CAWDocTokenOffsetsVisitor>() {
+          @Override
+          public CAWDocTokenOffsetsVisitor get() {
+            return new CAWDocTokenOffsetsVisitor(field, analyzer, docIdBuilder,
+                visitor.newLeafVisitor());
+          }
+        }, executorService);
+    List<ArrayWindowVisitor> ret = new ArrayList<>(leafVisitors.size());
+    for (CAWDocTokenOffsetsVisitor leafVisitor : leafVisitors) {
+      ret.add(leafVisitor.visitor);
+    }
+    return ret;
+  }
 
+  @SuppressWarnings("unchecked")
+  private static void merge(ArrayWindowVisitor visitor, List<ArrayWindowVisitor> leafVisitors) {
+    for (ArrayWindowVisitor leafVisitor : leafVisitors) {
+      visitor.merge(leafVisitor);
+      if (visitor.getHitMax()) {
+        break;
+      }
+    }
   }
 
 
@@ -120,6 +198,42 @@ public class ConcordanceArrayWindowSearcher {
     this.allowTargetOverlaps = allowTargetOverlaps;
   }
 
+  /**
+   * @param consumeAllTokens whether to consume all tokens when reanalyzing;
+   *                         see {@link ReanalyzingTokenCharOffsetsReader}.  Default is true.
+   */
+  public void setConsumeAllTokens(boolean consumeAllTokens) {
+    this.consumeAllTokens = consumeAllTokens;
+  }
+
+  /**
+   * If set, each leaf is searched as a separate task on this executor
+   * with its own {@link ArrayWindowVisitor#newLeafVisitor() leaf visitor},
+   * and the leaf visitors are merged into the visitor in leaf order.
+   * Visitors that don't {@link ArrayWindowVisitor#supportsParallel() support}
+   * this are still searched sequentially on the calling thread.
+   * The caller is responsible for shutting down the executor.
+   *
+   * @param executorService executor to use or null (default) to search
+   *                        sequentially on the calling thread
+   */
+  public void setExecutorService(ExecutorService executorService) {
+    this.executorService = executorService;
+  }
+
+  /**
+   * If set, the leaf visitors of each search are cached, and a search with
+   * the same query, filter and {@link ArrayWindowVisitor#getCacheKey() visitor
+   * settings} on the same reader merges the cached leaf visitors into
+   * its visitor instead of crawling the index.  Visitors whose cache key is
+   * null are never cached.
+   *
+   * @param cache cache to use or null (default) to not cache
+   */
+  public void setCache(ConcordanceCache cache) {
+    this.cache = cache;
+  }
+
   private class CAWDocTokenOffsetsVisitor implements DocTokenOffsetsVisitor {
     final String fieldName;
     final TokenCharOffsetsReader tokenOffsetsReader;
@@ -141,7 +255,8 @@ public class ConcordanceArrayWindowSearcher {
       this.analyzer = analyzer;
       this.docIdBuilder = docIdBuilder;
       this.visitor = visitor;
-      tokenOffsetsReader = new ReanalyzingTokenCharOffsetsReader(analyzer);
+      tokenOffsetsReader = new TermVectorTokenCharOffsetsReader(
+          new ReanalyzingTokenCharOffsetsReader(analyzer, consumeAllTokens));
       arrayWindow = new ConcordanceArrayWindow(
           analyzer.getPositionIncrementGap(fieldName));
     }
@@ -163,7 +278,7 @@ public class ConcordanceArrayWindowSearcher {
     public boolean visit(DocTokenOffsets docTokenOffsets) throws IOException,
         TargetTokenNotFoundException {
       Document document = docTokenOffsets.getDocument();
-      String docId = docIdBuilder.build(document, docTokenOffsets.getUniqueDocId());
+      String docId = docIdBuilder.build(docTokenOffsets);
       String[] fieldValues = document.getValues(fieldName);
       if (fieldValues == null) {
         throw new IOException("Mismatched content field");
@@ -189,7 +304,8 @@ public class ConcordanceArrayWindowSearcher {
           offsetRequests);
 
       offsetResults.clear();
-      tokenOffsetsReader.getTokenCharOffsetResults(document,
+      tokenOffsetsReader.getTokenCharOffsetResults(docTokenOffsets.getLeafReader(),
+          docTokenOffsets.getAtomicDocId(), document,
           fieldName, offsetRequests, offsetResults);
 
       boolean keepGoing = visitWindowsInDoc(offsetResults, fieldValues,
@@ -16,13 +16,18 @@
  */
 package org.tallison.lucene.search.concordance.windowvisitor;
 
+import org.tallison.lucene.corpus.stats.ApproximateTermIDF;
 import org.tallison.lucene.corpus.stats.IDFIndexCalc;
 import org.tallison.lucene.corpus.stats.TFIDFPriorityQueue;
 import org.tallison.lucene.corpus.stats.TermIDF;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.util.mutable.MutableValueInt;
+import org.apache.lucene.util.ArrayUtil;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -32,15 +37,35 @@ import java.util.Set;
 
 /**
  * Class to count cooccurrences for targets
+ * <p>
+ * This can be used in a parallel search via {@link #newLeafVisitor()}.
+ * The leaf visitors hold on to the grams of each window that they visit,
+ * and the windows are only counted when they are merged, in leaf order,
+ * so that duplicates across leaves can be removed and maxWindows is
+ * applied exactly as in a sequential search.
+ * <p>
+ * The exact counts grow with the number of distinct grams, which can be
+ * very large for broad targets.  {@link #setMaxTrackedGrams(int)} switches
+ * to an approximate mode that never tracks more than a fixed number of
+ * grams; the results are then {@link ApproximateTermIDF}s with a bound on
+ * how much their term frequencies may be overcounted.  In a parallel
+ * search in approximate mode, the leaf visitors merge their summaries
+ * instead of their windows, so duplicate windows are only removed
+ * within each leaf and maxWindows is applied per leaf.
  */
 public class CooccurVisitor extends ArrayWindowVisitor<List<TermIDF>> {
 
 
-  private final Map<String, MutableValueInt> tfs = new HashMap<>();
+  private final GramCounter grams = new GramCounter();
   private final IDFIndexCalc idfCalc;
   private final Set<String> alreadySeen = new HashSet<>();
   private final boolean allowDuplicates;
   private Grammer grammer;
+  //only used in approximate mode
+  private SpaceSavingCounter sketch = null;
+  //only used by leaf visitors in exact mode:
+  //window key, docId and gram ordinals, in visit order
+  private final List<LeafWindow> leafWindows;
   /**
    * minimum term frequency to include in calculations.
    * If the term doesn't show up this often in the context of the target,
@@ -64,79 +89,223 @@ public class CooccurVisitor extends ArrayWindowVisitor<List<TermIDF>> {
   public CooccurVisitor(String fieldName,
                         int tokensBefore, int tokensAfter, Grammer grammer,
                         IDFIndexCalc idfCalc, int maxWindows, boolean allowDuplicates) {
+    this(fieldName, tokensBefore, tokensAfter, grammer, idfCalc, maxWindows,
+        allowDuplicates, false, 0);
+  }
+
+  private CooccurVisitor(String fieldName,
+                         int tokensBefore, int tokensAfter, Grammer grammer,
+                         IDFIndexCalc idfCalc, int maxWindows, boolean allowDuplicates,
+                         boolean isLeaf, int maxTrackedGrams) {
     super(fieldName, tokensBefore, tokensAfter, false, false, maxWindows);
     this.grammer = grammer;
     this.idfCalc = idfCalc;
     this.allowDuplicates = allowDuplicates;
+    this.leafWindows = (isLeaf && maxTrackedGrams <= 0) ?
+        new ArrayList<LeafWindow>() : null;
+    if (maxTrackedGrams > 0) {
+      sketch = new SpaceSavingCounter(maxTrackedGrams, SPACE);
+    }
   }
 
   @Override
   public void visit(String docId, ConcordanceArrayWindow window)
       throws IOException {
 
-    if (getNumWindowsVisited() >= getMaxWindows()) {
+    long windowsVisited = (leafWindows == null) ? getNumWindowsVisited() : leafWindows.size();
+    if (windowsVisited >= getMaxWindows()) {
       setHitMax(true);
       return;
     }
 
+    String key = null;
     if (allowDuplicates == false) {
-      String key = window.toString();
+      key = window.toString();
       if (alreadySeen.contains(key)) {
         return;
       }
       alreadySeen.add(key);
     }
 
-    List<String> tmpGrams = grammer.getGrams(window.getRawPreList(), SPACE);
+    if (leafWindows != null) {
+      //counted when merged, after deduping across leaves
+      leafWindows.add(new LeafWindow(key, docId,
+          grams.getGramOrds(window.getRawPreList(), grammer),
+          grams.getGramOrds(window.getRawPostList(), grammer)));
+      return;
+    }
+    if (sketch != null) {
+      sketch.addGrams(window.getRawPreList(), grammer);
+      sketch.addGrams(window.getRawPostList(), grammer);
+      finishedVisit(docId);
+      return;
+    }
+    grams.addGrams(window.getRawPreList(), grammer);
+    grams.addGrams(window.getRawPostList(), grammer);
+    finishedVisit(docId);
+  }
 
-    tmpGrams.addAll(grammer.getGrams(window.getRawPostList(), SPACE));
+  @Override
+  public boolean supportsParallel() {
+    return true;
+  }
 
-    for (String nGram : tmpGrams) {
-      MutableValueInt cnt = tfs.get(nGram);
-      if (cnt == null) {
-        cnt = new MutableValueInt();
-        cnt.value = 0;
+  @Override
+  public ArrayWindowVisitor<List<TermIDF>> newLeafVisitor() {
+    return new CooccurVisitor(getFieldName(), getTokensBefore(), getTokensAfter(),
+        grammer, idfCalc, getMaxWindows(), allowDuplicates, true,
+        (sketch == null) ? 0 : sketch.getCapacity());
+  }
+
+  @Override
+  public void merge(ArrayWindowVisitor<List<TermIDF>> leafVisitor) {
+    CooccurVisitor leaf = (CooccurVisitor) leafVisitor;
+    if (leaf.leafWindows != null) {
+      //the leaf's grams were never counted, this only maps the ordinals
+      int[] ordMap = grams.merge(leaf.grams);
+      for (LeafWindow leafWindow : leaf.leafWindows) {
+        if (getNumWindowsVisited() >= getMaxWindows()) {
+          setHitMax(true);
+          return;
+        }
+        //the key is null if duplicates are allowed
+        if (leafWindow.key != null && !alreadySeen.add(leafWindow.key)) {
+          continue;
+        }
+        for (int ord : leafWindow.preOrds) {
+          grams.increment(ordMap[ord], 1);
+        }
+        for (int ord : leafWindow.postOrds) {
+          grams.increment(ordMap[ord], 1);
+        }
+        finishedVisit(leafWindow.docId);
+      }
+      if (leaf.getHitMax()) {
+        setHitMax(true);
       }
-      cnt.value++;
-      tfs.put(nGram, cnt);
+      return;
     }
-    finishedVisit(docId);
+    super.merge(leafVisitor);
+    if (sketch != null) {
+      sketch.merge(leaf.sketch);
+      return;
+    }
+    grams.merge(leaf.grams);
+  }
+
+
+  @Override
+  public Object getCacheKey() {
+    return Arrays.asList(getClass(), getFieldName(), getTokensBefore(), getTokensAfter(),
+        getMaxWindows(), allowDuplicates, grammer,
+        (sketch == null) ? 0 : sketch.getCapacity());
   }
 
+  @Override
+  public long getCacheWeight() {
+    return (leafWindows == null) ? getNumWindowsVisited() : leafWindows.size();
+  }
 
   /**
    * can throw RuntimeException if there is an IOException
    * while calculating the IDFs
    */
   public List<TermIDF> getResults() {
+    if (numResults == 0) {
+      return Collections.emptyList();
+    }
+    if (sketch != null) {
+      return getApproximateResults();
+    }
     TFIDFPriorityQueue queue = new TFIDFPriorityQueue(numResults);
 
-    int tf = -1;
-    double idf = -1.0;
     int minTf = minTermFreq;
-    String text = "";
+    int[] tokenIds = new int[16];
+    //collect the tokens in the candidate grams
+    BitSet candidateTokens = new BitSet();
+    for (int ord = 0; ord < grams.size(); ord++) {
+      if (isCandidate(grams.getCount(ord), minTf)) {
+        tokenIds = ArrayUtil.grow(tokenIds, grams.getLength(ord));
+        int len = grams.getTokenIds(ord, tokenIds);
+        for (int i = 0; i < len; i++) {
+          candidateTokens.set(tokenIds[i]);
+        }
+      }
+    }
+
+    //the idf of a gram is the sum of the idfs of its tokens,
+    //so only calculate the idf once per token
+    double[] tokenIDFs = new double[grams.getNumTokens()];
     Term reusableTerm = new Term(getFieldName(), "");
-    for (Map.Entry<String, MutableValueInt> entry : tfs.entrySet()) {
+    try {
+      List<String> tokens = new ArrayList<>();
+      for (int id = candidateTokens.nextSetBit(0); id >= 0; id = candidateTokens.nextSetBit(id + 1)) {
+        tokens.add(grams.getToken(id));
+      }
+      //look up the docFreqs of all of the tokens in one pass
+      idfCalc.cacheDocFreqs(getFieldName(), tokens);
+      for (int id = candidateTokens.nextSetBit(0); id >= 0; id = candidateTokens.nextSetBit(id + 1)) {
+        String token = grams.getToken(id);
+        //tokens that are only whitespace disappear when the gram is split
+        tokenIDFs[id] = (token.trim().length() == 0) ? 0.0 :
+            idfCalc.multiTermIDF(token, reusableTerm)[0];
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error trying to calculate IDF: " + e.getMessage());
+    }
 
-      tf = entry.getValue().value;
-      if (tf < minTf)
+    for (int ord = 0; ord < grams.size(); ord++) {
+      int tf = grams.getCount(ord);
+      if (! isCandidate(tf, minTf)) {
+        continue;
+      }
+      int len = grams.getTokenIds(ord, tokenIds);
+      double idf = 0.0;
+      for (int i = 0; i < len; i++) {
+        idf += tokenIDFs[tokenIds[i]];
+      }
+      //only build the string if this gram can make it into the queue
+      if (queue.size() == numResults && tf * idf < queue.top().getTFIDF()) {
         continue;
-
-      text = entry.getKey();
-      // calculate idf for potential phrase
-      double[] stats;
-      try {
-        stats = idfCalc.multiTermIDF(text, reusableTerm);
-      } catch (IOException e) {
-        throw new RuntimeException("Error trying to calculate IDF: " + e.getMessage());
       }
-      idf = stats[0];
       int estimatedDF = (int) Math.max(1, Math.round(idfCalc.unIDF(idf)));
 
-      TermIDF r = new TermIDF(text, estimatedDF, tf, idf);
+      TermIDF r = new TermIDF(grams.getGram(ord, SPACE), estimatedDF, tf, idf);
 
       queue.insertWithOverflow(r);
     }
+    return drain(queue);
+  }
+
+  private List<TermIDF> getApproximateResults() {
+    TFIDFPriorityQueue queue = new TFIDFPriorityQueue(numResults);
+    List<String> candidates = new ArrayList<>();
+    for (int i = 0; i < sketch.size(); i++) {
+      if (isCandidate(sketch.getCount(i), minTermFreq)) {
+        candidates.add(sketch.getGram(i));
+      }
+    }
+    Term reusableTerm = new Term(getFieldName(), "");
+    try {
+      idfCalc.cacheDocFreqs(getFieldName(), candidates);
+      for (int i = 0; i < sketch.size(); i++) {
+        int tf = sketch.getCount(i);
+        if (!isCandidate(tf, minTermFreq)) {
+          continue;
+        }
+        String gram = sketch.getGram(i);
+        double idf = idfCalc.multiTermIDFSum(gram, reusableTerm);
+        int estimatedDF = (int) Math.max(1, Math.round(idfCalc.unIDF(idf)));
+        queue.insertWithOverflow(new ApproximateTermIDF(gram, estimatedDF, tf, idf,
+            sketch.getError(i)));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error trying to calculate IDF: " + e.getMessage());
+    }
+    return drain(queue);
+  }
+
+  private static List<TermIDF> drain(TFIDFPriorityQueue queue) {
     List<TermIDF> results = new LinkedList<>();
 
     while (queue.size() > 0) {
@@ -145,6 +314,93 @@ public class CooccurVisitor extends ArrayWindowVisitor<List<TermIDF>> {
     return results;
   }
 
+  /**
+   * Term frequencies of the grams that were counted at least minTermFreq
+   * times, without any idf ranking.  This is useful when the idfs have to
+   * come from elsewhere, e.g. from all of the shards of a distributed index.
+   *
+   * @return map of gram to term frequency
+   */
+  public Map<String, Integer> getTermFreqs() {
+    Map<String, Integer> ret = new HashMap<>();
+    if (sketch != null) {
+      for (int i = 0; i < sketch.size(); i++) {
+        if (isCandidate(sketch.getCount(i), minTermFreq)) {
+          ret.put(sketch.getGram(i), sketch.getCount(i));
+        }
+      }
+      return ret;
+    }
+    for (int ord = 0; ord < grams.size(); ord++) {
+      int tf = grams.getCount(ord);
+      if (isCandidate(tf, minTermFreq)) {
+        ret.put(grams.getGram(ord, SPACE), tf);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * In approximate mode, how much each of the term frequencies in
+   * {@link #getTermFreqs()} may be overcounted.
+   *
+   * @return map of gram to maximum overestimate of its term frequency;
+   * empty if the counts are exact
+   */
+  public Map<String, Integer> getTermFreqErrors() {
+    Map<String, Integer> ret = new HashMap<>();
+    if (sketch == null) {
+      return ret;
+    }
+    for (int i = 0; i < sketch.size(); i++) {
+      if (isCandidate(sketch.getCount(i), minTermFreq)) {
+        ret.put(sketch.getGram(i), sketch.getError(i));
+      }
+    }
+    return ret;
+  }
+
+  //prefixes that were never counted themselves have a count of 0
+  private static boolean isCandidate(int tf, int minTf) {
+    return tf > 0 && tf >= minTf;
+  }
+
+
+  /**
+   * Switches to approximate counting, which tracks at most this many grams
+   * no matter how many distinct grams there are.  This must be called
+   * before any windows are visited.
+   *
+   * @param maxTrackedGrams maximum number of grams to track, or 0 to count
+   *                        all grams exactly
+   */
+  public void setMaxTrackedGrams(int maxTrackedGrams) {
+    if (maxTrackedGrams < 0) {
+      throw new IllegalArgumentException("Max tracked grams must be >= 0:" + maxTrackedGrams);
+    }
+    if (getNumWindowsVisited() > 0) {
+      throw new IllegalStateException("Can't change the max tracked grams after visiting windows");
+    }
+    sketch = (maxTrackedGrams == 0) ? null : new SpaceSavingCounter(maxTrackedGrams, SPACE);
+  }
+
+  /**
+   * @return whether the term frequencies are approximate
+   */
+  public boolean isApproximate() {
+    return sketch != null;
+  }
+
+  /**
+   * In approximate mode, a gram that was not tracked can still have a term
+   * frequency up to this bound, so it could be missing from the results.
+   *
+   * @return upper bound on the term frequency of any untracked gram;
+   * 0 if the counts are exact or no grams were evicted
+   */
+  public long getMaxTermFreqError() {
+    return (sketch == null) ? 0 : sketch.getMinCount();
+  }
 
   public int getMinTermFreq() {
     return minTermFreq;
@@ -160,4 +416,18 @@ public class CooccurVisitor extends ArrayWindowVisitor<List<TermIDF>> {
     }
     this.numResults = numResults;
   }
+
+  private static class LeafWindow {
+    private final String key;
+    private final String docId;
+    private final int[] preOrds;
+    private final int[] postOrds;
+
+    LeafWindow(String key, String docId, int[] preOrds, int[] postOrds) {
+      this.key = key;
+      this.docId = docId;
+      this.preOrds = preOrds;
+      this.postOrds = postOrds;
+    }
+  }
 }
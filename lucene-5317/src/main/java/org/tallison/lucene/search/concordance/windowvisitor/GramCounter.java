@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance.windowvisitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Counts grams without building a String per gram.
+ * <p>
+ * Tokens are interned into an int dictionary.  A gram is identified
+ * by its prefix gram (all but its last token) and its last token, so
+ * each gram is a packed long key of (prefix ordinal + 1, token id) in
+ * an open addressing table that maps keys to gram ordinals.
+ * Strings are only built on request via {@link #getGram(int, String)}.
+ * <p>
+ * Tokens are interned by their display form
+ * ({@link ConcordanceArrayWindow#tokenToString(String)}) so that
+ * grams with the same tokens count as the same gram, just as
+ * they would if they were keyed by their joined strings.
+ * <p>
+ * Not thread safe.
+ */
+final class GramCounter {
+
+  //keys are never negative
+  private static final long EMPTY = -1L;
+  private static final int NO_PREFIX = -1;
+
+  private final Map<String, Integer> tokenIds = new HashMap<>();
+  private final List<String> tokens = new ArrayList<>();
+
+  private long[] keys;
+  private int[] values;
+  private int mask;
+
+  //per gram ordinal
+  private int[] prefixes = new int[16];
+  private int[] lastTokens = new int[16];
+  private int[] lengths = new int[16];
+  private int[] counts = new int[16];
+  private int size = 0;
+
+  GramCounter() {
+    keys = new long[64];
+    values = new int[64];
+    mask = keys.length - 1;
+    Arrays.fill(keys, EMPTY);
+  }
+
+  /**
+   * Interns the tokens and returns the ordinals of each gram that
+   * the grammer generates from them.  This does not increment the counts.
+   *
+   * @param strings raw tokens as stored in a {@link ConcordanceArrayWindow}
+   * @param grammer grammer
+   * @return gram ordinals, one per gram generated
+   */
+  int[] getGramOrds(List<String> strings, Grammer grammer) {
+    long[] offsets = grammer.getGramOffsets(strings);
+    int[] ords = new int[offsets.length];
+    if (offsets.length == 0) {
+      return ords;
+    }
+    int[] ids = new int[strings.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = intern(ConcordanceArrayWindow.tokenToString(strings.get(i)));
+    }
+    //grams are ordered by start and then by end, so extend
+    //the previous gram when it shares a start
+    int lastStart = -1;
+    int lastEnd = -1;
+    int lastOrd = NO_PREFIX;
+    for (int i = 0; i < offsets.length; i++) {
+      int start = Grammer.getStart(offsets[i]);
+      int end = Grammer.getEnd(offsets[i]);
+      int ord = NO_PREFIX;
+      int from = start;
+      if (start == lastStart && end > lastEnd) {
+        ord = lastOrd;
+        from = lastEnd + 1;
+      }
+      for (int t = from; t <= end; t++) {
+        ord = getOrAdd(ord, ids[t]);
+      }
+      ords[i] = ord;
+      lastStart = start;
+      lastEnd = end;
+      lastOrd = ord;
+    }
+    return ords;
+  }
+
+  /**
+   * Increments the count of each gram that the grammer generates from
+   * the tokens.
+   *
+   * @param strings raw tokens as stored in a {@link ConcordanceArrayWindow}
+   * @param grammer grammer
+   */
+  void addGrams(List<String> strings, Grammer grammer) {
+    for (int ord : getGramOrds(strings, grammer)) {
+      counts[ord]++;
+    }
+  }
+
+  /**
+   * @param ord gram ordinal
+   * @param inc amount to add to the count
+   */
+  void increment(int ord, int inc) {
+    counts[ord] += inc;
+  }
+
+  /**
+   * Adds the other counter's grams and their counts to this one.
+   *
+   * @param other counter to add
+   * @return map from the other counter's gram ordinals to this counter's
+   */
+  int[] merge(GramCounter other) {
+    int[] tokenMap = new int[other.tokens.size()];
+    for (int i = 0; i < tokenMap.length; i++) {
+      tokenMap[i] = intern(other.tokens.get(i));
+    }
+    int[] ordMap = new int[other.size];
+    //a prefix always has a lower ordinal than the grams that extend it
+    for (int ord = 0; ord < other.size; ord++) {
+      int prefix = other.prefixes[ord];
+      int mapped = getOrAdd((prefix == NO_PREFIX) ? NO_PREFIX : ordMap[prefix],
+          tokenMap[other.lastTokens[ord]]);
+      counts[mapped] += other.counts[ord];
+      ordMap[ord] = mapped;
+    }
+    return ordMap;
+  }
+
+  /**
+   * @return number of grams, including prefixes that were never counted
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @param ord gram ordinal
+   * @return count
+   */
+  int getCount(int ord) {
+    return counts[ord];
+  }
+
+  /**
+   * @param ord gram ordinal
+   * @return number of tokens in the gram
+   */
+  int getLength(int ord) {
+    return lengths[ord];
+  }
+
+  /**
+   * @param ord    gram ordinal
+   * @param buffer buffer of at least {@link #getLength(int)}
+   * @return number of token ids copied into the buffer, in order
+   */
+  int getTokenIds(int ord, int[] buffer) {
+    int len = lengths[ord];
+    for (int i = len - 1; i >= 0; i--) {
+      buffer[i] = lastTokens[ord];
+      ord = prefixes[ord];
+    }
+    return len;
+  }
+
+  /**
+   * @return number of unique tokens
+   */
+  int getNumTokens() {
+    return tokens.size();
+  }
+
+  /**
+   * @param tokenId token id
+   * @return display form of the token
+   */
+  String getToken(int tokenId) {
+    return tokens.get(tokenId);
+  }
+
+  /**
+   * @param ord       gram ordinal
+   * @param delimiter string to use to join the tokens
+   * @return gram as a string
+   */
+  String getGram(int ord, String delimiter) {
+    int[] ids = new int[lengths[ord]];
+    getTokenIds(ord, ids);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < ids.length; i++) {
+      if (i > 0) {
+        sb.append(delimiter);
+      }
+      sb.append(tokens.get(ids[i]));
+    }
+    return sb.toString();
+  }
+
+  private int intern(String token) {
+    Integer id = tokenIds.get(token);
+    if (id == null) {
+      id = tokens.size();
+      tokens.add(token);
+      tokenIds.put(token, id);
+    }
+    return id;
+  }
+
+  private int getOrAdd(int prefix, int tokenId) {
+    long key = ((long) (prefix + 1) << 32) | tokenId;
+    int slot = slot(key);
+    while (keys[slot] != EMPTY) {
+      if (keys[slot] == key) {
+        return values[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    int ord = size++;
+    if (ord == prefixes.length) {
+      int newLength = ArrayUtil.oversize(size, Integer.BYTES);
+      prefixes = Arrays.copyOf(prefixes, newLength);
+      lastTokens = Arrays.copyOf(lastTokens, newLength);
+      lengths = Arrays.copyOf(lengths, newLength);
+      counts = Arrays.copyOf(counts, newLength);
+    }
+    prefixes[ord] = prefix;
+    lastTokens[ord] = tokenId;
+    lengths[ord] = (prefix == NO_PREFIX) ? 1 : lengths[prefix] + 1;
+    keys[slot] = key;
+    values[slot] = ord;
+    if (size * 2 > keys.length) {
+      rehash();
+    }
+    return ord;
+  }
+
+  private void rehash() {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new int[oldValues.length * 2];
+    mask = keys.length - 1;
+    Arrays.fill(keys, EMPTY);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = slot(oldKeys[i]);
+        while (keys[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private int slot(long key) {
+    //murmur3 fmix64
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return (int) key & mask;
+  }
+}
@@ -16,6 +16,7 @@
  */
 package org.tallison.lucene.search.concordance.windowvisitor;
 
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -73,13 +74,76 @@ public abstract class Grammer {
   }
 
   /**
-   * Override to get a list of grams
+   * Get a list of grams
    *
    * @param strings   list of unigrams to be combined into larger grams
    * @param delimiter string to use to join unigrams
    * @return list of xgrams
    */
-  public abstract List<String> getGrams(List<String> strings, String delimiter);
+  public List<String> getGrams(List<String> strings, String delimiter) {
+    long[] offsets = getGramOffsets(strings);
+    List<String> ret = new ArrayList<>(offsets.length);
+    for (long offset : offsets) {
+      ret.add(join(delimiter, strings, getStart(offset), getEnd(offset)));
+    }
+    return ret;
+  }
+
+  /**
+   * Override to get the offsets of the grams without building
+   * the strings.  Offsets must be ordered by start offset and then
+   * by end offset.
+   *
+   * @param strings list of unigrams to be combined into larger grams
+   * @return offsets of the grams, packed with {@link #packOffset(int, int)}
+   */
+  public abstract long[] getGramOffsets(List<String> strings);
+
+  /**
+   * @param start index of the first unigram in the gram
+   * @param end   index of the last unigram in the gram (inclusive)
+   * @return start and end packed into a long
+   */
+  protected static long packOffset(int start, int end) {
+    return ((long) start << 32) | (end & 0xFFFFFFFFL);
+  }
+
+  /**
+   * @param offset packed offset
+   * @return index of the first unigram in the gram
+   */
+  public static int getStart(long offset) {
+    return (int) (offset >>> 32);
+  }
+
+  /**
+   * @param offset packed offset
+   * @return index of the last unigram in the gram (inclusive)
+   */
+  public static int getEnd(long offset) {
+    return (int) offset;
+  }
+
+  /**
+   * Grammers are equal if they generate the same grams.
+   * Subclasses with more settings should extend this.
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+    Grammer other = (Grammer) obj;
+    return minGram == other.minGram && maxGram == other.maxGram;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * getClass().hashCode() + minGram) + maxGram;
+  }
 
   /**
    * @return minimum gram
@@ -19,9 +19,10 @@ package org.tallison.lucene.search.concordance.windowvisitor;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
-import org.apache.lucene.analysis.tokenattributes.OffsetAttributeImpl;
+
+import org.apache.lucene.util.ArrayUtil;
 
 
 public class NGrammer extends Grammer {
@@ -33,29 +34,30 @@ public class NGrammer extends Grammer {
   /**
    * current implementation ignores stopIndices
    */
+  @Override
   public List<String> getGrams(List<String> strings,
                                String delimiter) {
     if (getMinGram() == 1 && getMaxGram() == 1) {
-      return strings;
-    }
-    List<String> ret = new ArrayList<>();
-    List<OffsetAttribute> offsets = getGramOffsets(strings);
-    for (OffsetAttribute offset : offsets) {
-      ret.add(join(delimiter, strings, offset.startOffset(), offset.endOffset()));
+      //same strings as longer grams and the gram counters
+      List<String> ret = new ArrayList<>(strings.size());
+      for (String s : strings) {
+        ret.add(ConcordanceArrayWindow.tokenToString(s));
+      }
+      return ret;
     }
-    return ret;
-
+    return super.getGrams(strings, delimiter);
   }
 
-  private List<OffsetAttribute> getGramOffsets(List<String> strings) {
-    List<OffsetAttribute> ret = new ArrayList<>();
+  @Override
+  public long[] getGramOffsets(List<String> strings) {
+    long[] ret = new long[strings.size()];
+    int size = 0;
     for (int i = 0; i < strings.size(); i++) {
       for (int j = i + getMinGram() - 1; j < i + getMaxGram() && j < strings.size(); j++) {
-        OffsetAttribute off = new OffsetAttributeImpl();
-        off.setOffset(i, j);
-        ret.add(off);
+        ret = ArrayUtil.grow(ret, size + 1);
+        ret[size++] = packOffset(i, j);
       }
     }
-    return ret;
+    return (size == ret.length) ? ret : Arrays.copyOf(ret, size);
   }
 }
@@ -0,0 +1,379 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance.windowvisitor;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Approximate gram counter that never tracks more than a fixed number of
+ * grams, based on the Space-Saving algorithm (Metwally, Agrawal and
+ * El Abbadi, "Efficient Computation of Frequent and Top-k Elements in
+ * Data Streams").
+ * <p>
+ * When a gram that is not tracked shows up and the counter is full,
+ * the gram with the lowest count is evicted and the new gram inherits
+ * that count.  The inherited count is recorded as the gram's error, so
+ * the true count of a tracked gram is between
+ * <code>getCount(i)-getError(i)</code> and <code>getCount(i)</code>.
+ * Any gram with a true count greater than {@link #getMinCount()} is
+ * guaranteed to be tracked.
+ * <p>
+ * Grams are identified by a 64 bit hash of the display forms of their
+ * tokens ({@link ConcordanceArrayWindow#tokenToString(String)}), and a
+ * gram's string is only built when it starts being tracked.  Grams
+ * whose hashes collide are counted together.
+ * <p>
+ * Counters with the same capacity can be merged, which keeps the same
+ * guarantees for the combined counts.
+ * <p>
+ * Not thread safe.
+ */
+final class SpaceSavingCounter {
+
+  private static final long EMPTY = 0L;
+
+  private final int capacity;
+  private final String delimiter;
+
+  //min heap by count, indexed by heap position
+  private final long[] heapKeys;
+  private final int[] counts;
+  private final int[] errors;
+  private final String[] grams;
+  //slot in the hash table of the key at each heap position
+  private final int[] slots;
+  private int size = 0;
+
+  //open addressing table of key -> heap position
+  private final long[] tableKeys;
+  private final int[] tableValues;
+  private final int mask;
+
+  private long total = 0;
+
+  /**
+   * @param capacity  maximum number of grams to track
+   * @param delimiter string to use to join tokens into grams
+   */
+  SpaceSavingCounter(int capacity, String delimiter) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be > 0: " + capacity);
+    }
+    this.capacity = capacity;
+    this.delimiter = delimiter;
+    heapKeys = new long[capacity];
+    counts = new int[capacity];
+    errors = new int[capacity];
+    grams = new String[capacity];
+    slots = new int[capacity];
+    int tableSize = Integer.highestOneBit(capacity) * 4;
+    tableKeys = new long[tableSize];
+    tableValues = new int[tableSize];
+    mask = tableSize - 1;
+  }
+
+  /**
+   * Counts each gram that the grammer generates from the tokens.
+   *
+   * @param strings raw tokens as stored in a {@link ConcordanceArrayWindow}
+   * @param grammer grammer
+   */
+  void addGrams(List<String> strings, Grammer grammer) {
+    long[] offsets = grammer.getGramOffsets(strings);
+    if (offsets.length == 0) {
+      return;
+    }
+    long[] tokenHashes = new long[strings.size()];
+    for (int i = 0; i < tokenHashes.length; i++) {
+      tokenHashes[i] = hash(ConcordanceArrayWindow.tokenToString(strings.get(i)));
+    }
+    //grams are ordered by start and then by end, so extend
+    //the previous gram's hash when it shares a start
+    int lastStart = -1;
+    int lastEnd = -1;
+    long lastKey = EMPTY;
+    for (long offset : offsets) {
+      int start = Grammer.getStart(offset);
+      int end = Grammer.getEnd(offset);
+      long key = EMPTY;
+      int from = start;
+      if (start == lastStart && end > lastEnd) {
+        key = lastKey;
+        from = lastEnd + 1;
+      }
+      for (int t = from; t <= end; t++) {
+        key = extend(key, tokenHashes[t]);
+      }
+      add(key, strings, start, end);
+      lastStart = start;
+      lastEnd = end;
+      lastKey = key;
+    }
+  }
+
+  /**
+   * Merges the other counter into this one.  A gram that is only tracked
+   * by one of the counters is assumed to have been seen as often as the
+   * minimum count of the other counter, which is added to its error.
+   *
+   * @param other counter to merge
+   */
+  void merge(SpaceSavingCounter other) {
+    int thisMin = getMinCount();
+    int otherMin = other.getMinCount();
+    int n = size + other.size;
+    long[] mergedKeys = new long[n];
+    int[] mergedCounts = new int[n];
+    int[] mergedErrors = new int[n];
+    String[] mergedGrams = new String[n];
+    int m = 0;
+    for (int i = 0; i < size; i++) {
+      int j = other.find(heapKeys[i]);
+      mergedKeys[m] = heapKeys[i];
+      mergedGrams[m] = grams[i];
+      if (j > -1) {
+        mergedCounts[m] = counts[i] + other.counts[j];
+        mergedErrors[m] = errors[i] + other.errors[j];
+      } else {
+        mergedCounts[m] = counts[i] + otherMin;
+        mergedErrors[m] = errors[i] + otherMin;
+      }
+      m++;
+    }
+    for (int j = 0; j < other.size; j++) {
+      if (find(other.heapKeys[j]) > -1) {
+        continue;
+      }
+      mergedKeys[m] = other.heapKeys[j];
+      mergedGrams[m] = other.grams[j];
+      mergedCounts[m] = other.counts[j] + thisMin;
+      mergedErrors[m] = other.errors[j] + thisMin;
+      m++;
+    }
+    clear();
+    //keep the grams with the highest counts
+    for (int i = 0; i < m; i++) {
+      if (size < capacity) {
+        insert(size++, mergedKeys[i], mergedCounts[i], mergedErrors[i], mergedGrams[i]);
+        siftUp(size - 1);
+      } else if (mergedCounts[i] > counts[0]) {
+        removeSlot(slots[0]);
+        insert(0, mergedKeys[i], mergedCounts[i], mergedErrors[i], mergedGrams[i]);
+        siftDown(0);
+      }
+    }
+    total = total + other.total;
+  }
+
+  /**
+   * @return number of grams that are tracked
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return maximum number of grams that can be tracked
+   */
+  int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return number of grams counted, including those that were evicted
+   */
+  long getTotal() {
+    return total;
+  }
+
+  /**
+   * @return upper bound on the count of any gram that is not tracked,
+   * 0 if no gram has been evicted
+   */
+  int getMinCount() {
+    return (size < capacity) ? 0 : counts[0];
+  }
+
+  /**
+   * @param i index, &lt; {@link #size()}, in no particular order
+   * @return gram
+   */
+  String getGram(int i) {
+    return grams[i];
+  }
+
+  /**
+   * @param i index, &lt; {@link #size()}, in no particular order
+   * @return count, which can overestimate the true count by up to
+   * {@link #getError(int)}
+   */
+  int getCount(int i) {
+    return counts[i];
+  }
+
+  /**
+   * @param i index, &lt; {@link #size()}, in no particular order
+   * @return maximum overestimate of the count
+   */
+  int getError(int i) {
+    return errors[i];
+  }
+
+  private void add(long key, List<String> strings, int start, int end) {
+    total++;
+    int pos = find(key);
+    if (pos > -1) {
+      counts[pos]++;
+      siftDown(pos);
+    } else if (size < capacity) {
+      insert(size++, key, 1, 0, Grammer.join(delimiter, strings, start, end));
+      siftUp(size - 1);
+    } else {
+      //replace the gram with the lowest count
+      int min = counts[0];
+      removeSlot(slots[0]);
+      insert(0, key, min + 1, min, Grammer.join(delimiter, strings, start, end));
+      siftDown(0);
+    }
+  }
+
+  private void insert(int pos, long key, int count, int error, String gram) {
+    heapKeys[pos] = key;
+    counts[pos] = count;
+    errors[pos] = error;
+    grams[pos] = gram;
+    int slot = slot(key);
+    while (tableKeys[slot] != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+    tableKeys[slot] = key;
+    tableValues[slot] = pos;
+    slots[pos] = slot;
+  }
+
+  private int find(long key) {
+    int slot = slot(key);
+    while (tableKeys[slot] != EMPTY) {
+      if (tableKeys[slot] == key) {
+        return tableValues[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  //backward shift deletion so that lookups never need tombstones
+  private void removeSlot(int slot) {
+    int hole = slot;
+    int i = (slot + 1) & mask;
+    while (tableKeys[i] != EMPTY) {
+      int ideal = slot(tableKeys[i]);
+      if (((i - ideal) & mask) >= ((i - hole) & mask)) {
+        tableKeys[hole] = tableKeys[i];
+        tableValues[hole] = tableValues[i];
+        slots[tableValues[hole]] = hole;
+        hole = i;
+      }
+      i = (i + 1) & mask;
+    }
+    tableKeys[hole] = EMPTY;
+  }
+
+  private void clear() {
+    Arrays.fill(tableKeys, EMPTY);
+    Arrays.fill(grams, null);
+    size = 0;
+  }
+
+  private void siftUp(int pos) {
+    while (pos > 0) {
+      int parent = (pos - 1) >>> 1;
+      if (counts[parent] <= counts[pos]) {
+        return;
+      }
+      swap(pos, parent);
+      pos = parent;
+    }
+  }
+
+  private void siftDown(int pos) {
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size) {
+        return;
+      }
+      if (child + 1 < size && counts[child + 1] < counts[child]) {
+        child++;
+      }
+      if (counts[pos] <= counts[child]) {
+        return;
+      }
+      swap(pos, child);
+      pos = child;
+    }
+  }
+
+  private void swap(int a, int b) {
+    long key = heapKeys[a];
+    heapKeys[a] = heapKeys[b];
+    heapKeys[b] = key;
+    int count = counts[a];
+    counts[a] = counts[b];
+    counts[b] = count;
+    int error = errors[a];
+    errors[a] = errors[b];
+    errors[b] = error;
+    String gram = grams[a];
+    grams[a] = grams[b];
+    grams[b] = gram;
+    int slot = slots[a];
+    slots[a] = slots[b];
+    slots[b] = slot;
+    tableValues[slots[a]] = a;
+    tableValues[slots[b]] = b;
+  }
+
+  private int slot(long key) {
+    return (int) fmix64(key) & mask;
+  }
+
+  private static long extend(long key, long tokenHash) {
+    long h = fmix64(key * 0x9E3779B97F4A7C15L + tokenHash);
+    return (h == EMPTY) ? 1L : h;
+  }
+
+  //64 bit FNV-1a
+  private static long hash(String token) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < token.length(); i++) {
+      h ^= token.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  //murmur3 fmix64
+  private static long fmix64(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+}
@@ -20,6 +20,7 @@ package org.tallison.lucene.search.concordance.windowvisitor;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -136,6 +137,49 @@ public class TargetVisitor extends ArrayWindowVisitor<List<TermDFTF>> {
     return ret;
   }
 
+  @Override
+  public boolean supportsParallel() {
+    return true;
+  }
+
+  @Override
+  public ArrayWindowVisitor<List<TermDFTF>> newLeafVisitor() {
+    return new TargetVisitor(getFieldName(), numResults, analyzeTarget(), getMaxWindows());
+  }
+
+  /**
+   * A document's windows are all in the same leaf, so the doc
+   * frequencies can simply be summed.
+   *
+   * @param leafVisitor visitor from a single leaf
+   */
+  @Override
+  public void merge(ArrayWindowVisitor<List<TermDFTF>> leafVisitor) {
+    super.merge(leafVisitor);
+    TargetVisitor leaf = (TargetVisitor) leafVisitor;
+    addAll(leaf.tf, tf);
+    addAll(leaf.df, df);
+  }
+
+  private static void addAll(Map<String, MutableValueInt> from, Map<String, MutableValueInt> to) {
+    for (Map.Entry<String, MutableValueInt> e : from.entrySet()) {
+      MutableValueInt cnt = to.get(e.getKey());
+      if (cnt == null) {
+        //copy so that a cached leaf's counts are never modified
+        cnt = new MutableValueInt();
+        cnt.value = e.getValue().value;
+        to.put(e.getKey(), cnt);
+      } else {
+        cnt.value += e.getValue().value;
+      }
+    }
+  }
+
+  @Override
+  public Object getCacheKey() {
+    return Arrays.asList(getClass(), getFieldName(), analyzeTarget(), getMaxWindows());
+  }
+
   public int getUniqTermCounts() {
     return tf.keySet().size();
   }
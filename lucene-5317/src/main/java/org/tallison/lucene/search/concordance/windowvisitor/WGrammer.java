@@ -17,11 +17,13 @@
 package org.tallison.lucene.search.concordance.windowvisitor;
 
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
-import org.apache.lucene.analysis.tokenattributes.OffsetAttributeImpl;
+import java.util.Objects;
+
 import org.apache.lucene.index.Term;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRefBuilder;
 import org.tallison.lucene.search.concordance.util.TokenBlackList;
 
 /**
@@ -76,29 +78,32 @@ public class WGrammer extends Grammer {
   }
 
   @Override
-  public List<String> getGrams(List<String> strings, String delimiter) {
-    List<String> ret = new ArrayList<>();
-    List<OffsetAttribute> offsets = getGramOffsets(strings, getMinGram(),
-        getMaxGram());
-    for (OffsetAttribute offset : offsets) {
-      ret.add(join(delimiter, strings, offset.startOffset(), offset.endOffset()));
-    }
-    return ret;
-
-  }
-
-  private List<OffsetAttribute> getGramOffsets(List<String> strings, int min, int max) {
-    //for now, copy strings to terms
-    List<Term> terms = new ArrayList<>();
-    for (String s : strings) {
-      terms.add(new Term(fieldName, s));
+  public long[] getGramOffsets(List<String> strings) {
+    int min = getMinGram();
+    int max = getMaxGram();
+    //check each token against the blacklist once, not once per gram
+    //and reuse a single term for the checks.  The term shares the builder's
+    //BytesRef, which copyChars updates in place; this is safe because
+    //blacklists must not keep the term (see TokenBlackList#accept).
+    boolean[] accepted = new boolean[strings.size()];
+    BytesRefBuilder bytes = new BytesRefBuilder();
+    Term term = new Term(fieldName, bytes.get());
+    for (int i = 0; i < strings.size(); i++) {
+      String tmp = strings.get(i);
+      if (ConcordanceArrayWindow.isStop(tmp)) {
+        accepted[i] = true;
+        continue;
+      }
+      bytes.copyChars(tmp);
+      accepted[i] = tokenBlackList.accept(term);
     }
 
-    List<OffsetAttribute> ret = new ArrayList<>();
+    long[] ret = new long[strings.size()];
+    int size = 0;
     for (int i = 0; i < strings.size(); i++) {
       if (ConcordanceArrayWindow.isStopOrFieldSeparator(strings.get(i))) {
         continue;
-      } else if (! tokenBlackList.accept(terms.get(i))) {
+      } else if (! accepted[i]) {
         continue;
       }
 
@@ -106,7 +111,7 @@ public class WGrammer extends Grammer {
       for (int j = i; nonStops < max && j < strings.size(); j++) {
         String tmp = strings.get(j);
         if (ConcordanceArrayWindow.isStop(tmp) ||
-                !tokenBlackList.accept(terms.get(j)) ||
+                !accepted[j] ||
             (allowFieldSeparators == true && ConcordanceArrayWindow.isFieldSeparator(tmp))) {
           continue;
         } else if (allowFieldSeparators == false && ConcordanceArrayWindow.isFieldSeparator(tmp)) {
@@ -114,14 +119,27 @@ public class WGrammer extends Grammer {
         }
         nonStops++;
         if (nonStops >= min) {
-          OffsetAttribute offset = new OffsetAttributeImpl();
-          offset.setOffset(i, j);
-          ret.add(offset);
+          ret = ArrayUtil.grow(ret, size + 1);
+          ret[size++] = packOffset(i, j);
         }
       }
     }
-    return ret;
+    return (size == ret.length) ? ret : Arrays.copyOf(ret, size);
   }
 
+  @Override
+  public boolean equals(Object obj) {
+    if (!super.equals(obj)) {
+      return false;
+    }
+    WGrammer other = (WGrammer) obj;
+    return allowFieldSeparators == other.allowFieldSeparators &&
+        Objects.equals(fieldName, other.fieldName) &&
+        Objects.equals(tokenBlackList, other.tokenBlackList);
+  }
 
+  @Override
+  public int hashCode() {
+    return 31 * super.hashCode() + Objects.hash(allowFieldSeparators, fieldName, tokenBlackList);
+  }
 }
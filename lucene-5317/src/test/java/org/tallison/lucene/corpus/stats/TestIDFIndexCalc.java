@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.corpus.stats;
+
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+public class TestIDFIndexCalc extends LuceneTestCase {
+
+  private static final String FIELD = "f1";
+
+  @Test
+  public void testCachedDocFreqs() throws Exception {
+    String[] docs = new String[]{
+        "a b c", "a b", "a", "d e", "a d", "b e"
+    };
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory,
+        newIndexWriterConfig(new MockAnalyzer(random()))
+            .setMaxBufferedDocs(2)
+            .setMergePolicy(NoMergePolicy.INSTANCE));
+    for (String s : docs) {
+      Document d = new Document();
+      d.add(newTextField(FIELD, s, Field.Store.NO));
+      writer.addDocument(d);
+    }
+    writer.close();
+    IndexReader reader = DirectoryReader.open(directory);
+
+    IDFIndexCalc uncached = new IDFIndexCalc(reader);
+    IDFIndexCalc cached = new IDFIndexCalc(reader);
+    cached.cacheDocFreqs(FIELD, Arrays.asList("a b", " c  d ", "e", "zzz a"));
+
+    for (String t : new String[]{"a", "b", "c", "d", "e", "zzz", "yyy"}) {
+      Term term = new Term(FIELD, t);
+      assertEquals(t, reader.docFreq(term), cached.docFreq(term));
+      assertEquals(t, reader.docFreq(term), uncached.docFreq(term));
+    }
+    assertEquals(4, cached.docFreq(new Term(FIELD, "a")));
+
+    for (String s : new String[]{"a b", "  c   d ", "zzz", "e a"}) {
+      double[] expected = uncached.multiTermStats(s, FIELD);
+      double[] actual = cached.multiTermStats(s, FIELD);
+      assertEquals(expected[0], actual[0], 0.00001);
+      assertEquals(expected[1], actual[1], 0.00001);
+    }
+    reader.close();
+    directory.close();
+  }
+}
@@ -16,21 +16,36 @@
  */
 package org.tallison.lucene.search.concordance;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.MockTokenFilter;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.RandomIndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
@@ -44,12 +59,16 @@ import org.apache.lucene.search.spans.SpanOrQuery;
 import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NamedThreadFactory;
+import org.apache.lucene.util.TestUtil;
 import org.apache.lucene.util.automaton.CharacterRunAutomaton;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.tallison.lucene.search.concordance.classic.AbstractConcordanceWindowCollector;
+import org.tallison.lucene.search.concordance.classic.ConcordanceCursor;
 import org.tallison.lucene.search.concordance.classic.ConcordanceSearcher;
 import org.tallison.lucene.search.concordance.classic.ConcordanceSortOrder;
 import org.tallison.lucene.search.concordance.classic.ConcordanceWindow;
@@ -59,7 +78,11 @@ import org.tallison.lucene.search.concordance.classic.WindowBuilder;
 import org.tallison.lucene.search.concordance.classic.impl.ConcordanceWindowCollector;
 import org.tallison.lucene.search.concordance.classic.impl.DedupingConcordanceWindowCollector;
 import org.tallison.lucene.search.concordance.classic.impl.DefaultSortKeyBuilder;
+import org.tallison.lucene.search.concordance.classic.impl.DocValuesDocIdBuilder;
+import org.tallison.lucene.search.concordance.classic.impl.DocValuesMetadataExtractor;
 import org.tallison.lucene.search.concordance.classic.impl.IndexIdDocIdBuilder;
+import org.tallison.lucene.search.concordance.classic.impl.TopKConcordanceWindowCollector;
+import org.tallison.lucene.search.concordance.util.LRUConcordanceCache;
 
 public class TestConcordanceSearcher extends ConcordanceTestBase {
 
@@ -153,6 +176,69 @@ public class TestConcordanceSearcher extends ConcordanceTestBase {
     directory.close();
   }
 
+  @Test
+  public void testCache() throws Exception {
+    String[] docs = new String[]{"a b c a b c", "a b c a b c", "d e a f a"};
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET);
+
+    Directory directory = getDirectory(analyzer, docs);
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+
+    WindowBuilder wb = new WindowBuilder(2, 2,
+        analyzer.getOffsetGap(FIELD),
+        new DefaultSortKeyBuilder(ConcordanceSortOrder.PRE), metadataExtractor, docIdBuilder);
+    ConcordanceSearcher searcher = new ConcordanceSearcher(wb);
+    LRUConcordanceCache cache = new LRUConcordanceCache(10, 1000);
+    searcher.setCache(cache);
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "a"));
+
+    DedupingConcordanceWindowCollector expected =
+        new DedupingConcordanceWindowCollector(AbstractConcordanceWindowCollector.COLLECT_ALL);
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, expected);
+    assertEquals(0, cache.getHits());
+    assertEquals(1, cache.size());
+
+    //merging the same cached leaf collectors must not change their counts
+    for (int i = 0; i < 2; i++) {
+      DedupingConcordanceWindowCollector collector =
+          new DedupingConcordanceWindowCollector(AbstractConcordanceWindowCollector.COLLECT_ALL);
+      searcher.search(indexSearcher, FIELD, q, null, analyzer, collector);
+      assertEquals(i + 1, cache.getHits());
+      List<ConcordanceWindow> expectedWindows = expected.getSortedWindows();
+      List<ConcordanceWindow> windows = collector.getSortedWindows();
+      assertEquals(expectedWindows.size(), windows.size());
+      for (int j = 0; j < windows.size(); j++) {
+        assertEquals(expectedWindows.get(j), windows.get(j));
+        assertEquals(expectedWindows.get(j).getCount(), windows.get(j).getCount());
+      }
+      assertEquals(expected.getNumDocs(), collector.getNumDocs());
+    }
+
+    //equal window builders share entries
+    ConcordanceSearcher other = new ConcordanceSearcher(new WindowBuilder(2, 2,
+        analyzer.getOffsetGap(FIELD),
+        new DefaultSortKeyBuilder(ConcordanceSortOrder.PRE), metadataExtractor, docIdBuilder));
+    other.setCache(cache);
+    DedupingConcordanceWindowCollector collector =
+        new DedupingConcordanceWindowCollector(AbstractConcordanceWindowCollector.COLLECT_ALL);
+    other.search(indexSearcher, FIELD, q, null, analyzer, collector);
+    assertEquals(3, cache.getHits());
+    assertEquals(expected.size(), collector.size());
+
+    //a different collector is a different entry
+    ConcordanceWindowCollector limited = new ConcordanceWindowCollector(2);
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, limited);
+    assertEquals(2, limited.size());
+    assertTrue(limited.getHitMax());
+    assertEquals(2, cache.size());
+
+    reader.close();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getNumWindows());
+    directory.close();
+  }
+
   @Test
   public void testSimpleMultiValuedField() throws Exception {
     String[] doc = new String[]{"a b c a b c", "c b a c b a"};
@@ -209,6 +295,51 @@ public class TestConcordanceSearcher extends ConcordanceTestBase {
     directory.close();
   }
 
+  @Test
+  public void testInterleavedMultiValuedField() throws Exception {
+    //values of the content field are stored around a field that isn't loaded
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 10, 10);
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory,
+        newIndexWriterConfig(analyzer));
+    Document d = new Document();
+    d.add(newTextField(FIELD, "a b c", Field.Store.YES));
+    d.add(new StoredField("other", "x y z"));
+    d.add(newTextField(FIELD, "d q e", Field.Store.YES));
+    d.add(new StoredField("other", "x y z"));
+    d.add(newTextField(FIELD, "f q g", Field.Store.YES));
+    writer.addDocument(d);
+    writer.close();
+
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    ConcordanceSearcher searcher = new ConcordanceSearcher(
+        new WindowBuilder(1, 1, analyzer.getOffsetGap(FIELD)));
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "q"));
+    ConcordanceWindowCollector collector = new ConcordanceWindowCollector(
+        AbstractConcordanceWindowCollector.COLLECT_ALL);
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, collector);
+
+    List<ConcordanceWindow> windows = collector.getWindows();
+    assertEquals(2, windows.size());
+    //"a b c" + 10 char offset gap
+    ConcordanceWindow w = windows.get(0);
+    assertEquals("d", w.getPre());
+    assertEquals("q", w.getTarget());
+    assertEquals(" e", w.getPost());
+    assertEquals(15, w.getStart());
+    assertEquals(20, w.getEnd());
+
+    w = windows.get(1);
+    assertEquals("f", w.getPre());
+    assertEquals("q", w.getTarget());
+    assertEquals(" g", w.getPost());
+    assertEquals(30, w.getStart());
+    assertEquals(35, w.getEnd());
+    reader.close();
+    directory.close();
+  }
+
   @Test
   public void testWindowLengths() throws Exception {
     String[] doc = new String[]{"a b c d e f g"};
@@ -449,6 +580,23 @@ public class TestConcordanceSearcher extends ConcordanceTestBase {
         analyzer, collector);
     assertEquals(3, collector.size());
 
+    //fingerprinted keys should dedup exactly the same way
+    for (boolean verify : new boolean[]{false, true}) {
+      DedupingConcordanceWindowCollector fingerprinted =
+          new DedupingConcordanceWindowCollector(AbstractConcordanceWindowCollector.COLLECT_ALL,
+              true, verify);
+      searcher.search(indexSearcher,
+          FIELD, (Query) q, null,
+          analyzer, fingerprinted);
+      assertEquals(3, fingerprinted.size());
+      Map<String, Integer> counts = new HashMap<>();
+      for (ConcordanceWindow w : collector.getWindows()) {
+        counts.put(w.toString().toLowerCase(), w.getCount());
+      }
+      for (ConcordanceWindow w : fingerprinted.getWindows()) {
+        assertEquals(counts.get(w.toString().toLowerCase()), Integer.valueOf(w.getCount()));
+      }
+    }
 
     reader.close();
     directory.close();
@@ -654,4 +802,483 @@ public class TestConcordanceSearcher extends ConcordanceTestBase {
     reader.close();
     directory.close();
   }
+
+  @Test
+  public void testParallelSearch() throws Exception {
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET);
+    //small segments that never merge, so that there are plenty of leaves
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory,
+        newIndexWriterConfig(analyzer)
+            .setMaxBufferedDocs(2)
+            .setMergePolicy(NoMergePolicy.INSTANCE));
+    int numDocs = atLeast(50);
+    for (int i = 0; i < numDocs; i++) {
+      Document d = new Document();
+      d.add(newTextField(FIELD, (i % 3 == 0) ? "a b c a b c" : "d e a f", Field.Store.YES));
+      writer.addDocument(d);
+    }
+    writer.close();
+
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    WindowBuilder wb = new WindowBuilder(10, 10,
+        analyzer.getOffsetGap(FIELD),
+        new DefaultSortKeyBuilder(ConcordanceSortOrder.PRE), metadataExtractor, docIdBuilder);
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "a"));
+
+    ExecutorService executorService = Executors.newFixedThreadPool(3,
+        new NamedThreadFactory("TestConcordanceSearcher"));
+    try {
+      ConcordanceSearcher sequential = new ConcordanceSearcher(wb);
+      ConcordanceSearcher parallel = new ConcordanceSearcher(wb);
+      parallel.setExecutorService(executorService);
+
+      for (int maxWindows : new int[]{AbstractConcordanceWindowCollector.COLLECT_ALL, 1, 7, 40}) {
+        ConcordanceWindowCollector seqCollector = new ConcordanceWindowCollector(maxWindows);
+        sequential.search(indexSearcher, FIELD, q, null, analyzer, seqCollector);
+        ConcordanceWindowCollector parCollector = new ConcordanceWindowCollector(maxWindows);
+        parallel.search(indexSearcher, FIELD, q, null, analyzer, parCollector);
+
+        assertEquals(seqCollector.size(), parCollector.size());
+        assertEquals(seqCollector.getNumDocs(), parCollector.getNumDocs());
+        for (int i = 0; i < seqCollector.size(); i++) {
+          ConcordanceWindow seq = seqCollector.getWindows().get(i);
+          ConcordanceWindow par = parCollector.getWindows().get(i);
+          assertEquals(seq.getUniqueDocID(), par.getUniqueDocID());
+          assertEquals(seq.getStart(), par.getStart());
+          assertEquals(seq.getPre(), par.getPre());
+          assertEquals(seq.getPost(), par.getPost());
+        }
+      }
+
+      DedupingConcordanceWindowCollector seqDeduping =
+          new DedupingConcordanceWindowCollector(AbstractConcordanceWindowCollector.COLLECT_ALL);
+      sequential.search(indexSearcher, FIELD, q, null, analyzer, seqDeduping);
+      DedupingConcordanceWindowCollector parDeduping =
+          new DedupingConcordanceWindowCollector(AbstractConcordanceWindowCollector.COLLECT_ALL);
+      parallel.search(indexSearcher, FIELD, q, null, analyzer, parDeduping);
+
+      assertEquals(seqDeduping.size(), parDeduping.size());
+      assertEquals(seqDeduping.getNumDocs(), parDeduping.getNumDocs());
+      Map<String, Integer> seqCounts = new HashMap<>();
+      for (ConcordanceWindow w : seqDeduping.getWindows()) {
+        seqCounts.put(w.toString(), w.getCount());
+      }
+      for (ConcordanceWindow w : parDeduping.getWindows()) {
+        assertEquals(seqCounts.get(w.toString()), Integer.valueOf(w.getCount()));
+      }
+    } finally {
+      executorService.shutdown();
+      executorService.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testDocValuesIdsAndMetadata() throws Exception {
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET);
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory,
+        newIndexWriterConfig(analyzer)
+            .setMaxBufferedDocs(TestUtil.nextInt(random(), 2, 10))
+            .setMergePolicy(newLogMergePolicy()));
+    int numDocs = atLeast(20);
+    for (int i = 0; i < numDocs; i++) {
+      Document d = new Document();
+      d.add(newTextField(FIELD, "a b c", Field.Store.YES));
+      //ids and metadata are only in doc values
+      d.add(new SortedDocValuesField("id", new BytesRef("id" + i)));
+      if (i % 2 == 0) {
+        d.add(new BinaryDocValuesField("title", new BytesRef("title" + i)));
+      }
+      writer.addDocument(d);
+    }
+    writer.close();
+
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    WindowBuilder wb = new WindowBuilder(2, 2,
+        analyzer.getOffsetGap(FIELD),
+        new DefaultSortKeyBuilder(ConcordanceSortOrder.PRE),
+        new DocValuesMetadataExtractor("title"), new DocValuesDocIdBuilder("id"));
+    assertTrue(wb.getFieldSelector().isEmpty());
+
+    ConcordanceSearcher searcher = new ConcordanceSearcher(wb);
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "b"));
+    ConcordanceWindowCollector collector = new ConcordanceWindowCollector(
+        AbstractConcordanceWindowCollector.COLLECT_ALL);
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, collector);
+
+    assertEquals(numDocs, collector.size());
+    assertEquals(numDocs, collector.getNumDocs());
+    for (ConcordanceWindow w : collector.getWindows()) {
+      assertTrue(w.getUniqueDocID().startsWith("id"));
+      int i = Integer.parseInt(w.getUniqueDocID().substring(2));
+      if (i % 2 == 0) {
+        assertEquals("title" + i, w.getMetadata().get("title"));
+      } else {
+        assertNull(w.getMetadata().get("title"));
+      }
+      assertEquals("a", w.getPre());
+      assertEquals("c", w.getPost());
+    }
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testTermVectorOffsets() throws Exception {
+    List<String[]> input = new ArrayList<>();
+    input.add(new String[]{"a b c a b c", "c b a c b a"});
+    input.add(new String[]{"d e c f", "the quick brown c", "c"});
+    input.add(new String[]{"g h i"});
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.ENGLISH_STOPSET);
+
+    Directory reanalyzeDirectory = getDirectory(analyzer, input);
+
+    Directory tvDirectory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), tvDirectory,
+        newIndexWriterConfig(analyzer).setMergePolicy(newLogMergePolicy()));
+    FieldType tvType = new FieldType(TextField.TYPE_STORED);
+    tvType.setStoreTermVectors(true);
+    tvType.setStoreTermVectorPositions(true);
+    tvType.setStoreTermVectorOffsets(true);
+    tvType.freeze();
+    for (String[] vals : input) {
+      Document d = new Document();
+      for (String s : vals) {
+        d.add(new Field(FIELD, s, tvType));
+      }
+      writer.addDocument(d);
+    }
+    writer.close();
+
+    IndexReader reanalyzeReader = DirectoryReader.open(reanalyzeDirectory);
+    IndexReader tvReader = DirectoryReader.open(tvDirectory);
+    ConcordanceSearcher searcher = new ConcordanceSearcher(
+        new WindowBuilder(2, 2, analyzer.getOffsetGap(FIELD)));
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "c"));
+
+    ConcordanceWindowCollector reanalyzed = new ConcordanceWindowCollector(
+        ConcordanceWindowCollector.COLLECT_ALL);
+    searcher.search(new IndexSearcher(reanalyzeReader), FIELD, q, null, analyzer, reanalyzed);
+    ConcordanceWindowCollector fromVectors = new ConcordanceWindowCollector(
+        ConcordanceWindowCollector.COLLECT_ALL);
+    searcher.search(new IndexSearcher(tvReader), FIELD, q, null, analyzer, fromVectors);
+
+    assertEquals(7, reanalyzed.size());
+    assertEquals(reanalyzed.size(), fromVectors.size());
+    Set<String> expected = new HashSet<>();
+    for (ConcordanceWindow w : reanalyzed.getWindows()) {
+      expected.add(w.toString() + "|" + w.getStart() + "|" + w.getEnd());
+    }
+    for (ConcordanceWindow w : fromVectors.getWindows()) {
+      assertTrue(w.toString(), expected.contains(w.toString() + "|" + w.getStart() + "|" + w.getEnd()));
+    }
+    reanalyzeReader.close();
+    tvReader.close();
+    reanalyzeDirectory.close();
+    tvDirectory.close();
+  }
+
+  @Test
+  public void testStackedTokenOffsets() throws Exception {
+    //each token gets a stacked token with the same start, a shorter end
+    //and a lower term, so reanalysis has to pick what the term vectors pick
+    Analyzer analyzer = new Analyzer() {
+      @Override
+      public TokenStreamComponents createComponents(String fieldName) {
+        MockTokenizer tokenizer = new MockTokenizer(MockTokenizer.WHITESPACE, true);
+        return new TokenStreamComponents(tokenizer, new StackingFilter(tokenizer));
+      }
+
+      @Override
+      public int getOffsetGap(String fieldName) {
+        return 10;
+      }
+    };
+    List<String[]> input = new ArrayList<>();
+    input.add(new String[]{"aa bb cc dd", "cc ee"});
+
+    Directory reanalyzeDirectory = getDirectory(analyzer, input);
+    Directory tvDirectory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), tvDirectory,
+        newIndexWriterConfig(analyzer));
+    FieldType tvType = new FieldType(TextField.TYPE_STORED);
+    tvType.setStoreTermVectors(true);
+    tvType.setStoreTermVectorPositions(true);
+    tvType.setStoreTermVectorOffsets(true);
+    tvType.freeze();
+    for (String[] vals : input) {
+      Document d = new Document();
+      for (String s : vals) {
+        d.add(new Field(FIELD, s, tvType));
+      }
+      writer.addDocument(d);
+    }
+    writer.close();
+
+    IndexReader reanalyzeReader = DirectoryReader.open(reanalyzeDirectory);
+    IndexReader tvReader = DirectoryReader.open(tvDirectory);
+    ConcordanceSearcher searcher = new ConcordanceSearcher(
+        new WindowBuilder(1, 1, analyzer.getOffsetGap(FIELD)));
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "cc"));
+
+    ConcordanceWindowCollector reanalyzed = new ConcordanceWindowCollector(
+        ConcordanceWindowCollector.COLLECT_ALL);
+    searcher.search(new IndexSearcher(reanalyzeReader), FIELD, q, null, analyzer, reanalyzed);
+    ConcordanceWindowCollector fromVectors = new ConcordanceWindowCollector(
+        ConcordanceWindowCollector.COLLECT_ALL);
+    searcher.search(new IndexSearcher(tvReader), FIELD, q, null, analyzer, fromVectors);
+
+    assertEquals(2, reanalyzed.size());
+    assertEquals(reanalyzed.size(), fromVectors.size());
+    List<ConcordanceWindow> reanalyzedWindows = reanalyzed.getSortedWindows();
+    List<ConcordanceWindow> vectorWindows = fromVectors.getSortedWindows();
+    for (int i = 0; i < reanalyzedWindows.size(); i++) {
+      ConcordanceWindow r = reanalyzedWindows.get(i);
+      ConcordanceWindow v = vectorWindows.get(i);
+      //the stacked token covers only the first char
+      assertEquals("c", r.getTarget());
+      assertEquals(v.getPre(), r.getPre());
+      assertEquals(v.getTarget(), r.getTarget());
+      assertEquals(v.getPost(), r.getPost());
+      assertEquals(v.getStart(), r.getStart());
+      assertEquals(v.getEnd(), r.getEnd());
+    }
+    reanalyzeReader.close();
+    tvReader.close();
+    reanalyzeDirectory.close();
+    tvDirectory.close();
+  }
+
+  /**
+   * After each token, stacks "+" + token over the token's first char
+   */
+  private static class StackingFilter extends TokenFilter {
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt =
+        addAttribute(PositionIncrementAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private String pending = null;
+    private int pendingStart = -1;
+
+    StackingFilter(TokenStream input) {
+      super(input);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+      if (pending != null) {
+        clearAttributes();
+        termAtt.append(pending);
+        posIncAtt.setPositionIncrement(0);
+        offsetAtt.setOffset(pendingStart, pendingStart + 1);
+        pending = null;
+        return true;
+      }
+      if (!input.incrementToken()) {
+        return false;
+      }
+      pending = "+" + termAtt.toString();
+      pendingStart = offsetAtt.startOffset();
+      return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+      super.reset();
+      pending = null;
+    }
+  }
+
+  @Test
+  public void testStopAnalysisEarly() throws Exception {
+    final int posIncGap = random().nextInt(100);
+    final int offsetGap = random().nextInt(100);
+    Analyzer analyzer = new Analyzer() {
+      @Override
+      public TokenStreamComponents createComponents(String fieldName) {
+        MockTokenizer tokenizer = new MockTokenizer(MockTokenizer.WHITESPACE, true);
+        //we aren't consuming all tokens
+        tokenizer.setEnableChecks(false);
+        TokenFilter filter = new MockTokenFilter(tokenizer, MockTokenFilter.ENGLISH_STOPSET);
+        return new TokenStreamComponents(tokenizer, filter);
+      }
+
+      @Override
+      public int getPositionIncrementGap(String fieldName) {
+        return posIncGap;
+      }
+
+      @Override
+      public int getOffsetGap(String fieldName) {
+        return offsetGap;
+      }
+    };
+    List<String[]> input = new ArrayList<>();
+    input.add(new String[]{"x the y z a b c d e f g h", "the x", "i j k x l the m n o p"});
+    input.add(new String[]{"a b c", "d e f", "x"});
+    input.add(new String[]{"x"});
+    input.add(new String[]{"", "the", "x the the x a b c d"});
+    Directory directory = getDirectory(analyzer, input);
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "x"));
+
+    for (int tokens : new int[]{1, 2, 5}) {
+      WindowBuilder wb = new WindowBuilder(tokens, tokens, analyzer.getOffsetGap(FIELD));
+      ConcordanceSearcher consumeAll = new ConcordanceSearcher(wb);
+      ConcordanceSearcher stopEarly = new ConcordanceSearcher(wb);
+      stopEarly.setConsumeAllTokens(false);
+
+      ConcordanceWindowCollector expected = new ConcordanceWindowCollector(
+          ConcordanceWindowCollector.COLLECT_ALL);
+      consumeAll.search(indexSearcher, FIELD, q, null, analyzer, expected);
+      ConcordanceWindowCollector actual = new ConcordanceWindowCollector(
+          ConcordanceWindowCollector.COLLECT_ALL);
+      stopEarly.search(indexSearcher, FIELD, q, null, analyzer, actual);
+
+      assertEquals(7, expected.size());
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        ConcordanceWindow e = expected.getWindows().get(i);
+        ConcordanceWindow a = actual.getWindows().get(i);
+        assertEquals(e.toString(), a.toString());
+        assertEquals(e.getStart(), a.getStart());
+        assertEquals(e.getEnd(), a.getEnd());
+      }
+    }
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testTopKCollector() throws Exception {
+    String[] words = new String[]{"a", "b", "c", "d", "e", "f"};
+    int numDocs = atLeast(20);
+    String[] docs = new String[numDocs];
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder sb = new StringBuilder();
+      int numWords = 1 + random().nextInt(30);
+      for (int j = 0; j < numWords; j++) {
+        sb.append(words[random().nextInt(words.length)]).append(" ");
+      }
+      docs[i] = sb.toString().trim();
+    }
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET);
+    Directory directory = getDirectory(analyzer, docs);
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "a"));
+
+    for (ConcordanceSortOrder sortOrder : new ConcordanceSortOrder[]{
+        ConcordanceSortOrder.PRE, ConcordanceSortOrder.POST, ConcordanceSortOrder.DOC}) {
+      ConcordanceSearcher searcher = new ConcordanceSearcher(new WindowBuilder(2, 2,
+          analyzer.getOffsetGap(FIELD), new DefaultSortKeyBuilder(sortOrder),
+          metadataExtractor, docIdBuilder));
+      ConcordanceWindowCollector all = new ConcordanceWindowCollector(
+          AbstractConcordanceWindowCollector.COLLECT_ALL);
+      searcher.search(indexSearcher, FIELD, q, null, analyzer, all);
+      List<ConcordanceWindow> expected = all.getSortedWindows();
+
+      for (int k : new int[]{1, 5, 17, 10000}) {
+        TopKConcordanceWindowCollector topK = new TopKConcordanceWindowCollector(k);
+        searcher.search(indexSearcher, FIELD, q, null, analyzer, topK);
+        List<ConcordanceWindow> actual = topK.getSortedWindows();
+        assertEquals(Math.min(k, expected.size()), actual.size());
+        assertFalse(topK.getHitMax());
+        for (int i = 0; i < actual.size(); i++) {
+          assertEquals(expected.get(i).getUniqueDocID(), actual.get(i).getUniqueDocID());
+          assertEquals(expected.get(i).getStart(), actual.get(i).getStart());
+          assertEquals(expected.get(i).getSortKey(), actual.get(i).getSortKey());
+        }
+      }
+    }
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testCursor() throws Exception {
+    String[] words = new String[]{"a", "b", "c", "d", "e", "f"};
+    int numDocs = atLeast(20);
+    String[] docs = new String[numDocs];
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder sb = new StringBuilder();
+      int numWords = 1 + random().nextInt(30);
+      for (int j = 0; j < numWords; j++) {
+        sb.append(words[random().nextInt(words.length)]).append(" ");
+      }
+      docs[i] = sb.toString().trim();
+    }
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET);
+    Directory directory = getDirectory(analyzer, docs);
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "a"));
+
+    for (ConcordanceSortOrder sortOrder : new ConcordanceSortOrder[]{
+        ConcordanceSortOrder.PRE, ConcordanceSortOrder.DOC}) {
+      ConcordanceSearcher searcher = new ConcordanceSearcher(new WindowBuilder(2, 2,
+          analyzer.getOffsetGap(FIELD), new DefaultSortKeyBuilder(sortOrder),
+          metadataExtractor, docIdBuilder));
+      ConcordanceWindowCollector all = new ConcordanceWindowCollector(
+          AbstractConcordanceWindowCollector.COLLECT_ALL);
+      searcher.search(indexSearcher, FIELD, q, null, analyzer, all);
+      assertNull(all.getCursor());
+      //index order
+      List<ConcordanceWindow> expected = new ArrayList<>(all.getWindows());
+      List<ConcordanceWindow> sorted = all.getSortedWindows();
+
+      for (int pageSize : new int[]{1, 3, 7}) {
+        //index order pages
+        List<ConcordanceWindow> actual = new ArrayList<>();
+        ConcordanceCursor cursor = null;
+        do {
+          ConcordanceWindowCollector page = new ConcordanceWindowCollector(pageSize);
+          searcher.searchAfter(cursor, indexSearcher, FIELD, q, null, analyzer, page);
+          assertTrue(page.size() <= pageSize);
+          actual.addAll(page.getWindows());
+          cursor = page.getCursor();
+          if (cursor != null) {
+            assertFalse(cursor.isSorted());
+            assertEquals(cursor, ConcordanceCursor.decode(cursor.encode()));
+          }
+        } while (cursor != null);
+        assertWindowsEqual(expected, actual);
+
+        //sort order pages
+        actual.clear();
+        cursor = null;
+        do {
+          TopKConcordanceWindowCollector page = new TopKConcordanceWindowCollector(pageSize);
+          searcher.searchAfter(cursor, indexSearcher, FIELD, q, null, analyzer, page);
+          actual.addAll(page.getWindows());
+          cursor = page.getCursor();
+          if (cursor != null) {
+            assertTrue(cursor.isSorted());
+            cursor = ConcordanceCursor.decode(cursor.encode());
+          }
+        } while (cursor != null);
+        assertWindowsEqual(sorted, actual);
+      }
+    }
+    reader.close();
+    directory.close();
+  }
+
+  private void assertWindowsEqual(List<ConcordanceWindow> expected,
+                                  List<ConcordanceWindow> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < actual.size(); i++) {
+      assertEquals(expected.get(i).getLuceneDocId(), actual.get(i).getLuceneDocId());
+      assertEquals(expected.get(i).getTargetTokenStart(), actual.get(i).getTargetTokenStart());
+      assertEquals(expected.get(i).getUniqueDocID(), actual.get(i).getUniqueDocID());
+      assertEquals(expected.get(i).getStart(), actual.get(i).getStart());
+      assertEquals(expected.get(i).getSortKey().toString(), actual.get(i).getSortKey().toString());
+    }
+  }
 }
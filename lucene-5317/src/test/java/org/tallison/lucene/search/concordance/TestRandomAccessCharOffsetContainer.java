@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.junit.Test;
+import org.tallison.lucene.search.concordance.charoffsets.RandomAccessCharOffsetContainer;
+
+public class TestRandomAccessCharOffsetContainer extends LuceneTestCase {
+
+  @Test
+  public void testAgainstMap() throws Exception {
+    RandomAccessCharOffsetContainer container = new RandomAccessCharOffsetContainer();
+    //reuse the container across "documents"
+    for (int iter = 0; iter < 10; iter++) {
+      container.clear();
+      Map<Integer, int[]> offsets = new HashMap<>();
+      Map<Integer, String> terms = new HashMap<>();
+      int maxToken = TestUtil.nextInt(random(), 1, 2000);
+      int numOps = atLeast(500);
+      for (int i = 0; i < numOps; i++) {
+        int token = random().nextInt(maxToken);
+        if (random().nextInt(5) == 0) {
+          container.remove(token);
+          offsets.remove(token);
+          terms.remove(token);
+          continue;
+        }
+        int start = random().nextInt(100000);
+        int end = start + random().nextInt(20);
+        String term = TestUtil.randomSimpleString(random());
+        if (random().nextBoolean()) {
+          container.add(token, start, end, term);
+        } else {
+          char[] buffer = ("xx" + term + "yy").toCharArray();
+          container.add(token, start, end, buffer, 2, term.length());
+        }
+        offsets.put(token, new int[]{start, end});
+        terms.put(token, term);
+      }
+      for (int token = -1; token <= maxToken; token++) {
+        int[] expected = offsets.get(token);
+        if (expected == null) {
+          assertEquals(RandomAccessCharOffsetContainer.NULL_OFFSET,
+              container.getCharacterOffsetStart(token));
+          assertEquals(RandomAccessCharOffsetContainer.NULL_OFFSET,
+              container.getCharacterOffsetEnd(token));
+          assertEquals(RandomAccessCharOffsetContainer.NULL_TERM, container.getTerm(token));
+        } else {
+          assertEquals(expected[0], container.getCharacterOffsetStart(token));
+          assertEquals(expected[1], container.getCharacterOffsetEnd(token));
+          assertEquals(terms.get(token), container.getTerm(token));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testClosest() throws Exception {
+    RandomAccessCharOffsetContainer container = new RandomAccessCharOffsetContainer();
+    container.add(2, 10, 12, "ab");
+    container.add(5, 20, 23, "cde");
+    assertEquals(5, container.getLast());
+    assertEquals(10, container.getClosestCharStart(0, 4));
+    assertEquals(23, container.getClosestCharEnd(7, 3));
+    assertEquals(RandomAccessCharOffsetContainer.NULL_OFFSET,
+        container.getClosestCharStart(3, 4));
+    container.remove(5);
+    assertEquals(2, container.getLast());
+    container.clear();
+    assertEquals(-1, container.getLast());
+    assertEquals(RandomAccessCharOffsetContainer.NULL_OFFSET,
+        container.getCharacterOffsetStart(2));
+  }
+}
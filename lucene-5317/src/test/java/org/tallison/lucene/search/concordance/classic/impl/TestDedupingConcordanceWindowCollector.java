@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.search.concordance.classic.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+import org.tallison.lucene.search.concordance.classic.AbstractConcordanceWindowCollector;
+import org.tallison.lucene.search.concordance.classic.ConcordanceWindow;
+
+public class TestDedupingConcordanceWindowCollector extends LuceneTestCase {
+
+  @Test
+  public void testFingerprintCollisions() throws Exception {
+    for (boolean verify : new boolean[]{false, true}) {
+      DedupingConcordanceWindowCollector collector = new CollidingCollector(verify);
+      collector.collect(window("a", "The", "brown", "fox"));
+      collector.collect(window("b", "the", "BROWN", "fox"));
+      collector.collect(window("c", "a", "red", "hen"));
+      collector.collect(window("d", "a", "Red", "hen"));
+      collector.collect(window("e", "the", "brown", "fo"));
+
+      if (verify) {
+        //windows that collided are still stored separately
+        assertEquals(3, collector.size());
+        Map<String, Integer> counts = counts(collector);
+        assertEquals(2, (int) counts.get("brown fox"));
+        assertEquals(2, (int) counts.get("red hen"));
+        assertEquals(1, (int) counts.get("brown fo"));
+      } else {
+        //without verification, every window collapses into the first
+        assertEquals(1, collector.size());
+        assertEquals(5, collector.getWindows().get(0).getCount());
+      }
+      assertEquals(5, collector.getDocIds().size());
+
+      //merging has to take the same path
+      DedupingConcordanceWindowCollector merged = new CollidingCollector(verify);
+      merged.merge(collector);
+      merged.merge(collector);
+      assertEquals(collector.size(), merged.size());
+      if (verify) {
+        Map<String, Integer> counts = counts(merged);
+        assertEquals(4, (int) counts.get("brown fox"));
+        assertEquals(4, (int) counts.get("red hen"));
+        assertEquals(2, (int) counts.get("brown fo"));
+      } else {
+        assertEquals(10, merged.getWindows().get(0).getCount());
+      }
+    }
+  }
+
+  @Test
+  public void testContextSensitiveLowerCase() throws Exception {
+    //String.toLowerCase would turn the final sigma into \u03C2
+    for (boolean fingerprints : new boolean[]{false, true}) {
+      DedupingConcordanceWindowCollector collector = new DedupingConcordanceWindowCollector(
+          AbstractConcordanceWindowCollector.COLLECT_ALL, fingerprints, true);
+      collector.collect(window("a", "\u039F\u0394\u039F\u03A3", "x", "y"));
+      collector.collect(window("b", "\u03BF\u03B4\u03BF\u03C3", "X", "Y"));
+      assertEquals("fingerprints: " + fingerprints, 1, collector.size());
+      assertEquals(2, collector.getWindows().get(0).getCount());
+    }
+  }
+
+  @Test
+  public void testMaxWindowsWithCollisions() throws Exception {
+    DedupingConcordanceWindowCollector collector = new CollidingCollector(true, 2);
+    collector.collect(window("a", "the", "brown", "fox"));
+    collector.collect(window("b", "a", "red", "hen"));
+    collector.collect(window("c", "A", "RED", "HEN"));
+    assertFalse(collector.getHitMax());
+    collector.collect(window("d", "one", "more", "window"));
+    assertTrue(collector.getHitMax());
+    assertEquals(2, collector.size());
+  }
+
+  private static Map<String, Integer> counts(AbstractConcordanceWindowCollector collector) {
+    Map<String, Integer> counts = new HashMap<>();
+    for (ConcordanceWindow w : collector.getWindows()) {
+      counts.put(w.getTarget().toLowerCase() + " " + w.getPost().toLowerCase(), w.getCount());
+    }
+    return counts;
+  }
+
+  private static ConcordanceWindow window(String docId, String pre, String target, String post) {
+    return new ConcordanceWindow(docId, 0, 0, pre, target, post, null,
+        Collections.<String, String>emptyMap());
+  }
+
+  /**
+   * Maps every window to the same fingerprint
+   */
+  private static class CollidingCollector extends DedupingConcordanceWindowCollector {
+    private static final Fingerprint COLLISION = new Fingerprint(1, 2);
+
+    CollidingCollector(boolean verifyFingerprints) {
+      this(verifyFingerprints, AbstractConcordanceWindowCollector.COLLECT_ALL);
+    }
+
+    CollidingCollector(boolean verifyFingerprints, int maxHits) {
+      super(maxHits, true, verifyFingerprints);
+    }
+
+    @Override
+    Fingerprint fingerprint(ConcordanceWindow w) {
+      return COLLISION;
+    }
+  }
+}
@@ -17,19 +17,29 @@
 
 package org.tallison.lucene.search.concordance.windowvisitor;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.MockTokenFilter;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.tallison.lucene.corpus.stats.ApproximateTermIDF;
 import org.tallison.lucene.corpus.stats.IDFIndexCalc;
+import org.tallison.lucene.corpus.stats.TermDFTF;
 import org.tallison.lucene.corpus.stats.TermIDF;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.RandomIndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.PrefixQuery;
@@ -41,11 +51,13 @@ import org.apache.lucene.search.spans.SpanNearQuery;
 import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.NamedThreadFactory;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.tallison.lucene.search.concordance.util.EmptyTokenBlackList;
 import org.tallison.lucene.search.concordance.util.IDFThresholdTokenBlackList;
+import org.tallison.lucene.search.concordance.util.LRUConcordanceCache;
 
 public class TestConcordanceArrayWindowSearcher extends ConcordanceTestBase {
 
@@ -380,4 +392,298 @@ public class TestConcordanceArrayWindowSearcher extends ConcordanceTestBase {
     directory.close();
 
   }
+
+  @Test
+  public void testParallel() throws Exception {
+    String[] words = new String[]{"a", "b", "c", "d", "e", "f", "g"};
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    //small segments that never merge, so that there are plenty of leaves
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory,
+        newIndexWriterConfig(analyzer)
+            .setMaxBufferedDocs(2)
+            .setMergePolicy(NoMergePolicy.INSTANCE));
+    int numDocs = atLeast(50);
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder sb = new StringBuilder();
+      //few distinct docs so that there are duplicate windows across leaves
+      int numWords = 3 + (i % 5);
+      for (int j = 0; j < numWords; j++) {
+        sb.append(words[(i + j) % words.length]).append(" ");
+      }
+      Document d = new Document();
+      d.add(newTextField(FIELD, sb.toString().trim(), Field.Store.YES));
+      writer.addDocument(d);
+    }
+    writer.close();
+
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    IDFIndexCalc idfCalc = new IDFIndexCalc(reader);
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "d"));
+
+    ExecutorService executorService = Executors.newFixedThreadPool(3,
+        new NamedThreadFactory("TestConcordanceArrayWindowSearcher"));
+    try {
+      ConcordanceArrayWindowSearcher sequential = new ConcordanceArrayWindowSearcher();
+      ConcordanceArrayWindowSearcher parallel = new ConcordanceArrayWindowSearcher();
+      parallel.setExecutorService(executorService);
+
+      //maxWindows has to cut off at the same window as a sequential search
+      for (int maxWindows : new int[]{10000, 7}) {
+        for (boolean allowDuplicates : new boolean[]{true, false}) {
+          CooccurVisitor seqVisitor = new CooccurVisitor(FIELD, 2, 2,
+              new WGrammer(1, 2, FIELD, new EmptyTokenBlackList(), false),
+              idfCalc, maxWindows, allowDuplicates);
+          seqVisitor.setMinTermFreq(0);
+          seqVisitor.setNumResults(1000);
+          sequential.search(indexSearcher, FIELD, q, null, analyzer, seqVisitor,
+              new IndexIdDocIdBuilder());
+
+          CooccurVisitor parVisitor = new CooccurVisitor(FIELD, 2, 2,
+              new WGrammer(1, 2, FIELD, new EmptyTokenBlackList(), false),
+              idfCalc, maxWindows, allowDuplicates);
+          parVisitor.setMinTermFreq(0);
+          parVisitor.setNumResults(1000);
+          parallel.search(indexSearcher, FIELD, q, null, analyzer, parVisitor,
+              new IndexIdDocIdBuilder());
+
+          assertEquals(seqVisitor.getNumWindowsVisited(), parVisitor.getNumWindowsVisited());
+          assertEquals(seqVisitor.getHitMax(), parVisitor.getHitMax());
+          assertEquals(seqVisitor.getNumDocsVisited(), parVisitor.getNumDocsVisited());
+          Map<String, Long> expected = new HashMap<>();
+          for (TermIDF t : seqVisitor.getResults()) {
+            expected.put(t.getTerm(), t.getTermFreq());
+          }
+          List<TermIDF> actual = parVisitor.getResults();
+          assertEquals(expected.size(), actual.size());
+          for (TermIDF t : actual) {
+            assertEquals(t.getTerm(), expected.get(t.getTerm()), Long.valueOf(t.getTermFreq()));
+          }
+          Map<String, Integer> termFreqs = parVisitor.getTermFreqs();
+          assertEquals(expected.size(), termFreqs.size());
+          for (Map.Entry<String, Integer> e : termFreqs.entrySet()) {
+            assertEquals(e.getKey(), expected.get(e.getKey()), Long.valueOf(e.getValue()));
+          }
+
+          if (allowDuplicates && maxWindows == 10000) {
+            //with room for every gram, approximate counts are exact
+            CooccurVisitor approxVisitor = new CooccurVisitor(FIELD, 2, 2,
+                new WGrammer(1, 2, FIELD, new EmptyTokenBlackList(), false),
+                idfCalc, 10000, allowDuplicates);
+            approxVisitor.setMinTermFreq(0);
+            approxVisitor.setNumResults(1000);
+            approxVisitor.setMaxTrackedGrams(10000);
+            parallel.search(indexSearcher, FIELD, q, null, analyzer, approxVisitor,
+                new IndexIdDocIdBuilder());
+            assertTrue(approxVisitor.isApproximate());
+            assertEquals(0, approxVisitor.getMaxTermFreqError());
+            List<TermIDF> approx = approxVisitor.getResults();
+            assertEquals(expected.size(), approx.size());
+            for (TermIDF t : approx) {
+              assertEquals(t.getTerm(), expected.get(t.getTerm()), Long.valueOf(t.getTermFreq()));
+              assertEquals(0, ((ApproximateTermIDF) t).getTermFreqError());
+            }
+          }
+        }
+      }
+
+      TargetVisitor seqTargets = new TargetVisitor(FIELD, 100, true, 10000);
+      sequential.search(indexSearcher, FIELD, q, null, analyzer, seqTargets,
+          new IndexIdDocIdBuilder());
+      TargetVisitor parTargets = new TargetVisitor(FIELD, 100, true, 10000);
+      parallel.search(indexSearcher, FIELD, q, null, analyzer, parTargets,
+          new IndexIdDocIdBuilder());
+      List<TermDFTF> seqResults = seqTargets.getResults();
+      List<TermDFTF> parResults = parTargets.getResults();
+      assertEquals(seqResults.size(), parResults.size());
+      for (int i = 0; i < seqResults.size(); i++) {
+        assertEquals(seqResults.get(i).getTerm(), parResults.get(i).getTerm());
+        assertEquals(seqResults.get(i).getDocFreq(), parResults.get(i).getDocFreq());
+        assertEquals(seqResults.get(i).getTermFreq(), parResults.get(i).getTermFreq());
+      }
+
+      //visitors without leaf visitors fall back to a sequential search
+      WindowCounter seqCounter = new WindowCounter(FIELD);
+      sequential.search(indexSearcher, FIELD, q, null, analyzer, seqCounter,
+          new IndexIdDocIdBuilder());
+      WindowCounter parCounter = new WindowCounter(FIELD);
+      parallel.search(indexSearcher, FIELD, q, null, analyzer, parCounter,
+          new IndexIdDocIdBuilder());
+      assertTrue(parCounter.getResults() > 0);
+      assertEquals(seqCounter.getResults(), parCounter.getResults());
+    } finally {
+      executorService.shutdown();
+      executorService.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    reader.close();
+    directory.close();
+  }
+
+  /**
+   * Counts windows; doesn't support parallel search
+   */
+  private static class WindowCounter extends ArrayWindowVisitor<Long> {
+    WindowCounter(String fieldName) {
+      super(fieldName, 2, 2, false, false, 10000);
+    }
+
+    @Override
+    public void visit(String docId, ConcordanceArrayWindow window) throws IOException {
+      finishedVisit(docId);
+    }
+
+    @Override
+    public Long getResults() {
+      return getNumWindowsVisited();
+    }
+  }
+
+  @Test
+  public void testCache() throws Exception {
+    String[] docs = new String[]{"a b c d e f g", "a b c d e f g", "b c d x y d c", "d"};
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    Directory directory = getDirectory(analyzer, docs);
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    IDFIndexCalc idfCalc = new IDFIndexCalc(reader);
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "d"));
+
+    ConcordanceArrayWindowSearcher searcher = new ConcordanceArrayWindowSearcher();
+    LRUConcordanceCache cache = new LRUConcordanceCache(10, 1000);
+    searcher.setCache(cache);
+
+    List<List<TermIDF>> cooccurs = new ArrayList<>();
+    List<List<TermDFTF>> targets = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      //a new but equal grammer each time
+      CooccurVisitor cooccur = new CooccurVisitor(FIELD, 2, 2,
+          new WGrammer(1, 2, FIELD, new EmptyTokenBlackList(), false),
+          idfCalc, 10000, false);
+      cooccur.setMinTermFreq(0);
+      cooccur.setNumResults(100);
+      searcher.search(indexSearcher, FIELD, q, null, analyzer, cooccur,
+          new IndexIdDocIdBuilder());
+      cooccurs.add(cooccur.getResults());
+
+      TargetVisitor target = new TargetVisitor(FIELD, 100, true, 10000);
+      searcher.search(indexSearcher, FIELD, q, null, analyzer, target,
+          new IndexIdDocIdBuilder());
+      targets.add(target.getResults());
+    }
+    assertEquals(2, cache.size());
+    assertEquals(4, cache.getHits());
+    for (int i = 1; i < 3; i++) {
+      assertEquals(cooccurs.get(0).size(), cooccurs.get(i).size());
+      for (int j = 0; j < cooccurs.get(0).size(); j++) {
+        assertEquals(cooccurs.get(0).get(j).getTerm(), cooccurs.get(i).get(j).getTerm());
+        assertEquals(cooccurs.get(0).get(j).getTermFreq(), cooccurs.get(i).get(j).getTermFreq());
+      }
+      //counts would grow if merges changed the cached leaves
+      assertEquals(targets.get(0).size(), targets.get(i).size());
+      for (int j = 0; j < targets.get(0).size(); j++) {
+        assertEquals(targets.get(0).get(j).getTerm(), targets.get(i).get(j).getTerm());
+        assertEquals(targets.get(0).get(j).getTermFreq(), targets.get(i).get(j).getTermFreq());
+        assertEquals(targets.get(0).get(j).getDocFreq(), targets.get(i).get(j).getDocFreq());
+      }
+    }
+    reader.close();
+    assertEquals(0, cache.size());
+    directory.close();
+  }
+
+  @Test
+  public void testGramCounter() throws Exception {
+    String[] vocab = new String[]{"a", "b", "c", "d",
+        ConcordanceArrayWindow.STOP_WORD, ConcordanceArrayWindow.FIELD_SEPARATOR};
+    Grammer[] grammers = new Grammer[]{
+        new NGrammer(1, 3),
+        new WGrammer(1, 3, FIELD, new EmptyTokenBlackList(), false),
+        new WGrammer(2, 2, FIELD, new EmptyTokenBlackList(), true)
+    };
+    for (Grammer grammer : grammers) {
+      GramCounter counter = new GramCounter();
+      Map<String, Integer> expected = new HashMap<>();
+      for (int i = 0; i < 50; i++) {
+        List<String> strings = new ArrayList<>();
+        int len = random().nextInt(10);
+        for (int j = 0; j < len; j++) {
+          strings.add(vocab[random().nextInt(vocab.length)]);
+        }
+        for (String gram : grammer.getGrams(strings, " ")) {
+          Integer cnt = expected.get(gram);
+          expected.put(gram, (cnt == null) ? 1 : cnt + 1);
+        }
+        counter.addGrams(strings, grammer);
+      }
+      Map<String, Integer> actual = new HashMap<>();
+      for (int ord = 0; ord < counter.size(); ord++) {
+        if (counter.getCount(ord) > 0) {
+          assertNull(actual.put(counter.getGram(ord, " "), counter.getCount(ord)));
+        }
+      }
+      assertEquals(expected, actual);
+    }
+  }
+
+  public void testSpaceSavingCounter() throws Exception {
+    //skewed so that some grams are much more common than others
+    String[] vocab = new String[]{"a", "a", "a", "a", "b", "b", "c", "d", "e", "f",
+        "g", "h", ConcordanceArrayWindow.STOP_WORD};
+    Grammer grammer = new NGrammer(1, 2);
+    int capacity = 8;
+    SpaceSavingCounter merged = new SpaceSavingCounter(capacity, " ");
+    Map<String, Integer> mergedExpected = new HashMap<>();
+    for (int c = 0; c < 3; c++) {
+      SpaceSavingCounter counter = new SpaceSavingCounter(capacity, " ");
+      Map<String, Integer> expected = new HashMap<>();
+      for (int i = 0; i < 100; i++) {
+        List<String> strings = new ArrayList<>();
+        int len = random().nextInt(6);
+        for (int j = 0; j < len; j++) {
+          strings.add(vocab[random().nextInt(vocab.length)]);
+        }
+        for (String gram : grammer.getGrams(strings, " ")) {
+          Integer cnt = expected.get(gram);
+          expected.put(gram, (cnt == null) ? 1 : cnt + 1);
+          cnt = mergedExpected.get(gram);
+          mergedExpected.put(gram, (cnt == null) ? 1 : cnt + 1);
+        }
+        counter.addGrams(strings, grammer);
+      }
+      assertSpaceSavingBounds(expected, counter);
+      merged.merge(counter);
+      assertSpaceSavingBounds(mergedExpected, merged);
+    }
+
+    //with enough capacity, the counts are exact
+    SpaceSavingCounter exact = new SpaceSavingCounter(1000, " ");
+    exact.merge(merged);
+    assertEquals(merged.size(), exact.size());
+    assertEquals(0, exact.getMinCount());
+    assertEquals(merged.getTotal(), exact.getTotal());
+  }
+
+  private void assertSpaceSavingBounds(Map<String, Integer> expected,
+                                       SpaceSavingCounter counter) {
+    long total = 0;
+    for (int cnt : expected.values()) {
+      total += cnt;
+    }
+    assertEquals(total, counter.getTotal());
+    assertTrue(counter.size() <= counter.getCapacity());
+    Set<String> tracked = new HashSet<>();
+    for (int i = 0; i < counter.size(); i++) {
+      String gram = counter.getGram(i);
+      assertTrue(tracked.add(gram));
+      int trueCount = expected.containsKey(gram) ? expected.get(gram) : 0;
+      assertTrue(gram, counter.getCount(i) >= trueCount);
+      assertTrue(gram, counter.getCount(i) - counter.getError(i) <= trueCount);
+    }
+    for (Map.Entry<String, Integer> e : expected.entrySet()) {
+      if (e.getValue() > counter.getMinCount()) {
+        assertTrue(e.getKey(), tracked.contains(e.getKey()));
+      }
+    }
+  }
 }
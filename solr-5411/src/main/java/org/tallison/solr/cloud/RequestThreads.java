@@ -20,19 +20,28 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-/*
- * TODO: use ExecutorCompletionService instead if you can check hitmax and increment results
+/**
+ * Workers are run through an {@link ExecutorCompletionService} so that
+ * the coordinator can block in {@link #take(long, TimeUnit)} until the next
+ * shard finishes and merge its results as they come in.
  */
 public class RequestThreads<P> extends ArrayList<RequestWorker> implements ExecutorService {
   private static final long serialVersionUID = 7779485646159905867L;
   protected final ExecutorService exe;
+  protected final CompletionService<RequestWorker> completed;
+  //false if the executor is shared, e.g. a ShardRequestPool's
+  protected final boolean ownsExecutor;
+  protected final List<Future<RequestWorker>> futures = new ArrayList<>();
+  protected int pending = 0;
 
   /**
    * This may not be the best place for a general-purpose configuration structure,
@@ -40,22 +49,39 @@ public class RequestThreads<P> extends ArrayList<RequestWorker> implements Execu
    * with different types of parameters
    */
   protected P metadata;
-  protected int currentIdx = 0;
-  protected int i = 0;  // :D
 
   public RequestThreads(ExecutorService service) {
-    this.exe = service;
+    this(service, true);
   }
   public RequestThreads(ExecutorService service, P meta) {
-    this.exe = service;
+    this(service);
     this.metadata = meta;
   }
 
+  /**
+   * @param service      executor to run the workers
+   * @param ownsExecutor if false, the executor is shared and is never shut down
+   *                     by this object; only this object's workers are cancelled
+   */
+  public RequestThreads(ExecutorService service, boolean ownsExecutor) {
+    this.exe = service;
+    this.completed = new ExecutorCompletionService<>(service);
+    this.ownsExecutor = ownsExecutor;
+  }
+
   public static <T> RequestThreads<T> newFixedThreadPool(int size) {
     ExecutorService exe = Executors.newFixedThreadPool(size);
     return new RequestThreads<T>(exe);
   }
 
+  /**
+   * @param pool shared pool
+   * @return request threads that run on the pool's executor
+   */
+  public static <T> RequestThreads<T> newPooled(ShardRequestPool pool) {
+    return new RequestThreads<T>(pool.getExecutor(), false);
+  }
+
   public P getMetadata() {
     return metadata;
   }
@@ -107,12 +133,24 @@ public class RequestThreads<P> extends ArrayList<RequestWorker> implements Execu
 
   @Override
   public void shutdown() {
-    exe.shutdown();
+    if (ownsExecutor) {
+      exe.shutdown();
+    }
   }
 
+  /**
+   * Cancels the workers that are still running.  The executor itself is
+   * only shut down if it isn't shared.
+   */
   @Override
   public List<Runnable> shutdownNow() {
-    return exe.shutdownNow();
+    for (Future<RequestWorker> f : futures) {
+      f.cancel(true);
+    }
+    if (ownsExecutor) {
+      return exe.shutdownNow();
+    }
+    return new ArrayList<>();
   }
 
   @Override
@@ -131,31 +169,50 @@ public class RequestThreads<P> extends ArrayList<RequestWorker> implements Execu
   }
 
   public void seal() {
-    exe.shutdown();
+    shutdown();
   }
 
 
   public void addExecute(RequestWorker req) {
     super.add(req);
-    exe.execute(req);
+    futures.add(completed.submit(req, req));
+    pending++;
   }
 
-  public boolean empty() {
-    return this.size() == 0;
+  /**
+   * @return number of workers that have not yet been returned by {@link #take(long, TimeUnit)}
+   */
+  public int getPending() {
+    return pending;
   }
 
-  public RequestWorker next() {
-    RequestWorker worker = null;
-    if (size() > 0) {
-      currentIdx = (++i % (this.size()));
-      worker = this.get(currentIdx);
+  /**
+   * Blocks until the next worker finishes.
+   *
+   * @param timeout maximum time to wait
+   * @param unit    unit of timeout
+   * @return the worker that finished, or null if there are no pending workers
+   * or if none finished before the timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public RequestWorker take(long timeout, TimeUnit unit) throws InterruptedException {
+    if (pending == 0) {
+      return null;
+    }
+    Future<RequestWorker> f = completed.poll(timeout, unit);
+    if (f == null) {
+      return null;
+    }
+    pending--;
+    try {
+      return f.get();
+    } catch (ExecutionException e) {
+      //RequestWorker.run doesn't throw checked exceptions
+      throw new RuntimeException(e.getCause());
     }
-
-    return worker;
   }
 
-  public void removeLast() {
-    if (size() > currentIdx)
-      this.remove(currentIdx);
+  public boolean empty() {
+    return this.size() == 0;
   }
 }
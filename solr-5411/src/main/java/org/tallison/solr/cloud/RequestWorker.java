@@ -27,9 +27,12 @@ import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class RequestWorker extends QueryRequest implements Runnable {
   private static final long serialVersionUID = -670352553424658631L;
+  private static final Logger log = LoggerFactory.getLogger(RequestWorker.class);
 
 
   private final String requestUrl;
@@ -38,6 +41,8 @@ public class RequestWorker extends QueryRequest implements Runnable {
   @SuppressWarnings("rawtypes")
   private AtomicReference<NamedList> results;
   private SolrServer solrServer;
+  //false if the server's client is shared and its settings must not be changed
+  private final boolean ownsServer;
   private String name;
 
   public RequestWorker(String url, String handlerPath, SolrParams params) {
@@ -48,6 +53,24 @@ public class RequestWorker extends QueryRequest implements Runnable {
     handler = handlerPath;
     results = new AtomicReference<>();
     solrServer = new HttpSolrServer(requestUrl);
+    ownsServer = true;
+  }
+
+  /**
+   * @param server      server to use, e.g. from a {@link ShardRequestPool}
+   * @param url         url of the shard
+   * @param handlerPath path of the request handler
+   * @param params      request params
+   */
+  public RequestWorker(SolrServer server, String url, String handlerPath, SolrParams params) {
+    super(params);
+    if (handlerPath.charAt(0) != '/') handlerPath = "/" + handlerPath;
+    super.setPath(handlerPath);
+    requestUrl = url;
+    handler = handlerPath;
+    results = new AtomicReference<>();
+    solrServer = server;
+    ownsServer = false;
   }
 
   public RequestWorker(ZkController zk, String handlerPath, SolrParams params) throws MalformedURLException {
@@ -58,6 +81,7 @@ public class RequestWorker extends QueryRequest implements Runnable {
     handler = handlerPath;
     results = new AtomicReference<>();
     solrServer = new CloudSolrServer(zk.getZkServerAddress());
+    ownsServer = true;
   }
 
   public Boolean isRunning() {
@@ -73,6 +97,26 @@ public class RequestWorker extends QueryRequest implements Runnable {
     return this;
   }
 
+  /**
+   * Sets the connection and socket timeouts so that a shard that stops
+   * responding doesn't hold on to its thread after the coordinator
+   * has given up on it.
+   *
+   * This is a no-op for a shared server, because changing its timeouts would
+   * change them for every request; get a server with the request's timeout from
+   * {@link ShardRequestPool#getServer(String, int)} instead.
+   *
+   * @param timeoutMillis timeout in milliseconds
+   * @return this
+   */
+  public RequestWorker setTimeout(int timeoutMillis) {
+    if (ownsServer && solrServer instanceof HttpSolrServer) {
+      ((HttpSolrServer) solrServer).setConnectionTimeout(timeoutMillis);
+      ((HttpSolrServer) solrServer).setSoTimeout(timeoutMillis);
+    }
+    return this;
+  }
+
   public String getURL() {
     return requestUrl;
   }
@@ -85,8 +129,10 @@ public class RequestWorker extends QueryRequest implements Runnable {
 
     try {
       NamedList nl = solrServer.request(this);
-      for (int i = 0; i < nl.size(); i++) {
-        System.out.println("RETURNED FROM SERVER: " + getURL() + " : " + nl.getName(i) + " ; " + nl.getVal(i));
+      if (log.isDebugEnabled()) {
+        for (int i = 0; i < nl.size(); i++) {
+          log.debug("returned from server: {} : {} ; {}", getURL(), nl.getName(i), nl.getVal(i));
+        }
       }
       results.set(nl);
     } catch (SolrServerException e) {
@@ -94,7 +140,9 @@ public class RequestWorker extends QueryRequest implements Runnable {
     } catch (IOException e) {
       e.printStackTrace();
     } finally {
-      solrServer.shutdown();
+      if (ownsServer) {
+        solrServer.shutdown();
+      }
     }
 
     synchronized (mbIsRunning) {
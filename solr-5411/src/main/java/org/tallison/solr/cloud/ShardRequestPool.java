@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.solr.cloud;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+
+/**
+ * Core-scoped HTTP client and executor shared by all of the concordance
+ * and cooccurrence fan-outs on a core.
+ * <p>
+ * The client pools keep-alive connections, and the number of connections
+ * per host bounds the number of concurrent requests to a single shard;
+ * further requests to that shard wait for a connection.
+ * <p>
+ * Each fan-out should get its servers from {@link #getServer(String, int)}
+ * with its own shard timeout, so that a shard that stops responding
+ * only holds on to a worker thread until that request's timeout rather
+ * than until the pool's socket timeout.
+ * <p>
+ * The pool is closed when its core closes.
+ */
+public class ShardRequestPool {
+
+  public static final int DEFAULT_MAX_CONNECTIONS = 128;
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+  public static final int DEFAULT_MAX_THREADS = 64;
+  public static final int DEFAULT_CONNECTION_TIMEOUT_MILLIS = 15000;
+  public static final int DEFAULT_SO_TIMEOUT_MILLIS = 60000;
+
+  private static final Map<SolrCore, ShardRequestPool> POOLS = new HashMap<>();
+
+  private final HttpClient httpClient;
+  private final int connectionTimeout;
+  private final int soTimeout;
+  private final ThreadPoolExecutor executor;
+  //clients share httpClient's connections, keyed by their timeout
+  private final ConcurrentHashMap<Integer, HttpClient> clients = new ConcurrentHashMap<>();
+  //keyed by timeout and url
+  private final ConcurrentHashMap<String, HttpSolrServer> servers = new ConcurrentHashMap<>();
+
+  /**
+   * @param core core
+   * @return the pool for this core, created on first use
+   */
+  public static ShardRequestPool getInstance(SolrCore core) {
+    synchronized (POOLS) {
+      ShardRequestPool pool = POOLS.get(core);
+      if (pool == null) {
+        pool = new ShardRequestPool();
+        POOLS.put(core, pool);
+        core.addCloseHook(new CloseHook() {
+          @Override
+          public void preClose(SolrCore core) {
+            ShardRequestPool closing;
+            synchronized (POOLS) {
+              closing = POOLS.remove(core);
+            }
+            if (closing != null) {
+              closing.close();
+            }
+          }
+
+          @Override
+          public void postClose(SolrCore core) {
+            //no-op
+          }
+        });
+      }
+      return pool;
+    }
+  }
+
+  public ShardRequestPool() {
+    this(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_THREADS,
+        DEFAULT_CONNECTION_TIMEOUT_MILLIS, DEFAULT_SO_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param maxConnections        maximum number of pooled connections
+   * @param maxConnectionsPerHost maximum number of connections, and therefore of
+   *                              concurrent requests, to a single shard
+   * @param maxThreads            maximum number of worker threads
+   * @param connectionTimeout     connection timeout in milliseconds
+   * @param soTimeout             socket timeout in milliseconds
+   */
+  public ShardRequestPool(int maxConnections, int maxConnectionsPerHost, int maxThreads,
+                          int connectionTimeout, int soTimeout) {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, maxConnections);
+    params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, maxConnectionsPerHost);
+    params.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, connectionTimeout);
+    params.set(HttpClientUtil.PROP_SO_TIMEOUT, soTimeout);
+    params.set(HttpClientUtil.PROP_FOLLOW_REDIRECTS, false);
+    httpClient = HttpClientUtil.createClient(params);
+    this.connectionTimeout = connectionTimeout;
+    this.soTimeout = soTimeout;
+
+    executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new DefaultSolrThreadFactory("concordanceShardRequest"));
+    //don't hold on to idle threads
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @param url           base url of the shard
+   * @param timeoutMillis timeout in milliseconds; the pool's
+   *                      own timeouts are used if they are shorter
+   * @return a server for the shard.  Servers are cached per url and timeout,
+   * and their clients share the pool's connections.  It is safe to call
+   * shutdown() on it; that doesn't close the shared connections.
+   */
+  public HttpSolrServer getServer(String url, int timeoutMillis) {
+    int timeout = Math.min(soTimeout, timeoutMillis);
+    String key = timeout + "|" + url;
+    HttpSolrServer server = servers.get(key);
+    if (server == null) {
+      HttpSolrServer tmp = new HttpSolrServer(url, getClient(timeout));
+      server = servers.putIfAbsent(key, tmp);
+      if (server == null) {
+        server = tmp;
+      }
+    }
+    return server;
+  }
+
+  private HttpClient getClient(int timeout) {
+    HttpClient client = clients.get(timeout);
+    if (client == null) {
+      ModifiableSolrParams params = new ModifiableSolrParams();
+      params.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, Math.min(connectionTimeout, timeout));
+      params.set(HttpClientUtil.PROP_SO_TIMEOUT, timeout);
+      params.set(HttpClientUtil.PROP_FOLLOW_REDIRECTS, false);
+      HttpClient tmp = HttpClientUtil.createClient(params, httpClient.getConnectionManager());
+      client = clients.putIfAbsent(timeout, tmp);
+      if (client == null) {
+        client = tmp;
+      }
+    }
+    return client;
+  }
+
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  public void close() {
+    executor.shutdownNow();
+    httpClient.getConnectionManager().shutdown();
+    servers.clear();
+    clients.clear();
+  }
+}
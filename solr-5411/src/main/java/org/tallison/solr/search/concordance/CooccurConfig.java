@@ -34,6 +34,7 @@ public class CooccurConfig {
   private int maxNGram;
   private int minTermFreq;
   private int numResults;
+  private int maxTrackedGrams;
 
   public CooccurConfig(String field) {
     this.field = field;
@@ -126,4 +127,12 @@ public class CooccurConfig {
   public void setNumResults(int numResults) {
     this.numResults = numResults;
   }
+
+  public int getMaxTrackedGrams() {
+    return maxTrackedGrams;
+  }
+
+  public void setMaxTrackedGrams(int maxTrackedGrams) {
+    this.maxTrackedGrams = maxTrackedGrams;
+  }
 }
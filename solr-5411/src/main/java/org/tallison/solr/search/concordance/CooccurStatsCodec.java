@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.solr.search.concordance;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.lucene.corpus.stats.ApproximateTermIDF;
+import org.apache.lucene.corpus.stats.TermIDF;
+
+/**
+ * Compact binary encoding of a shard's cooccurrence results.
+ * <p>
+ * Entries are sorted by the UTF-8 bytes of their terms so that the
+ * coordinator can merge the shards' payloads as streams.  Each entry is:
+ * <ul>
+ * <li>vint length of the prefix shared with the previous term</li>
+ * <li>vint length of the suffix, followed by the suffix's UTF-8 bytes</li>
+ * <li>vlong tf</li>
+ * <li>vlong df</li>
+ * <li>vlong maximum overestimate of the tf, if the payload has errors</li>
+ * <li>8 bytes of the tfidf as a double</li>
+ * </ul>
+ * The entries are preceded by a vint count and a vint of flags.  If the
+ * tfs are approximate ({@link #HAS_ERRORS}), the flags are followed by
+ * a vlong upper bound on the tf of any term that is not in the payload.
+ */
+public final class CooccurStatsCodec {
+
+  /**
+   * Flag for payloads whose term frequencies are approximate
+   */
+  static final int HAS_ERRORS = 1;
+
+  private CooccurStatsCodec() {
+  }
+
+  public static byte[] encode(List<TermIDF> results) {
+    return encode(results, 0);
+  }
+
+  /**
+   * @param results           results to encode; the tf errors of
+   *                          {@link ApproximateTermIDF}s are included
+   * @param maxTermFreqError  upper bound on the tf of any term that is
+   *                          not in the results, 0 if the results are exact
+   */
+  public static byte[] encode(List<TermIDF> results, long maxTermFreqError) {
+    boolean hasErrors = maxTermFreqError > 0;
+    for (int i = 0; i < results.size() && !hasErrors; i++) {
+      hasErrors = results.get(i) instanceof ApproximateTermIDF;
+    }
+    final List<byte[]> terms = new ArrayList<>(results.size());
+    List<Integer> idxs = new ArrayList<>(results.size());
+    for (int i = 0; i < results.size(); i++) {
+      terms.add(results.get(i).getTerm().getBytes(StandardCharsets.UTF_8));
+      idxs.add(i);
+    }
+    Collections.sort(idxs, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return compareBytes(terms.get(a), terms.get(b));
+      }
+    });
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(16 * results.size() + 5);
+    writeVLong(out, results.size());
+    writeVLong(out, (hasErrors) ? HAS_ERRORS : 0);
+    if (hasErrors) {
+      writeVLong(out, maxTermFreqError);
+    }
+    byte[] last = new byte[0];
+    for (int idx : idxs) {
+      TermIDF t = results.get(idx);
+      byte[] term = terms.get(idx);
+      int prefix = 0;
+      int max = Math.min(last.length, term.length);
+      while (prefix < max && last[prefix] == term[prefix]) {
+        prefix++;
+      }
+      writeVLong(out, prefix);
+      writeVLong(out, term.length - prefix);
+      out.write(term, prefix, term.length - prefix);
+      writeVLong(out, t.getTermFreq());
+      writeVLong(out, t.getDocFreq());
+      if (hasErrors) {
+        writeVLong(out, (t instanceof ApproximateTermIDF) ?
+            ((ApproximateTermIDF) t).getTermFreqError() : 0);
+      }
+      long bits = Double.doubleToLongBits(t.getTFIDF());
+      for (int i = 56; i >= 0; i -= 8) {
+        out.write((int) (bits >>> i));
+      }
+      last = term;
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Unsigned lexicographic comparison, i.e. unicode code point order
+   * for UTF-8
+   */
+  static int compareBytes(byte[] a, byte[] b) {
+    int len = Math.min(a.length, b.length);
+    for (int i = 0; i < len; i++) {
+      int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  private static void writeVLong(ByteArrayOutputStream out, long v) {
+    while ((v & ~0x7FL) != 0L) {
+      out.write((int) ((v & 0x7FL) | 0x80L));
+      v >>>= 7;
+    }
+    out.write((int) v);
+  }
+
+  /**
+   * Iterates the entries of an encoded payload in term order.
+   */
+  public static class Reader {
+    private final byte[] bytes;
+    private int pos = 0;
+    private long remaining;
+    private final boolean hasErrors;
+    private final long maxTermFreqError;
+    private byte[] term = new byte[16];
+    private int termLength = 0;
+    private long tf;
+    private long df;
+    private long tfError;
+    private double tfidf;
+
+    public Reader(byte[] bytes) {
+      this.bytes = bytes;
+      this.remaining = readVLong();
+      this.hasErrors = (readVLong() & HAS_ERRORS) != 0;
+      this.maxTermFreqError = (hasErrors) ? readVLong() : 0;
+    }
+
+    /**
+     * @return whether there was another entry
+     */
+    public boolean next() {
+      if (remaining == 0) {
+        return false;
+      }
+      remaining--;
+      int prefix = (int) readVLong();
+      int suffix = (int) readVLong();
+      termLength = prefix + suffix;
+      if (term.length < termLength) {
+        byte[] tmp = new byte[Math.max(termLength, term.length * 2)];
+        System.arraycopy(term, 0, tmp, 0, prefix);
+        term = tmp;
+      }
+      System.arraycopy(bytes, pos, term, prefix, suffix);
+      pos += suffix;
+      tf = readVLong();
+      df = readVLong();
+      tfError = (hasErrors) ? readVLong() : 0;
+      long bits = 0;
+      for (int i = 0; i < 8; i++) {
+        bits = (bits << 8) | (bytes[pos++] & 0xffL);
+      }
+      tfidf = Double.longBitsToDouble(bits);
+      return true;
+    }
+
+    /**
+     * Compares the current terms of two readers.
+     */
+    public int compareTerm(Reader other) {
+      int len = Math.min(termLength, other.termLength);
+      for (int i = 0; i < len; i++) {
+        int cmp = (term[i] & 0xff) - (other.term[i] & 0xff);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return termLength - other.termLength;
+    }
+
+    public String getTerm() {
+      return new String(term, 0, termLength, StandardCharsets.UTF_8);
+    }
+
+    public long getTermFreq() {
+      return tf;
+    }
+
+    public long getDocFreq() {
+      return df;
+    }
+
+    public double getTFIDF() {
+      return tfidf;
+    }
+
+    /**
+     * @return maximum overestimate of the current term's tf
+     */
+    public long getTermFreqError() {
+      return tfError;
+    }
+
+    /**
+     * @return upper bound on the tf of any term that is not in this payload
+     */
+    public long getMaxTermFreqError() {
+      return maxTermFreqError;
+    }
+
+    private long readVLong() {
+      long v = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = bytes[pos++];
+        v |= (b & 0x7FL) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return v;
+    }
+  }
+}
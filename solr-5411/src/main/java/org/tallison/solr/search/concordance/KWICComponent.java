@@ -118,7 +118,8 @@ public class KWICComponent extends SearchComponent implements SolrCoreAware {
       }
 
       if (!isLocal) {
-        results = KWICRequestHandler.spinWait(requestPump, results);
+        results = KWICRequestHandler.waitForResults(requestPump, results,
+            SolrConcordanceBase.getShardTimeout(params));
       }
 
       rb.rsp.add(KWICRequestHandler.NODE, results.toNamedList());
@@ -16,24 +16,31 @@
  */
 package org.tallison.solr.search.concordance;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.concordance.classic.AbstractConcordanceWindowCollector;
+import org.apache.lucene.search.concordance.classic.ConcordanceCursor;
 import org.apache.lucene.search.concordance.classic.ConcordanceSearcher;
 import org.apache.lucene.search.concordance.classic.ConcordanceSortOrder;
 import org.apache.lucene.search.concordance.classic.DocMetadataExtractor;
 import org.apache.lucene.search.concordance.classic.WindowBuilder;
 import org.apache.lucene.search.concordance.classic.impl.ConcordanceWindowCollector;
+import org.apache.lucene.search.concordance.classic.impl.TopKConcordanceWindowCollector;
 import org.apache.lucene.search.concordance.classic.impl.DefaultSortKeyBuilder;
-import org.apache.lucene.search.concordance.classic.impl.FieldBasedDocIdBuilder;
-import org.apache.lucene.search.concordance.classic.impl.SimpleDocMetadataExtractor;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.cloud.RequestThreads;
 import org.apache.solr.cloud.RequestWorker;
+import org.apache.solr.cloud.ShardRequestPool;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
@@ -65,6 +72,7 @@ import org.apache.solr.search.QParser;
  * <str name="tokensAfter">42</str>
  * <str name="tokensBefore">42</str>
  * <str name="sortOrder">TARGET_PRE</str> //TODO: add options here: TARGET_POST, PRE, POST
+ * <str name="cursor">nextCursor from the previous page</str> //not for distributed requests
  * <p>
  * -->
  * </lst>
@@ -86,6 +94,28 @@ public class KWICRequestHandler extends SolrConcordanceBase {
    */
   public final static int MAX_THREADS = 25;
 
+  /**
+   * Each shard is asked for ceil(maxWindows * ratio / numShards) + count windows,
+   * capped at maxWindows, cf. facet.overrequest.  A shard that fills that quota
+   * is asked again for maxWindows if its missing windows could change the
+   * results, see {@link Results#getShardsToRefine()}.
+   */
+  public static final String OVER_REQUEST_RATIO = "overRequestRatio";
+  public static final String OVER_REQUEST_COUNT = "overRequestCount";
+  public static final float DEFAULT_OVER_REQUEST_RATIO = 1.5f;
+  public static final int DEFAULT_OVER_REQUEST_COUNT = 10;
+  /**
+   * Set on shard requests when the windows have to come back in sort order
+   */
+  public static final String TOP_K = "topK";
+  /**
+   * Cursor for the next page of windows; the value is the {@link #NEXT_CURSOR}
+   * from the previous page.  Cursors hold Lucene doc ids, so they are only valid
+   * until the searcher is reopened, and they aren't supported for distributed requests.
+   */
+  public static final String CURSOR = "cursor";
+  public static final String NEXT_CURSOR = "nextCursor";
+
   ;
 
   public static NamedList doLocalSearch(SolrQueryRequest req) throws Exception {
@@ -101,9 +131,7 @@ public class KWICRequestHandler extends SolrConcordanceBase {
 
     String fl = params.get(CommonParams.FL);
     String solrUniqueKeyField = req.getSchema().getUniqueKeyField().getName();
-    DocMetadataExtractor metadataExtractor = (fl != null && fl.length() > 0) ?
-        new SimpleDocMetadataExtractor(fl.split(",")) :
-        new SimpleDocMetadataExtractor();
+    DocMetadataExtractor metadataExtractor = getMetadataExtractor(req.getSchema(), fl);
 
     Filter queryFilter = getFilterQuery(req);
 
@@ -131,63 +159,81 @@ public class KWICRequestHandler extends SolrConcordanceBase {
 
     WindowBuilder windowBuilder = new WindowBuilder(config.getTokensBefore(),
         config.getTokensAfter(), 100, new DefaultSortKeyBuilder(config.getSortOrder()),
-        metadataExtractor, new FieldBasedDocIdBuilder(solrUniqueKeyField));
+        metadataExtractor, getDocIdBuilder(req.getSchema()));
 
     ConcordanceSearcher searcher = new ConcordanceSearcher(windowBuilder);
+    searcher.setCache(getConcordanceCache(req));
+
+    ConcordanceCursor cursor = getCursor(params);
 
-    AbstractConcordanceWindowCollector collector = new ConcordanceWindowCollector(config.getMaxWindows());
+    //a shard has to return its best windows, not its first ones,
+    //for the coordinator's merge to be meaningful
+    boolean topK = params.getBool(TOP_K, false) ||
+        (config.getSortOrder() != ConcordanceSortOrder.NONE && isDistributed(req)) ||
+        (cursor != null && cursor.isSorted());
+    AbstractConcordanceWindowCollector collector = (topK) ?
+        new TopKConcordanceWindowCollector(config.getMaxWindows()) :
+        new ConcordanceWindowCollector(config.getMaxWindows());
 
-    searcher.search(reader, field, query, queryFilter, analyzer, collector);
+    searcher.searchAfter(cursor, reader, field, query, queryFilter, analyzer, collector);
 
     NamedList results = convertToList(solrUniqueKeyField, collector);
+    ConcordanceCursor nextCursor = collector.getCursor();
+    if (nextCursor != null) {
+      results.add(NEXT_CURSOR, nextCursor.encode());
+    }
 
     return results;
   }
 
-  public static Results spinWait(RequestThreads<ConcordanceConfig> threads) {
-    Results results = new Results(threads.getMetadata());
-    return spinWait(threads, results);
+  private static ConcordanceCursor getCursor(SolrParams params) {
+    String cursor = params.get(CURSOR);
+    if (cursor == null || cursor.length() == 0) {
+      return null;
+    }
+    try {
+      return ConcordanceCursor.decode(cursor);
+    } catch (IllegalArgumentException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e.getMessage(), e);
+    }
   }
 
-  ;
+  public static Results waitForResults(RequestThreads<ConcordanceConfig> threads, long timeoutMillis) {
+    Results results = new Results(threads.getMetadata());
+    return waitForResults(threads, results, timeoutMillis);
+  }
 
-  public static Results spinWait(RequestThreads<ConcordanceConfig> threads, Results results) {
+  /**
+   * Merges the results from each shard as soon as it finishes.  Shards that
+   * haven't responded within timeoutMillis of the call are cancelled, as are
+   * any that are still running once maxWindows has been hit.
+   */
+  public static Results waitForResults(RequestThreads<ConcordanceConfig> threads, Results results,
+                                       long timeoutMillis) {
     if (threads == null || threads.empty())
       return results;
 
-    while (!threads.isTerminated() && !threads.empty() && !results.hitMax) {
-      //TODO: should iterate completed and not last inserted (!Stack)
-      RequestWorker req = threads.next();
-      if (!req.isRunning()) {
-        NamedList nl = req.getResults();
-        if (nl != null) {
-          results.add(nl, req.getName());
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    try {
+      while (threads.getPending() > 0 && !results.isComplete()) {
+        RequestWorker req = threads.take(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (req == null) {
+          //timed out
+          break;
         }
-        threads.removeLast();
-      }
-    }
-
-    //force complete shutdown
-    threads.shutdownNow();
-
-    //if not enough hits, check any remaining threads that haven't been collected
-    //for(RequestWorker req : otherRequests)
-    while (!threads.empty() && !results.hitMax) {
-
-      RequestWorker req = threads.next();
-
-      if (req != null && !req.isRunning()) {
         NamedList nl = req.getResults();
         if (nl != null) {
           results.add(nl, req.getName());
         }
-        threads.removeLast();
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      //cancel whatever is still running
+      threads.shutdownNow();
+      threads.clear();
     }
 
-    threads.clear();
-    threads = null;
-
     return results;
   }
 
@@ -199,18 +245,39 @@ public class KWICRequestHandler extends SolrConcordanceBase {
   static public RequestThreads<ConcordanceConfig> initRequestPump(List<String> shards,
                                                                   SolrQueryRequest req, int maxThreads) {
     SolrParams params = req.getParams();
+    int maxWindows = buildConcordanceConfig(getField(params, req.getSchema().getDefaultSearchFieldName()),
+        req.getSchema().getUniqueKeyField().getName(), params).getMaxWindows();
+    //the local core is searched too
+    return initRequestPump(shards, req, maxThreads,
+        getShardQuota(maxWindows, shards.size() + 1, params));
+  }
+
+  /**
+   * @param windowsForEach number of windows to request from each shard
+   */
+  static public RequestThreads<ConcordanceConfig> initRequestPump(List<String> shards,
+                                                                  SolrQueryRequest req, int maxThreads,
+                                                                  int windowsForEach) {
+    SolrParams params = req.getParams();
     String field = SolrConcordanceBase.getField(params, req.getSchema().getDefaultSearchFieldName());
     String q = params.get(CommonParams.Q);
     ConcordanceConfig config = buildConcordanceConfig(field, req.getSchema().getUniqueKeyField().getName(), params);
 
 		/**/
-    RequestThreads<ConcordanceConfig> threads = RequestThreads.<ConcordanceConfig>newFixedThreadPool(Math.min(shards.size(), maxThreads))
+    //shared with all other fan-outs on this core
+    ShardRequestPool pool = ShardRequestPool.getInstance(req.getCore());
+    RequestThreads<ConcordanceConfig> threads = RequestThreads.<ConcordanceConfig>newPooled(pool)
         .setMetadata(config);
 
     String handler = getHandlerName(req, DefaultName, KWICRequestHandler.class);
-    int windowsForEach = config.getMaxWindows();//Math.round(config.getMaxWindows() / (float)shards.size()) ;
 
     ModifiableSolrParams p = getWorkerParams(field, q, params, windowsForEach);
+    if (config.getSortOrder() != ConcordanceSortOrder.NONE) {
+      p.set(TOP_K, true);
+    }
+
+    //so that a shard that stops responding doesn't keep a pool thread past the timeout
+    int timeout = (int) Math.min(Integer.MAX_VALUE, getShardTimeout(params));
 
     int i = 0;
     for (String node : shards) {
@@ -220,7 +287,7 @@ public class KWICRequestHandler extends SolrConcordanceBase {
       //could be https, no?
       String url = "http://" + node;
 
-      RequestWorker worker = new RequestWorker(url, handler, p).setName(node);
+      RequestWorker worker = new RequestWorker(pool.getServer(url, timeout), url, handler, p).setName(node);
       threads.addExecute(worker);
     }
     threads.seal();  //disallow future requests (& execute
@@ -228,6 +295,22 @@ public class KWICRequestHandler extends SolrConcordanceBase {
     return threads;
   }
 
+  /**
+   * @param maxWindows maximum number of windows to return overall
+   * @param numShards  number of shards, including the local core
+   * @param params     request params
+   * @return number of windows to request from each shard
+   */
+  static int getShardQuota(int maxWindows, int numShards, SolrParams params) {
+    if (numShards <= 1) {
+      return maxWindows;
+    }
+    float ratio = params.getFloat(OVER_REQUEST_RATIO, DEFAULT_OVER_REQUEST_RATIO);
+    int count = params.getInt(OVER_REQUEST_COUNT, DEFAULT_OVER_REQUEST_COUNT);
+    long quota = (long) Math.ceil(maxWindows * (double) ratio / numShards) + count;
+    return (int) Math.min(maxWindows, quota);
+  }
+
   private static ModifiableSolrParams getWorkerParams(String field, String q, SolrParams parent, Integer maxWindows) {
     ModifiableSolrParams params = new ModifiableSolrParams();
 
@@ -341,6 +424,10 @@ public class KWICRequestHandler extends SolrConcordanceBase {
     boolean isDistrib = isDistributed(req);
 
     if (isDistrib) {
+      if (req.getParams().get(CURSOR) != null) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+            CURSOR + " is not supported for distributed requests");
+      }
       doZooQuery(req, rsp);
     } else {
       doQuery(req, rsp);
@@ -356,15 +443,33 @@ public class KWICRequestHandler extends SolrConcordanceBase {
   private void doZooQuery(SolrQueryRequest req, SolrQueryResponse rsp) throws SolrServerException, Exception {
 
     List<String> shards = getShards(req, false);
+    long timeout = getShardTimeout(req.getParams());
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
 
-    RequestThreads<ConcordanceConfig> threads = initRequestPump(shards, req);
+    String field = getField(req.getParams(), req.getSchema().getDefaultSearchFieldName());
+    ConcordanceConfig config = buildConcordanceConfig(field,
+        req.getSchema().getUniqueKeyField().getName(), req.getParams());
+    //the local core is searched too
+    int quota = getShardQuota(config.getMaxWindows(), shards.size() + 1, req.getParams());
+    RequestThreads<ConcordanceConfig> threads = initRequestPump(shards, req, MAX_THREADS, quota);
 
     Results results = new Results(threads.getMetadata());
 
     NamedList nl = doLocalSearch(req);
-    results.add(nl, "local");
-
-    results = spinWait(threads, results);
+    //the local core is searched for all of the windows
+    results.add(nl, "local", results.maxWindows);
+
+    results.shardQuota = quota;
+    results = waitForResults(threads, results, timeout);
+
+    //ask the shards whose quota may have cut off windows for all of them
+    List<String> refine = results.getShardsToRefine();
+    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    if (refine.size() > 0 && remaining > 0) {
+      results.shardQuota = results.maxWindows;
+      results = waitForResults(initRequestPump(refine, req, MAX_THREADS, results.maxWindows),
+          results, remaining);
+    }
 
     rsp.add(NODE, results.toNamedList());
 
@@ -372,50 +477,155 @@ public class KWICRequestHandler extends SolrConcordanceBase {
 
   static class Results {
     int maxWindows = -1;
+    //if the windows are sorted, every shard has to be heard from
+    boolean sorted = false;
+    //number of windows that the shards being heard from were asked for
+    int shardQuota = -1;
     boolean hitMax = false;
     long numDocs = 0;
     int totalDocs = 0;
     int totalWindows = 0;
     int numWindows = 0;
-    NamedList windows = new SimpleOrderedMap<Object>();
+    //best windows so far, in sort order, never more than maxWindows
+    List<ShardWindow> windows = new ArrayList<>();
+    //the latest response from each shard, so that a refined response
+    //replaces the shard's first one
+    Map<String, ShardResult> shards = new LinkedHashMap<>();
     Results(int maxWindows) {
       this.maxWindows = maxWindows;
     }
 
     Results(ConcordanceConfig config) {
       this.maxWindows = config.getMaxWindows();
+      this.sorted = config.getSortOrder() != ConcordanceSortOrder.NONE;
+    }
+
+    /**
+     * @return whether there's no point in waiting for more shards
+     */
+    boolean isComplete() {
+      return hitMax && !sorted;
     }
 
     void add(NamedList nl, String extra) {
+      add(nl, extra, (shardQuota < 0) ? maxWindows : shardQuota);
+    }
+
+    /**
+     * @param quota number of windows the shard was asked for
+     */
+    void add(NamedList nl, String extra, int quota) {
       NamedList nlRS = (NamedList) nl.get(NODE);
 
       if (nlRS == null)
         nlRS = nl;
 
-      numDocs += getLong("numDocs", nlRS);
-      totalDocs += getInt("totalDocs", nlRS);
-      totalWindows += getInt("totalWindows", nlRS);
-      numWindows += getInt("numWindows", nlRS);
-
-      hitMax = numWindows >= maxWindows;
+      ShardResult shard = new ShardResult();
+      shard.quota = quota;
+      shard.hitMax = getBool("hitMax", nlRS);
+      shard.numDocs = getLong("numDocs", nlRS);
+      shard.totalDocs = getInt("totalDocs", nlRS);
+      shard.totalWindows = getInt("totalWindows", nlRS);
+      shard.numWindows = getInt("numWindows", nlRS);
 
       Object o = nlRS.get("windows");
       if (o != null) {
         NamedList nlWindows = (NamedList) o;
 
         List<NamedList> wins = nlWindows.getAll("window");
-
         for (NamedList nlWin : wins) {
           if (extra != null && extra.length() > 0)
             nlWin.add("source", extra);
+          shard.windows.add(new ShardWindow(nlWin));
+        }
+        //shards sort on the key only; make sure ties are in the same order here
+        Collections.sort(shard.windows);
+      }
+
+      String name = (extra == null) ? "shard" + shards.size() : extra;
+      ShardResult replaced = shards.put(name, shard);
+      if (replaced == null) {
+        addStats(shard);
+        windows = merge(windows, shard.windows, maxWindows);
+      } else {
+        //start over without the shard's first response
+        numDocs = 0;
+        totalDocs = 0;
+        totalWindows = 0;
+        numWindows = 0;
+        windows = new ArrayList<>();
+        for (ShardResult r : shards.values()) {
+          addStats(r);
+          windows = merge(windows, r.windows, maxWindows);
+        }
+      }
+      hitMax = numWindows >= maxWindows;
+    }
 
+    private void addStats(ShardResult shard) {
+      numDocs += shard.numDocs;
+      totalDocs += shard.totalDocs;
+      totalWindows += shard.totalWindows;
+      numWindows += shard.numWindows;
+    }
 
-          //TODO: if one wanted to sort this, they'd have to convert it to a class and then sort
-          //before returning
-          windows.add("window", nlWin);
+    /**
+     * A shard that filled a quota below maxWindows may have more windows.
+     * They matter if there are fewer than maxWindows windows overall or, if
+     * the windows are sorted, if they could sort ahead of the last window
+     * that is returned.  Windows that weren't returned sort at or after the
+     * shard's last one, and shards only sort on the key.
+     *
+     * @return names of the shards to ask again for maxWindows windows
+     */
+    List<String> getShardsToRefine() {
+      List<String> refine = new ArrayList<>();
+      for (Map.Entry<String, ShardResult> e : shards.entrySet()) {
+        if (isTruncated(e.getValue())) {
+          refine.add(e.getKey());
         }
       }
+      return refine;
+    }
 
+    private boolean isTruncated(ShardResult shard) {
+      if (!shard.hitMax || shard.quota >= maxWindows || shard.windows.size() == 0) {
+        return false;
+      }
+      if (windows.size() < maxWindows) {
+        return true;
+      }
+      if (!sorted) {
+        return false;
+      }
+      ShardWindow last = shard.windows.get(shard.windows.size() - 1);
+      return last.sortKey.compareTo(windows.get(windows.size() - 1).sortKey) <= 0;
+    }
+
+    /**
+     * @return whether a shard's quota may have cut off windows that
+     * belong in the results, e.g. because its refinement timed out
+     */
+    boolean isPartial() {
+      return getShardsToRefine().size() > 0;
+    }
+
+    /**
+     * Merges two sorted lists and stops as soon as there are maxWindows.
+     */
+    static List<ShardWindow> merge(List<ShardWindow> a, List<ShardWindow> b, int maxWindows) {
+      int size = (maxWindows < 0) ? a.size() + b.size() : Math.min(maxWindows, a.size() + b.size());
+      List<ShardWindow> merged = new ArrayList<>(size);
+      int i = 0;
+      int j = 0;
+      while (merged.size() < size) {
+        if (j >= b.size() || (i < a.size() && a.get(i).compareTo(b.get(j)) <= 0)) {
+          merged.add(a.get(i++));
+        } else {
+          merged.add(b.get(j++));
+        }
+      }
+      return merged;
     }
 
     int getInt(String name, NamedList nl) {
@@ -432,17 +642,73 @@ public class KWICRequestHandler extends SolrConcordanceBase {
       return 0;
     }
 
+    boolean getBool(String name, NamedList nl) {
+      Object o = nl.get(name);
+      if (o != null)
+        return (boolean) o;
+      return false;
+    }
+
     NamedList toNamedList() {
       NamedList nl = new SimpleOrderedMap<>();
       nl.add("hitMax", hitMax);
+      nl.add("partial", isPartial());
       nl.add("numDocs", numDocs);
       nl.add("totalDocs", totalDocs);
       nl.add("totalWindows", totalWindows);
-      nl.add("numWindows", numWindows);
+      nl.add("numWindows", windows.size());
 
-      nl.add("windows", windows);
+      NamedList nlWindows = new SimpleOrderedMap<Object>();
+      for (ShardWindow w : windows) {
+        nlWindows.add("window", w.nl);
+      }
+      nl.add("windows", nlWindows);
       return nl;
     }
   }
 
+  /**
+   * The stats and windows from one shard's response
+   */
+  static class ShardResult {
+    int quota;
+    boolean hitMax;
+    long numDocs;
+    int totalDocs;
+    int totalWindows;
+    int numWindows;
+    List<ShardWindow> windows = new ArrayList<>();
+  }
+
+  /**
+   * A window returned by a shard, ordered by its sort key and then by
+   * the start offset of its target, which is how DOC order breaks ties.
+   */
+  static class ShardWindow implements Comparable<ShardWindow> {
+    final NamedList nl;
+    final String sortKey;
+    final int targetStart;
+
+    ShardWindow(NamedList nl) {
+      this.nl = nl;
+      Object key = nl.get("sortKey");
+      this.sortKey = (key == null) ? "" : key.toString();
+      Object st = nl.get("targetStart");
+      if (st == null) {
+        //older shards only send the window's start
+        st = nl.get("start");
+      }
+      this.targetStart = (st == null) ? 0 : ((Number) st).intValue();
+    }
+
+    @Override
+    public int compareTo(ShardWindow other) {
+      int cmp = sortKey.compareTo(other.sortKey);
+      if (cmp == 0) {
+        cmp = Integer.compare(targetStart, other.targetStart);
+      }
+      return cmp;
+    }
+  }
+
 }
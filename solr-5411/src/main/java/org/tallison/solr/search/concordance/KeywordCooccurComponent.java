@@ -144,7 +144,8 @@ public class KeywordCooccurComponent extends SearchComponent implements SolrCore
         rb.rsp.getValues().remove(KeywordCooccurRankHandler.NODE);
 
       if (!isLocal)
-        results = KeywordCooccurRankHandler.spinWait(requestPump, results);
+        results = KeywordCooccurRankHandler.waitForResults(requestPump, results,
+            SolrConcordanceBase.getShardTimeout(params));
 
 
       rb.rsp.add(KeywordCooccurRankHandler.NODE, results.toNamedList());
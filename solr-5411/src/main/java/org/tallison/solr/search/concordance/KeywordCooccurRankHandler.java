@@ -16,18 +16,28 @@
  */
 package org.tallison.solr.search.concordance;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.corpus.stats.ApproximateTermIDF;
 import org.apache.lucene.corpus.stats.IDFCalc;
+import org.apache.lucene.corpus.stats.IDFIndexCalc;
 import org.apache.lucene.corpus.stats.TermIDF;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.Query;
@@ -35,10 +45,10 @@ import org.apache.lucene.search.concordance.charoffsets.TargetTokenNotFoundExcep
 import org.apache.lucene.search.concordance.classic.ConcordanceSortOrder;
 import org.apache.lucene.search.concordance.classic.DocIdBuilder;
 import org.apache.lucene.search.concordance.classic.DocMetadataExtractor;
-import org.apache.lucene.search.concordance.classic.impl.FieldBasedDocIdBuilder;
-import org.apache.lucene.search.concordance.classic.impl.SimpleDocMetadataExtractor;
+import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.cloud.RequestThreads;
 import org.apache.solr.cloud.RequestWorker;
+import org.apache.solr.cloud.ShardRequestPool;
 import org.apache.solr.cloud.ZkController;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
@@ -103,6 +113,38 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
    */
   public final static int MAX_THREADS = 25;
 
+  /**
+   * Set on shard requests so that shards return their results as a
+   * {@link CooccurStatsCodec} payload under "resultsBin"
+   */
+  public static final String BINARY_STATS = "binaryStats";
+
+  /**
+   * Distributed requests are two-phase by default: the first phase gathers
+   * the term frequencies of the candidate grams from every shard, and the
+   * second gathers the document frequencies of the candidates' tokens so
+   * that the candidates are ranked with global idfs.
+   */
+  public static final String TWO_PHASE = "twoPhase";
+  public static final String PHASE = "phase";
+  public static final String PHASE_TF = "tf";
+  public static final String PHASE_DF = "df";
+  public static final String DF_TERM = "dfTerm";
+  /**
+   * Maximum number of candidates, by term frequency, that a shard returns
+   * in the first phase.  Defaults to {@link #DEFAULT_CANDIDATES_PER_RESULT} * numResults.
+   */
+  public static final String SHARD_CANDIDATES = "shardCandidates";
+  public static final int DEFAULT_CANDIDATES_PER_RESULT = 10;
+
+  /**
+   * If &gt; 0, each shard counts at most this many grams, and the term
+   * frequencies are approximate.  Results then include "tfError", the
+   * maximum overcount of each tf, and "maxTFError", an upper bound on
+   * the tf of any gram that is missing from the results.
+   */
+  public static final String MAX_TRACKED_GRAMS = "maxTrackedGrams";
+
   ;
 
   static public RequestThreads<CooccurConfig> initRequestPump(List<String> shards, SolrQueryRequest req) {
@@ -111,6 +153,16 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
 
   static public RequestThreads<CooccurConfig> initRequestPump(List<String> shards,
                                                               SolrQueryRequest req, int maxThreads) {
+    return initRequestPump(shards, req, maxThreads, null);
+  }
+
+  /**
+   * @param extraParams params to add to each shard request, e.g. the phase;
+   *                    if not null, the requests are sent as POSTs
+   */
+  static public RequestThreads<CooccurConfig> initRequestPump(List<String> shards,
+                                                              SolrQueryRequest req, int maxThreads,
+                                                              SolrParams extraParams) {
 
     SolrParams params = req.getParams();
     String field = SolrConcordanceBase.getField(params, req.getSchema().getDefaultSearchFieldName());
@@ -118,13 +170,21 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
     CooccurConfig config = configureParams(field, params);
 
 		/**/
-    RequestThreads<CooccurConfig> threads = RequestThreads.<CooccurConfig>newFixedThreadPool(Math.min(shards.size(), maxThreads))
+    //shared with all other fan-outs on this core
+    ShardRequestPool pool = ShardRequestPool.getInstance(req.getCore());
+    RequestThreads<CooccurConfig> threads = RequestThreads.<CooccurConfig>newPooled(pool)
         .setMetadata(config);
 
     String handler = getHandlerName(req, DefaultName, KeywordCooccurRankHandler.class);
     int partial = Math.round(config.getMaxWindows() / (float) shards.size());
 
     ModifiableSolrParams p = getWorkerParams(field, q, params, partial);
+    if (extraParams != null) {
+      p.add(extraParams);
+    }
+
+    //so that a shard that stops responding doesn't keep a pool thread past the timeout
+    int timeout = (int) Math.min(Integer.MAX_VALUE, getShardTimeout(params));
 
     int i = 0;
     for (String node : shards) {
@@ -134,7 +194,11 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
       //could be https, no?
       String url = "http://" + node;
 
-      RequestWorker worker = new RequestWorker(url, handler, p).setName(node);
+      RequestWorker worker = new RequestWorker(pool.getServer(url, timeout), url, handler, p).setName(node);
+      if (extraParams != null) {
+        //the list of terms can be long
+        worker.setMethod(SolrRequest.METHOD.POST);
+      }
       threads.addExecute(worker);
     }
     threads.seal();  //disallow future requests (& execute
@@ -149,13 +213,16 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
   //xx
   public static NamedList doLocalSearch(Query filter, SolrQueryRequest req) throws Exception {
     SolrParams params = req.getParams();
+    if (PHASE_DF.equals(params.get(PHASE))) {
+      return doLocalDocFreqs(req);
+    }
+    //the minimum tf is applied to the global tfs
+    boolean tfPhase = PHASE_TF.equals(params.get(PHASE));
     String field = getField(params);
 
 
     String fl = params.get(CommonParams.FL);
-    DocMetadataExtractor metadataExtractor = (fl != null && fl.length() > 0) ?
-        new SimpleDocMetadataExtractor(fl.split(",")) :
-        new SimpleDocMetadataExtractor();
+    DocMetadataExtractor metadataExtractor = getMetadataExtractor(req.getSchema(), fl);
 
 
     CooccurConfig config = configureParams(field, params);
@@ -175,7 +242,7 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
     boolean allowFieldSeparators = false;
 
     Grammer grammer = new WGrammer(config.getMinNGram(), config.getMaxNGram(), allowFieldSeparators);
-    IDFCalc idfCalc = new IDFCalc(reader);
+    IDFIndexCalc idfCalc = new IDFIndexCalc(reader);
 
     CooccurVisitor visitor = new CooccurVisitor(field, config.getTokensBefore(),
         config.getTokensAfter()
@@ -184,12 +251,14 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
         , config.getMaxWindows()
         , allowDuplicates);
 
-    visitor.setMinTermFreq(config.getMinTermFreq());
+    visitor.setMinTermFreq((tfPhase) ? 1 : config.getMinTermFreq());
+    visitor.setMaxTrackedGrams(config.getMaxTrackedGrams());
 
     try {
       ConcordanceArrayWindowSearcher searcher = new ConcordanceArrayWindowSearcher();
+      searcher.setCache(getConcordanceCache(req));
       System.out.println("UNIQUE KEY FIELD: " + solrUniqueKeyField);
-      DocIdBuilder docIdBuilder = new FieldBasedDocIdBuilder(solrUniqueKeyField);
+      DocIdBuilder docIdBuilder = getDocIdBuilder(req.getSchema());
       System.out.println("QUERY: " + query.toString());
       searcher.search(reader, field, query, queryFilter, analyzer, visitor, docIdBuilder);
     } catch (IllegalArgumentException e) {
@@ -200,8 +269,38 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
       e.printStackTrace();
     }
 
+    if (tfPhase) {
+      int maxCandidates = params.getInt(SHARD_CANDIDATES,
+          DEFAULT_CANDIDATES_PER_RESULT * config.getNumResults());
+      List<TermIDF> candidates = getTopTermFreqs(visitor, maxCandidates);
+      long maxTFError = visitor.getMaxTermFreqError();
+      if (candidates.size() >= maxCandidates && maxCandidates > 0) {
+        //even if this shard's counts are exact, grams that didn't make
+        //the cut have at most the lowest tf that did
+        maxTFError = Math.max(maxTFError, candidates.get(candidates.size() - 1).getTermFreq());
+      }
+      NamedList results = new SimpleOrderedMap();
+      results.add("resultsBin", CooccurStatsCodec.encode(candidates, maxTFError));
+      results.add("maxTFError", maxTFError);
+      results.add("collectionSize", reader.numDocs());
+      results.add("numDocsVisited", visitor.getNumDocsVisited());
+      results.add("numWindowsVisited", visitor.getNumWindowsVisited());
+      results.add("numResults", candidates.size());
+      return results;
+    }
+
     List<TermIDF> overallResults = visitor.getResults();
-    NamedList results = toNamedList(overallResults);
+    long maxTFError = getMaxTermFreqError(visitor, overallResults);
+    NamedList results;
+    if (params.getBool(BINARY_STATS, false)) {
+      results = new SimpleOrderedMap();
+      results.add("resultsBin", CooccurStatsCodec.encode(overallResults, maxTFError));
+    } else {
+      results = toNamedList(overallResults);
+    }
+    if (visitor.isApproximate()) {
+      results.add("maxTFError", maxTFError);
+    }
     //needed for cloud computations, merging cores
 
     results.add("collectionSize", reader.numDocs());
@@ -213,6 +312,77 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
     return results;
   }
 
+  /**
+   * The results are ranked by tf-idf, not by tf, so a tracked gram that
+   * didn't make the cut can have a tf well above the sketch's minimum count.
+   *
+   * @param visitor  visitor
+   * @param returned results that are returned
+   * @return upper bound on the tf of any term that isn't returned
+   */
+  static long getMaxTermFreqError(CooccurVisitor visitor, List<TermIDF> returned) {
+    long maxTFError = visitor.getMaxTermFreqError();
+    if (!visitor.isApproximate()) {
+      return maxTFError;
+    }
+    Set<String> terms = new HashSet<>();
+    for (TermIDF t : returned) {
+      terms.add(t.getTerm());
+    }
+    for (Entry<String, Integer> e : visitor.getTermFreqs().entrySet()) {
+      if (e.getValue() > maxTFError && !terms.contains(e.getKey())) {
+        maxTFError = e.getValue();
+      }
+    }
+    return maxTFError;
+  }
+
+  /**
+   * @return the grams with the highest term frequencies, without idfs
+   */
+  static List<TermIDF> getTopTermFreqs(CooccurVisitor visitor, int maxCandidates) {
+    Map<String, Integer> errors = visitor.getTermFreqErrors();
+    List<Entry<String, Integer>> tfs = new ArrayList<>(visitor.getTermFreqs().entrySet());
+    Collections.sort(tfs, new Comparator<Entry<String, Integer>>() {
+      public int compare(Entry<String, Integer> a, Entry<String, Integer> b) {
+        int cmp = b.getValue().compareTo(a.getValue());
+        return (cmp != 0) ? cmp : a.getKey().compareTo(b.getKey());
+      }
+    });
+    List<TermIDF> ret = new ArrayList<>();
+    for (int i = 0; i < tfs.size() && i < maxCandidates; i++) {
+      Integer error = errors.get(tfs.get(i).getKey());
+      ret.add((error == null) ?
+          new TermIDF(tfs.get(i).getKey(), 0, tfs.get(i).getValue(), 0.0) :
+          new ApproximateTermIDF(tfs.get(i).getKey(), 0, tfs.get(i).getValue(), 0.0, error));
+    }
+    return ret;
+  }
+
+  /**
+   * Second phase of a two-phase request: the document frequencies of
+   * the requested terms
+   */
+  static NamedList doLocalDocFreqs(SolrQueryRequest req) throws IOException {
+    SolrParams params = req.getParams();
+    String field = getField(params);
+    IndexReader reader = req.getSearcher().getIndexReader();
+    List<TermIDF> dfs = new ArrayList<>();
+    String[] terms = params.getParams(DF_TERM);
+    if (terms != null) {
+      //one pass through each segment's terms instead of a seek per term
+      IDFIndexCalc idfCalc = new IDFIndexCalc(reader);
+      idfCalc.cacheDocFreqs(field, Arrays.asList(terms));
+      for (String t : terms) {
+        dfs.add(new TermIDF(t, idfCalc.docFreq(new Term(field, t)), 0, 0.0));
+      }
+    }
+    NamedList results = new SimpleOrderedMap();
+    results.add("resultsBin", CooccurStatsCodec.encode(dfs));
+    results.add("collectionSize", reader.numDocs());
+    return results;
+  }
+
   public static ModifiableSolrParams getWorkerParams(String field, String q, SolrParams parent, Integer maxWindows) {
     ModifiableSolrParams params = new ModifiableSolrParams();
 
@@ -221,6 +391,7 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
     params.set("maxWindows", maxWindows);
     params.set("lq", true); //flag to disallow recursive zoo queries
     params.set("rows", 0);
+    params.set(BINARY_STATS, true);
     setParam("fq", params, parent);
     setParam("anType", params, parent);
     setParam("numResults", params, parent);
@@ -228,6 +399,7 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
     setParam("maxNGram", params, parent);
     setParam("minTF", params, parent);
     setParam("minDF", params, parent);
+    setParam(MAX_TRACKED_GRAMS, params, parent);
 
     setParam("echoParams", params, parent);
     setParam("defType", params, parent);
@@ -244,49 +416,42 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
     return params;
   }
 
-  public static Results spinWait(RequestThreads<CooccurConfig> threads) {
+  public static Results waitForResults(RequestThreads<CooccurConfig> threads, long timeoutMillis) {
     Results results = new Results(threads.getMetadata());
-    return spinWait(threads, results);
+    return waitForResults(threads, results, timeoutMillis);
   }
 
-  public static Results spinWait(RequestThreads<CooccurConfig> threads, Results results) {
+  /**
+   * Merges the results from each shard as soon as it finishes.  Shards that
+   * haven't responded within timeoutMillis of the call are cancelled, as are
+   * any that are still running once maxWindows has been hit.
+   */
+  public static Results waitForResults(RequestThreads<CooccurConfig> threads, Results results,
+                                       long timeoutMillis) {
     if (threads == null || threads.empty())
       return results;
 
-    while (!threads.isTerminated() && !threads.empty() && !results.hitMax) {
-      RequestWorker req = threads.next();
-      if (!req.isRunning()) {
-        NamedList nl = req.getResults();
-        if (nl != null) {
-          results.add(nl, req.getName());
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    try {
+      while (threads.getPending() > 0 && !(results.hitMax && !results.waitForAll)) {
+        RequestWorker req = threads.take(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (req == null) {
+          //timed out
+          break;
         }
-        threads.removeLast();
-      }
-    }
-
-    //force complete shutdown
-    threads.shutdownNow();
-
-    //if not enough hits, check any remaining threads that haven't been collected
-    //for(RequestWorker req : otherRequests)
-    while (!threads.empty() && !results.hitMax) {
-
-      RequestWorker req = threads.next();
-
-      if (req != null && !req.isRunning()) {
         NamedList nl = req.getResults();
         if (nl != null) {
           results.add(nl, req.getName());
         }
-
-        threads.removeLast();
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      //cancel whatever is still running
+      threads.shutdownNow();
+      threads.clear();
     }
 
-
-    threads.clear();
-    threads = null;
-
     return results;
   }
 
@@ -396,6 +561,14 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
       }
     }
 
+    param = params.get(MAX_TRACKED_GRAMS);
+    if (param != null && param.length() > 0) {
+      try {
+        config.setMaxTrackedGrams(Integer.parseInt(param));
+      } catch (Exception e) {
+      }
+    }
+
     return config;
   }
 
@@ -417,6 +590,9 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
         nl.add("idf", result.getIDF());
 
         nl.add("df", result.getDocFreq());
+        if (result instanceof ApproximateTermIDF) {
+          nl.add("tfError", ((ApproximateTermIDF) result).getTermFreqError());
+        }
 
         nlResults.add("result", nl);
       }
@@ -537,6 +713,10 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
       shards.add(shard);
     }
     System.out.println("SHARDS SIZE: " + shards.size());
+    if (params.getBool(TWO_PHASE, true)) {
+      rsp.add(NODE, doTwoPhaseZooQuery(shards, req, config));
+      return;
+    }
     RequestThreads<CooccurConfig> threads = initRequestPump(shards, req);
 
     Results results = new Results(threads.getMetadata());
@@ -549,7 +729,7 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
 
     results.add(nl, "local");*/
 
-    results = spinWait(threads, results);
+    results = waitForResults(threads, results, getShardTimeout(req.getParams()));
 
     rsp.add(NODE, results.toNamedList());
 
@@ -569,16 +749,108 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
     return getHandlerName(req, DefaultName, this.getClass());
   }
 
+  /**
+   * First gathers the term frequencies of the candidates from all of the shards,
+   * then the document frequencies of the tokens in the candidates whose global
+   * tf is at least minTF.  The candidates are ranked by tf * the sum of their
+   * tokens' global idfs.
+   */
+  static NamedList doTwoPhaseZooQuery(List<String> shards, SolrQueryRequest req,
+                                      CooccurConfig config) {
+    long timeout = getShardTimeout(req.getParams());
+
+    ModifiableSolrParams tfParams = new ModifiableSolrParams();
+    tfParams.set(PHASE, PHASE_TF);
+    Results tfResults = new Results(config);
+    tfResults.waitForAll = true;
+    tfResults = waitForResults(initRequestPump(shards, req, MAX_THREADS, tfParams),
+        tfResults, timeout);
+
+    List<Keyword> candidates = new ArrayList<>();
+    Set<String> tokens = new TreeSet<>();
+    for (Keyword kw : tfResults.mergeKeywords()) {
+      if (kw.tf >= config.getMinTermFreq()) {
+        candidates.add(kw);
+        tokens.addAll(Arrays.asList(kw.term.trim().split(" +")));
+      }
+    }
+
+    ModifiableSolrParams dfParams = new ModifiableSolrParams();
+    dfParams.set(PHASE, PHASE_DF);
+    for (String token : tokens) {
+      dfParams.add(DF_TERM, token);
+    }
+    Results dfResults = new Results(config);
+    dfResults.waitForAll = true;
+    if (candidates.size() > 0) {
+      dfResults = waitForResults(initRequestPump(shards, req, MAX_THREADS, dfParams),
+          dfResults, timeout);
+    }
+    Map<String, Long> globalDFs = new HashMap<>();
+    for (Keyword kw : dfResults.mergeKeywords()) {
+      globalDFs.put(kw.term, kw.df);
+    }
+
+    IDFCalc idfCalc = new IDFCalc(dfResults.size);
+    //shards that truncated their candidates report an error even when
+    //their counts are exact
+    boolean approximate = config.getMaxTrackedGrams() > 0 || tfResults.maxTermFreqError > 0;
+    List<TermIDF> ranked = new ArrayList<>(candidates.size());
+    for (Keyword kw : candidates) {
+      double idf = 0.0;
+      for (String token : kw.term.trim().split(" +")) {
+        Long df = globalDFs.get(token);
+        idf += idfCalc.getIDF((df == null) ? 0 : df.intValue());
+      }
+      int estimatedDF = (int) Math.max(1, Math.round(idfCalc.unIDF(idf)));
+      ranked.add((approximate) ?
+          new ApproximateTermIDF(kw.term, estimatedDF, (int) kw.tf, idf, kw.tfError) :
+          new TermIDF(kw.term, estimatedDF, (int) kw.tf, idf));
+    }
+    Collections.sort(ranked);
+
+    NamedList nl = new SimpleOrderedMap<>();
+    nl.add("hitMax", tfResults.hitMax);
+    nl.add("numDocs", tfResults.numDocs);
+    nl.add("collectionSize", dfResults.size);
+    nl.add("numWindows", tfResults.numWindows);
+    int numResults = Math.min(ranked.size(), config.getNumResults());
+    nl.add("numResults", numResults);
+    if (approximate) {
+      nl.add("maxTFError", tfResults.maxTermFreqError);
+    }
+    NamedList<NamedList> nlResults = new SimpleOrderedMap<NamedList>();
+    for (TermIDF t : ranked.subList(0, numResults)) {
+      NamedList nlKw = new SimpleOrderedMap<Object>();
+      nlKw.add("term", t.getTerm());
+      nlKw.add("tfidf", t.getTFIDF());
+      nlKw.add("tf", t.getTermFreq());
+      nlKw.add("df", t.getDocFreq());
+      if (approximate) {
+        nlKw.add("tfError", ((ApproximateTermIDF) t).getTermFreqError());
+      }
+      nlResults.add("result", nlKw);
+    }
+    nl.add("results", nlResults);
+    return nl;
+  }
+
   public static class Results {
     long maxWindows = -1;
     int maxResults = -1;
     boolean hitMax = false;
     boolean maxTerms = false;
+    //if true, don't stop waiting for shards once maxWindows is hit
+    boolean waitForAll = false;
     int size = 0;
     long numDocs = 0;
     long numWindows = 0;
     int numResults = 0;
+    //sum of the shards' upper bounds on the tf of a term they didn't return
+    long maxTermFreqError = 0;
     HashMap<String, Keyword> keywords = new HashMap<String, Keyword>();
+    //binary payloads, merged as sorted streams in mergeKeywords
+    List<byte[]> payloads = new ArrayList<>();
     Results(CooccurConfig config) {
       this.maxWindows = config.getMaxWindows();
       this.maxResults = config.getNumResults();
@@ -600,10 +872,16 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
       size += getInt("collectionSize", nlRS);
       numResults += getInt("numResults", nlRS);
       numWindows += getLong("numWindows", nlRS);
+      maxTermFreqError += getLong("maxTFError", nlRS);
 
       hitMax = numWindows >= maxWindows;
       maxTerms = numResults >= maxResults;
 
+      Object bin = nlRS.get("resultsBin");
+      if (bin instanceof byte[]) {
+        payloads.add((byte[]) bin);
+      }
+
       Object o = nlRS.get("results");
       if (o != null) {
         NamedList nlRes = (NamedList) o;
@@ -621,12 +899,76 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
             kw.tf += tmp.tf;
             kw.df += tmp.df;
             kw.minDF += tmp.minDF;
+            kw.tfError += tmp.tfError;
           }
         }
       }
     }
 
 
+    /**
+     * K-way merge of the shards' payloads, summing the stats of a
+     * term that came back from more than one shard.  Results from shards
+     * that sent NamedLists are folded in from {@link #keywords}.
+     * <p>
+     * If the shards' tfs are approximate, a term that a shard didn't return
+     * may still have occurred up to that shard's maxTFError times there, so
+     * that bound is added to the term's tf and to its tfError, as when
+     * merging two Space-Saving summaries.
+     */
+    List<Keyword> mergeKeywords() {
+      List<Keyword> merged = new ArrayList<>();
+      PriorityQueue<CooccurStatsCodec.Reader> queue = new PriorityQueue<>(
+          Math.max(1, payloads.size()), new Comparator<CooccurStatsCodec.Reader>() {
+        public int compare(CooccurStatsCodec.Reader a, CooccurStatsCodec.Reader b) {
+          return a.compareTerm(b);
+        }
+      });
+      long payloadsMaxError = 0;
+      for (byte[] payload : payloads) {
+        CooccurStatsCodec.Reader reader = new CooccurStatsCodec.Reader(payload);
+        payloadsMaxError += reader.getMaxTermFreqError();
+        if (reader.next()) {
+          queue.add(reader);
+        }
+      }
+      List<CooccurStatsCodec.Reader> used = new ArrayList<>();
+      while (queue.size() > 0) {
+        CooccurStatsCodec.Reader top = queue.poll();
+        Keyword kw = new Keyword(top.getTerm(), top.getTermFreq(), top.getDocFreq(), top.getTFIDF());
+        kw.tfError = top.getTermFreqError();
+        long missingError = payloadsMaxError - top.getMaxTermFreqError();
+        used.clear();
+        used.add(top);
+        while (queue.size() > 0 && queue.peek().compareTerm(top) == 0) {
+          CooccurStatsCodec.Reader same = queue.poll();
+          kw.tf += same.getTermFreq();
+          kw.df += same.getDocFreq();
+          kw.tfError += same.getTermFreqError();
+          missingError -= same.getMaxTermFreqError();
+          used.add(same);
+        }
+        kw.tf += missingError;
+        kw.tfError += missingError;
+        //only advance once all readers on this term have been polled
+        for (CooccurStatsCodec.Reader reader : used) {
+          if (reader.next()) {
+            queue.add(reader);
+          }
+        }
+        Keyword other = keywords.remove(kw.term);
+        if (other != null) {
+          kw.tf += other.tf;
+          kw.df += other.df;
+          kw.minDF += other.minDF;
+          kw.tfError += other.tfError;
+        }
+        merged.add(kw);
+      }
+      merged.addAll(keywords.values());
+      return merged;
+    }
+
     NamedList toNamedList() {
       NamedList nl = new SimpleOrderedMap<>();
       nl.add("hitMax", hitMax);
@@ -635,18 +977,21 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
       nl.add("collectionSize", size);
       nl.add("numWindows", numWindows);
       nl.add("numResults", numResults);
+      if (maxTermFreqError > 0) {
+        nl.add("maxTFError", maxTermFreqError);
+      }
 
-      if (keywords.size() > 0) {
+      List<Keyword> merged = mergeKeywords();
+      if (merged.size() > 0) {
 
         //sort by new tf-idf's
-        Integer[] idxs = new Integer[keywords.size()];
-        final double[] tfidfs = new double[keywords.size()];
-        final Keyword[] terms = new Keyword[keywords.size()];
+        Integer[] idxs = new Integer[merged.size()];
+        final double[] tfidfs = new double[merged.size()];
+        final Keyword[] terms = new Keyword[merged.size()];
 
         int i = 0;
-        for (Entry<String, Keyword> kv : keywords.entrySet()) {
+        for (Keyword kw : merged) {
           idxs[i] = i;
-          Keyword kw = kv.getValue();
           terms[i] = kw;
 
           tfidfs[i] = kw.tf * Math.log(size / kw.df);
@@ -679,6 +1024,9 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
           nlKw.add("tf", kw.tf);
           nlKw.add("df", kw.df);
           nlKw.add("minDF", kw.minDF);
+          if (kw.tfError > 0) {
+            nlKw.add("tfError", kw.tfError);
+          }
 
           nlResults.add("result", nlKw);
         }
@@ -694,14 +1042,27 @@ public class KeywordCooccurRankHandler extends SolrConcordanceBase {
     long tf = 0;
     long df = 0;
     int minDF = 0;
+    //maximum overcount of tf if the shards' tfs are approximate
+    long tfError = 0;
 
 
+    Keyword(String term, long tf, long df, double tfidf) {
+      this.term = term;
+      this.tf = tf;
+      this.df = df;
+      this.tfidf = tfidf;
+    }
+
     Keyword(NamedList nl) {
       term = nl.get("term").toString();
       tf = getInt("tf", nl);
       df = getInt("df", nl);
       minDF = getInt("minDF", nl);
       tfidf = getDouble("tfidf", nl);
+      Object error = nl.get("tfError");
+      if (error != null) {
+        tfError = ((Number) error).longValue();
+      }
     }
 
     @Override
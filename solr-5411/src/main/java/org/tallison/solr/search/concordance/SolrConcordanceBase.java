@@ -27,6 +27,14 @@ import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.concordance.classic.AbstractConcordanceWindowCollector;
 import org.apache.lucene.search.concordance.classic.ConcordanceWindow;
+import org.apache.lucene.search.concordance.classic.DocIdBuilder;
+import org.apache.lucene.search.concordance.classic.DocMetadataExtractor;
+import org.apache.lucene.search.concordance.classic.impl.DocValuesDocIdBuilder;
+import org.apache.lucene.search.concordance.classic.impl.DocValuesMetadataExtractor;
+import org.apache.lucene.search.concordance.classic.impl.DocumentOrderSortKey;
+import org.apache.lucene.search.concordance.classic.impl.FieldBasedDocIdBuilder;
+import org.apache.lucene.search.concordance.classic.impl.SimpleDocMetadataExtractor;
+import org.apache.lucene.search.concordance.util.ConcordanceCache;
 import org.apache.solr.cloud.ZkController;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
@@ -37,12 +45,74 @@ import org.apache.solr.handler.RequestHandlerBase;
 import org.apache.solr.request.SimpleFacets;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
 import org.apache.solr.search.DocSet;
 import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrCache;
 import org.apache.solr.search.SyntaxError;
 
 public abstract class SolrConcordanceBase extends RequestHandlerBase {
 
+  /**
+   * Maximum time in milliseconds to wait for the shards to respond
+   */
+  public static final String SHARD_TIMEOUT = "shardTimeout";
+  public static final long DEFAULT_SHARD_TIMEOUT_MILLIS = 60000;
+
+  /**
+   * Name of the user cache for concordance results, e.g.
+   * <pre>
+   * &lt;cache name="concordanceCache" class="solr.search.LRUCache"
+   *     size="256" initialSize="64" autowarmCount="0"/&gt;
+   * </pre>
+   * in the &lt;query&gt; section of solrconfig.xml.  If it isn't
+   * configured, results aren't cached.
+   */
+  public static final String CACHE_NAME = "concordanceCache";
+
+  /**
+   * @param schema schema
+   * @return id builder that reads the unique key from doc values if it is a
+   * string field with doc values, otherwise from stored fields
+   */
+  public static DocIdBuilder getDocIdBuilder(IndexSchema schema) {
+    SchemaField uniqueKey = schema.getUniqueKeyField();
+    if (hasStringDocValues(uniqueKey)) {
+      return new DocValuesDocIdBuilder(uniqueKey.getName());
+    }
+    return new FieldBasedDocIdBuilder(uniqueKey.getName());
+  }
+
+  /**
+   * @param schema schema
+   * @param fl     comma-delimited metadata fields, can be null
+   * @return extractor that reads the metadata from doc values if every field
+   * is a single-valued string field with doc values, otherwise from stored fields
+   */
+  public static DocMetadataExtractor getMetadataExtractor(IndexSchema schema, String fl) {
+    if (fl == null || fl.length() == 0) {
+      return new SimpleDocMetadataExtractor();
+    }
+    String[] fields = fl.split(",");
+    for (String f : fields) {
+      if (!hasStringDocValues(schema.getFieldOrNull(f))) {
+        return new SimpleDocMetadataExtractor(fields);
+      }
+    }
+    return new DocValuesMetadataExtractor(fields);
+  }
+
+  /**
+   * Multivalued fields are left to stored fields: SORTED_SET doc values
+   * would return the lowest value rather than the first one stored.
+   */
+  private static boolean hasStringDocValues(SchemaField sf) {
+    return sf != null && sf.hasDocValues() && !sf.multiValued() &&
+        sf.getType() instanceof StrField;
+  }
+
   protected static void setParam(String name, ModifiableSolrParams params, SolrParams parent) {
     Object o = parent.get(name);
     if (o != null)
@@ -124,6 +194,20 @@ public abstract class SolrConcordanceBase extends RequestHandlerBase {
     return (fieldName != null) ? fieldName : fallBackField;
   }
 
+  public static long getShardTimeout(SolrParams params) {
+    return params.getLong(SHARD_TIMEOUT, DEFAULT_SHARD_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @return cache backed by the searcher's {@link #CACHE_NAME} cache,
+   * or null if it isn't configured
+   */
+  @SuppressWarnings("unchecked")
+  public static ConcordanceCache getConcordanceCache(SolrQueryRequest req) {
+    SolrCache solrCache = req.getSearcher().getCache(CACHE_NAME);
+    return (solrCache == null) ? null : new SolrConcordanceCache(solrCache);
+  }
+
   protected static String getString(String name, NamedList nl) {
     Object o = nl.get(name);
     if (o != null)
@@ -207,6 +291,9 @@ public abstract class SolrConcordanceBase extends RequestHandlerBase {
     doc.add("sortKey", window.getSortKey().toString());
     doc.add("start", window.getStart());
     doc.add("target", window.getTarget());
+    //the coordinator breaks ties on this, as DocumentOrderSortKey does
+    doc.add("targetStart", (window.getSortKey() instanceof DocumentOrderSortKey) ?
+        ((DocumentOrderSortKey) window.getSortKey()).getTargetCharStart() : window.getStart());
 
     return doc;
   }
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.solr.search.concordance;
+
+import org.apache.lucene.search.concordance.util.ConcordanceCache;
+import org.apache.solr.search.SolrCache;
+
+/**
+ * {@link ConcordanceCache} that is backed by one of the searcher's user
+ * caches, so that it is configured in solrconfig.xml and is thrown away
+ * along with the searcher when the index is reopened.
+ * <p>
+ * The solr cache is bounded by its number of entries; the number of windows
+ * in each entry is ignored.  There is no regenerator, so set autowarmCount
+ * to 0.
+ */
+public class SolrConcordanceCache extends ConcordanceCache {
+
+  private final SolrCache<ConcordanceCache.Key, Object> cache;
+
+  public SolrConcordanceCache(SolrCache<ConcordanceCache.Key, Object> cache) {
+    this.cache = cache;
+  }
+
+  @Override
+  public Object get(Key key) {
+    return cache.get(key);
+  }
+
+  @Override
+  public void put(Key key, Object value, long numWindows) {
+    cache.put(key, value);
+  }
+}